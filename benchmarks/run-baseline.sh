@@ -0,0 +1,12 @@
+#!/bin/sh
+# Measures a baseline of the JMH benchmarks and writes it to results/<commit>-<host>.json.
+# Run from the root of the plugin, after "mvn install -DskipTests"; extra arguments are passed to JMH.
+set -e
+
+commit=$(git rev-parse --short HEAD)
+host=$(hostname -s)
+result="benchmarks/results/${commit}-${host}.json"
+
+mvn -B -f benchmarks/pom.xml package
+java -Dbenchmark.result="${result}" -jar benchmarks/target/benchmarks.jar "$@"
+echo "Baseline written to ${result}"
@@ -0,0 +1,111 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.ext.services.DomibusPropertyExtService;
+import eu.domibus.ext.services.FileUtilExtService;
+import eu.domibus.plugin.rabbitmq.compression.RabbitmqBodyCompressor;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import eu.domibus.plugin.rabbitmq.property.BenchmarkPropertyManagers;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Stubs of the Domibus ext services, built as {@link Proxy} instances so that the benchmarks do not depend on a
+ * mocking library nor on a Domibus runtime, and the plugin components wired with them.
+ *
+ * @author Generix Group
+ */
+public final class BenchmarkStubs {
+
+    public static final DomainDTO DOMAIN = new DomainDTO("default", "default");
+
+    private BenchmarkStubs() {
+    }
+
+    /**
+     * Answers the calls made on a stub; {@code null} is returned for the methods it does not know.
+     */
+    public interface Answer {
+        Object answer(String methodName, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T stub(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "toString":
+                    return type.getSimpleName() + " stub";
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    final Object result = answer.answer(method.getName(), args == null ? new Object[0] : args);
+                    return result == null ? defaultValue(method.getReturnType()) : result;
+            }
+        });
+    }
+
+    /**
+     * @return the value returned by a stub for a method it does not know, {@code false} or 0 for primitives
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        return Array.get(Array.newInstance(type, 1), 0);
+    }
+
+    /**
+     * @param properties the Domibus properties, e.g. {@code plugin.rabbitmq.putAttachmentInQueue}
+     */
+    public static DomibusPropertyExtService domibusPropertyExtService(Map<String, String> properties) {
+        return stub(DomibusPropertyExtService.class, domibusPropertyAnswer(properties));
+    }
+
+    /**
+     * @return an answer reading the Domibus properties from a map, for stubs implementing several services
+     */
+    public static Answer domibusPropertyAnswer(Map<String, String> properties) {
+        return (methodName, args) -> {
+            if (!methodName.startsWith("get")) {
+                return null;
+            }
+            // the property name is the first String argument, followed by the default value if any
+            String name = null;
+            String defaultValue = null;
+            for (Object arg : args) {
+                if (arg instanceof String && name == null) {
+                    name = (String) arg;
+                } else if (arg instanceof String) {
+                    defaultValue = (String) arg;
+                }
+            }
+            return name == null ? null : properties.getOrDefault(name, defaultValue);
+        };
+    }
+
+    public static RabbitmqMessageTransformer transformer(Map<String, String> properties) {
+        final DomibusPropertyExtService domibusPropertyExtService = domibusPropertyExtService(properties);
+        final DomainExtService domainExtService = stub(DomainExtService.class, (methodName, args) -> "getDomain".equals(methodName) ? DOMAIN : null);
+
+        final RabbitmqMessageTransformer transformer = new RabbitmqMessageTransformer();
+        transformer.domibusPropertyExtService = domibusPropertyExtService;
+        transformer.domainContextExtService = stub(DomainContextExtService.class, (methodName, args) -> "getCurrentDomain".equals(methodName) ? DOMAIN : null);
+        transformer.fileUtilExtService = stub(FileUtilExtService.class, (methodName, args) -> "sanitizeFileName".equals(methodName) ? args[0] : null);
+        transformer.rabbitmqPluginPropertyManager = BenchmarkPropertyManagers.create(domibusPropertyExtService, domainExtService);
+        transformer.chunkedPayloadSender = new RabbitmqChunkedPayloadSender();
+        transformer.chunkReassembler = new RabbitmqChunkReassembler();
+        transformer.payloadStore = new RabbitmqPayloadStore();
+        transformer.bodyCompressor = new RabbitmqBodyCompressor();
+        transformer.bodyCompressor.init();
+        // the stage timers are left out, the benchmarks measure the transformer itself
+        transformer.metrics = new RabbitmqMetrics();
+        transformer.metrics.setEnabled(false);
+        return transformer;
+    }
+}
@@ -0,0 +1,62 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.common.ErrorResult;
+import eu.domibus.common.NotificationType;
+import org.springframework.amqp.core.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the reply, signal and error notification messages.
+ *
+ * @author Generix Group
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageCreatorBenchmark {
+
+    private ErrorResult errorResult;
+
+    @Setup
+    public void setUp() {
+        errorResult = BenchmarkStubs.stub(ErrorResult.class, (methodName, args) -> {
+            switch (methodName) {
+                case "getErrorDetail":
+                    return "The message could not be delivered";
+                case "getMessageInErrorId":
+                    return "benchmark@domibus.eu";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @Benchmark
+    public Message replyMessage() {
+        return new ReplyMessageCreator("benchmark@domibus.eu", null, "correlation").createMessage();
+    }
+
+    @Benchmark
+    public Message signalMessage() {
+        return new SignalMessageCreator("benchmark@domibus.eu", NotificationType.MESSAGE_SEND_SUCCESS).createMessage();
+    }
+
+    @Benchmark
+    public Message errorMessage() {
+        return new ErrorMessageCreator(errorResult, "http://localhost:8080/domibus", NotificationType.MESSAGE_SEND_FAILURE).createMessage();
+    }
+}
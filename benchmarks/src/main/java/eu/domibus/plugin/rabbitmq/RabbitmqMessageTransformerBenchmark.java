@@ -0,0 +1,101 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.plugin.Submission;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.activation.DataHandler;
+import javax.mail.util.ByteArrayDataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
+
+/**
+ * Cost of the transformations between {@link Submission} and {@link Message}, in both directions. The first payload
+ * is the bodyload, the other ones are attachments embedded in the message.
+ *
+ * @author Generix Group
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class RabbitmqMessageTransformerBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int payloadCount;
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"4", "32"})
+    public int headerCount;
+
+    private RabbitmqMessageTransformer transformer;
+    private Submission submission;
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        final Map<String, String> properties = new HashMap<>();
+        properties.put(RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + PUT_ATTACHMENTS_IN_QUEUE, "true");
+        transformer = BenchmarkStubs.transformer(properties);
+
+        submission = new Submission();
+        submission.setMessageId("benchmark@domibus.eu");
+        submission.setConversationId("conversation");
+        submission.addFromParty("domibus-blue", "urn:oasis:names:tc:ebcore:partyid-type:unregistered");
+        submission.setFromRole("http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/initiator");
+        submission.addToParty("domibus-red", "urn:oasis:names:tc:ebcore:partyid-type:unregistered");
+        submission.setToRole("http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/responder");
+        submission.setService("bdx:noprocess");
+        submission.setServiceType("tc1");
+        submission.setAction("TC1Leg1");
+        submission.addMessageProperty(PROPERTY_ORIGINAL_SENDER, "urn:oasis:names:tc:ebcore:partyid-type:unregistered:C1");
+        submission.addMessageProperty(PROPERTY_FINAL_RECIPIENT, "urn:oasis:names:tc:ebcore:partyid-type:unregistered:C4");
+        for (int i = 2; i < headerCount; i++) {
+            submission.addMessageProperty("property" + i, "value" + i, "string");
+        }
+
+        final Random random = new Random(42);
+        for (int i = 1; i <= payloadCount; i++) {
+            final byte[] content = new byte[payloadSize];
+            random.nextBytes(content);
+            final Collection<Submission.TypedProperty> payloadProperties = new ArrayList<>();
+            payloadProperties.add(new Submission.TypedProperty(MIME_TYPE, "application/octet-stream"));
+            payloadProperties.add(new Submission.TypedProperty(PAYLOAD_FILENAME, "payload" + i + ".bin"));
+            submission.addPayload(new Submission.Payload("cid:payload" + i, new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")),
+                    payloadProperties, i == 1, null, null));
+        }
+
+        message = transformFromSubmission();
+    }
+
+    @Benchmark
+    public Message transformFromSubmission() {
+        return transformer.transformFromSubmission(submission, MessageBuilder.withBody(new byte[0]).build());
+    }
+
+    @Benchmark
+    public Submission transformToSubmission() {
+        return transformer.transformToSubmission(message);
+    }
+}
@@ -0,0 +1,53 @@
+package eu.domibus.plugin.rabbitmq.load;
+
+import org.apache.qpid.server.SystemLauncher;
+import org.apache.qpid.server.model.SystemConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process AMQP 0-9-1 broker (Qpid Broker-J) keeping everything in memory, standing in for RabbitMQ in the load
+ * harness. It supports the publisher confirms and mandatory returns used by the plugin.
+ *
+ * @author Generix Group
+ */
+public class EmbeddedAmqpBroker implements AutoCloseable {
+
+    protected static final String CONFIGURATION = "load/qpid-broker.json";
+
+    private final SystemLauncher launcher = new SystemLauncher();
+
+    private EmbeddedAmqpBroker() {
+    }
+
+    public static EmbeddedAmqpBroker start(int port, String username, String password) throws Exception {
+        final Map<String, String> context = new HashMap<>();
+        context.put("qpid.amqp_port", String.valueOf(port));
+        context.put("qpid.work_dir", workDirectory());
+        context.put("load.broker.username", username);
+        context.put("load.broker.password", password);
+
+        final Map<String, Object> attributes = new HashMap<>();
+        attributes.put(SystemConfig.TYPE, "Memory");
+        attributes.put(SystemConfig.INITIAL_CONFIGURATION_LOCATION,
+                EmbeddedAmqpBroker.class.getClassLoader().getResource(CONFIGURATION).toExternalForm());
+        attributes.put(SystemConfig.STARTUP_LOGGED_TO_SYSTEM_OUT, false);
+        attributes.put(SystemConfig.CONTEXT, context);
+
+        final EmbeddedAmqpBroker broker = new EmbeddedAmqpBroker();
+        broker.launcher.startup(attributes);
+        return broker;
+    }
+
+    private static String workDirectory() throws IOException {
+        return Files.createTempDirectory("domibus-rabbitmq-load").toString();
+    }
+
+    @Override
+    public void close() {
+        launcher.shutdown();
+    }
+}
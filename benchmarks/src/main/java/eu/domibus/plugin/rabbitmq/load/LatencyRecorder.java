@@ -0,0 +1,45 @@
+package eu.domibus.plugin.rabbitmq.load;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records a fixed number of latencies, in nanoseconds, without locking, and computes their percentiles.
+ *
+ * @author Generix Group
+ */
+public class LatencyRecorder {
+
+    private final long[] latencies;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public LatencyRecorder(int capacity) {
+        this.latencies = new long[capacity];
+    }
+
+    public void record(long latencyNanos) {
+        final int index = count.getAndIncrement();
+        if (index < latencies.length) {
+            latencies[index] = latencyNanos;
+        }
+    }
+
+    public int getCount() {
+        return Math.min(count.get(), latencies.length);
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the latency in nanoseconds below which {@code percentile}% of the recorded latencies are
+     */
+    public long getPercentile(double percentile) {
+        final int recorded = getCount();
+        if (recorded == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(latencies, recorded);
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(percentile / 100 * recorded) - 1;
+        return sorted[Math.max(0, Math.min(rank, recorded - 1))];
+    }
+}
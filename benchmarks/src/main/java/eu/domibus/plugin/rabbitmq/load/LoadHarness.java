@@ -0,0 +1,274 @@
+package eu.domibus.plugin.rabbitmq.load;
+
+import eu.domibus.plugin.rabbitmq.BenchmarkStubs;
+import eu.domibus.plugin.rabbitmq.RabbitmqHeaderCodec;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.context.annotation.ClassPathBeanDefinitionScanner;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.jms.ConnectionFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
+
+/**
+ * End-to-end load test of the receiving path: {@code queue.in} &rarr; {@code BackendRabbitmqReceivingListener}
+ * &rarr; submit &rarr; {@code queue.reply}, against an {@link EmbeddedAmqpBroker}.
+ * <p>
+ * The plugin context is created from {@code rabbitmq-plugin.xml} and the plugin components, the Domibus services
+ * being stubbed (see {@link StubbingBeanFactory}). Submit messages are published by as many producer threads as
+ * listener consumers, and the latency of each one is measured up to the reception of its reply. For every
+ * concurrency level and payload size, the throughput and the p50/p99/p99.9 latencies are printed.
+ * <p>
+ * Settings, as system properties: {@code load.messages} (per run, default 20000), {@code load.warmup} (messages sent
+ * before each run, default 2000), {@code load.concurrency} (default 1,4,16), {@code load.payloadSizes} (bytes,
+ * default 1024,65536,1048576) and {@code load.port} (default 5679). Any {@code plugin.rabbitmq.*} system property
+ * overrides the plugin setting of the same name.
+ *
+ * @author Generix Group
+ */
+public class LoadHarness {
+
+    protected static final String USERNAME = "guest";
+    protected static final String PASSWORD = "guest"; //NOSONAR
+    protected static final String QUEUE_IN = "domibus.backend.rabbitmq.in";
+    protected static final String QUEUE_REPLY_NAME = "domibus.backend.rabbitmq.reply";
+
+    private final int port;
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger errors = new AtomicInteger();
+    private volatile LatencyRecorder recorder;
+    private volatile CountDownLatch replies;
+
+    public LoadHarness(int port) {
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = Integer.getInteger("load.messages", 20000);
+        final int warmup = Integer.getInteger("load.warmup", 2000);
+        final int[] concurrencyLevels = parse(System.getProperty("load.concurrency", "1,4,16"));
+        final int[] payloadSizes = parse(System.getProperty("load.payloadSizes", "1024,65536,1048576"));
+        final LoadHarness harness = new LoadHarness(Integer.getInteger("load.port", 5679));
+
+        try (EmbeddedAmqpBroker broker = EmbeddedAmqpBroker.start(harness.port, USERNAME, PASSWORD);
+             GenericApplicationContext pluginContext = harness.createPluginContext()) {
+            final CachingConnectionFactory connectionFactory = new CachingConnectionFactory("localhost", harness.port);
+            connectionFactory.setUsername(USERNAME);
+            connectionFactory.setPassword(PASSWORD);
+            connectionFactory.setChannelCacheSize(Math.max(25, max(concurrencyLevels)));
+            final SimpleMessageListenerContainer replyContainer = harness.startReplyConsumer(connectionFactory);
+            try {
+                System.out.printf("%-12s %-12s %-10s %-12s %-10s %-10s %-10s %-8s%n",
+                        "concurrency", "payload", "messages", "msgs/sec", "p50 ms", "p99 ms", "p99.9 ms", "errors");
+                for (int concurrency : concurrencyLevels) {
+                    for (AbstractMessageListenerContainer container : pluginContext.getBeansOfType(AbstractMessageListenerContainer.class).values()) {
+                        setConsumers(container, concurrency);
+                    }
+                    for (int payloadSize : payloadSizes) {
+                        harness.run(connectionFactory, concurrency, payloadSize, warmup);
+                        final long elapsedNanos = harness.run(connectionFactory, concurrency, payloadSize, messages);
+                        harness.report(concurrency, payloadSize, messages, elapsedNanos);
+                    }
+                }
+            } finally {
+                replyContainer.stop();
+                connectionFactory.destroy();
+            }
+        }
+    }
+
+    protected GenericApplicationContext createPluginContext() {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("plugin.rabbitmq.broker.hostname", "localhost");
+        properties.put("plugin.rabbitmq.broker.port", String.valueOf(port));
+        properties.put("plugin.rabbitmq.broker.username", USERNAME);
+        properties.put("plugin.rabbitmq.broker.password", PASSWORD);
+        properties.put("plugin.rabbitmq.queue.in", QUEUE_IN);
+        properties.put("plugin.rabbitmq.queue.in.concurrency", "1");
+        properties.put("plugin.rabbitmq.queue.reply", QUEUE_REPLY_NAME);
+        properties.put("plugin.rabbitmq.queue.out", "domibus.backend.rabbitmq.out");
+        properties.put("plugin.rabbitmq.queue.consumer.notification.error", "domibus.backend.rabbitmq.consumer.error");
+        properties.put("plugin.rabbitmq.queue.producer.notification.error", "domibus.backend.rabbitmq.producer.error");
+        properties.put("plugin.rabbitmq.queue.notification", "domibus.notification.rabbitmq");
+        properties.put("plugin.rabbitmq.putAttachmentInQueue", "true");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(RABBITMQ_PLUGIN_PROPERTY_PREFIX + ".")) {
+                properties.put(name, System.getProperty(name));
+            }
+        }
+
+        final Map<String, String> domibusProperties = new HashMap<>();
+        properties.forEach((name, value) -> domibusProperties.put(name, value.toString()));
+        final BenchmarkStubs.Answer domibusProperty = BenchmarkStubs.domibusPropertyAnswer(domibusProperties);
+
+        final StubbingBeanFactory beanFactory = new StubbingBeanFactory((methodName, args) -> {
+            switch (methodName) {
+                case "getCurrentDomain":
+                case "getDomain":
+                    return BenchmarkStubs.DOMAIN;
+                case "isUnsecureLoginAllowed":
+                    return true;
+                case "cleanMessageIdentifier":
+                    return args[0] == null ? null : args[0].toString().trim();
+                case "submit":
+                    submitted.incrementAndGet();
+                    return UUID.randomUUID() + "@domibus.eu";
+                default:
+                    return methodName.contains("Property") ? domibusProperty.answer(methodName, args) : null;
+            }
+        });
+        beanFactory.registerSingleton("domibusJMS-XAConnectionFactory", BenchmarkStubs.stub(ConnectionFactory.class, (methodName, args) -> null));
+        beanFactory.registerSingleton("transactionManager", BenchmarkStubs.stub(PlatformTransactionManager.class, (methodName, args) -> null));
+
+        final GenericApplicationContext context = new GenericApplicationContext(beanFactory);
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("loadHarness", properties));
+        final PropertySourcesPlaceholderConfigurer placeholderConfigurer = new PropertySourcesPlaceholderConfigurer();
+        placeholderConfigurer.setEnvironment(context.getEnvironment());
+        context.addBeanFactoryPostProcessor(placeholderConfigurer);
+        new XmlBeanDefinitionReader(context).loadBeanDefinitions(new ClassPathResource("rabbitmq-plugin.xml"));
+        new ClassPathBeanDefinitionScanner(context).scan("eu.domibus.plugin.rabbitmq");
+        context.refresh();
+        return context;
+    }
+
+    protected static void setConsumers(AbstractMessageListenerContainer container, int consumers) {
+        if (container instanceof DirectMessageListenerContainer) {
+            ((DirectMessageListenerContainer) container).setConsumersPerQueue(consumers);
+            return;
+        }
+        final SimpleMessageListenerContainer simpleContainer = (SimpleMessageListenerContainer) container;
+        // the concurrent consumers may never exceed the maximum
+        simpleContainer.setMaxConcurrentConsumers(Integer.MAX_VALUE);
+        simpleContainer.setConcurrentConsumers(consumers);
+        simpleContainer.setMaxConcurrentConsumers(consumers);
+    }
+
+    protected SimpleMessageListenerContainer startReplyConsumer(CachingConnectionFactory connectionFactory) {
+        final SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(QUEUE_REPLY_NAME);
+        container.setConcurrentConsumers(4);
+        container.setPrefetchCount(250);
+        container.setMessageListener(this::onReply);
+        container.start();
+        return container;
+    }
+
+    protected void onReply(Message reply) {
+        final long receivedAt = System.nanoTime();
+        final Long sentAt = pending.remove(reply.getMessageProperties().getCorrelationId());
+        if (sentAt == null) {
+            return;
+        }
+        if (reply.getMessageProperties().getHeader(ERROR_MESSAGE) != null) {
+            errors.incrementAndGet();
+        }
+        recorder.record(receivedAt - sentAt);
+        replies.countDown();
+    }
+
+    /**
+     * @return the time elapsed between the first message sent and the last reply received, in nanoseconds
+     */
+    protected long run(CachingConnectionFactory connectionFactory, int concurrency, int payloadSize, int messages) throws InterruptedException {
+        recorder = new LatencyRecorder(messages);
+        replies = new CountDownLatch(messages);
+        errors.set(0);
+        final byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        final RabbitTemplate template = new RabbitTemplate(connectionFactory);
+
+        final ExecutorService producers = Executors.newFixedThreadPool(concurrency);
+        final long start = System.nanoTime();
+        for (int producer = 0; producer < concurrency; producer++) {
+            final int count = messages / concurrency + (producer < messages % concurrency ? 1 : 0);
+            producers.execute(() -> {
+                for (int i = 0; i < count; i++) {
+                    final String correlationId = UUID.randomUUID().toString();
+                    final Message message = createSubmitMessage(correlationId, payload);
+                    pending.put(correlationId, System.nanoTime());
+                    template.send("", QUEUE_IN, message);
+                }
+            });
+        }
+        producers.shutdown();
+        if (!replies.await(10, TimeUnit.MINUTES)) {
+            System.out.printf("Timed out with [%d] replies missing%n", replies.getCount());
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        pending.clear();
+        return elapsedNanos;
+    }
+
+    protected Message createSubmitMessage(String correlationId, byte[] payload) {
+        final MessageProperties properties = new MessageProperties();
+        properties.setCorrelationId(correlationId);
+        properties.setMessageId(correlationId + "@load.domibus.eu");
+        properties.setHeader(RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, MESSAGE_TYPE_SUBMIT);
+        properties.setHeader(MESSAGE_ID, correlationId + "@load.domibus.eu");
+        properties.setHeader(FROM_PARTY_ID, "domibus-blue");
+        properties.setHeader(FROM_PARTY_TYPE, "urn:oasis:names:tc:ebcore:partyid-type:unregistered");
+        properties.setHeader(FROM_ROLE, "http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/initiator");
+        properties.setHeader(TO_PARTY_ID, "domibus-red");
+        properties.setHeader(TO_PARTY_TYPE, "urn:oasis:names:tc:ebcore:partyid-type:unregistered");
+        properties.setHeader(TO_ROLE, "http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/responder");
+        properties.setHeader(SERVICE, "bdx:noprocess");
+        properties.setHeader(SERVICE_TYPE, "tc1");
+        properties.setHeader(ACTION, "TC1Leg1");
+        properties.setHeader(PROPERTY_ORIGINAL_SENDER, "urn:oasis:names:tc:ebcore:partyid-type:unregistered:C1");
+        properties.setHeader(PROPERTY_FINAL_RECIPIENT, "urn:oasis:names:tc:ebcore:partyid-type:unregistered:C4");
+        properties.setHeader(TOTAL_NUMBER_OF_PAYLOADS, 1);
+        properties.setHeader(P1_IN_BODY, "true");
+        properties.setHeader(RabbitmqHeaderCodec.payloadMimeType(1), "application/octet-stream");
+        properties.setHeader(RabbitmqHeaderCodec.payloadMimeContentId(1), "cid:message");
+        return MessageBuilder.withBody(payload).andProperties(properties).build();
+    }
+
+    protected void report(int concurrency, int payloadSize, int messages, long elapsedNanos) {
+        System.out.printf("%-12d %-12d %-10d %-12.0f %-10.2f %-10.2f %-10.2f %-8d%n",
+                concurrency, payloadSize, recorder.getCount(),
+                messages / (elapsedNanos / 1e9),
+                recorder.getPercentile(50) / 1e6, recorder.getPercentile(99) / 1e6, recorder.getPercentile(99.9) / 1e6,
+                errors.get());
+    }
+
+    private static int[] parse(String values) {
+        final List<Integer> parsed = new ArrayList<>();
+        for (String value : values.split(",")) {
+            parsed.add(Integer.parseInt(value.trim()));
+        }
+        return parsed.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int max(int[] values) {
+        int max = 0;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+}
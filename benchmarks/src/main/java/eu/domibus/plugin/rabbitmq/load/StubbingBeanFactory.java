@@ -0,0 +1,42 @@
+package eu.domibus.plugin.rabbitmq.load;
+
+import eu.domibus.plugin.rabbitmq.BenchmarkStubs;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.TypeConverter;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.config.DependencyDescriptor;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bean factory resolving the Domibus interfaces autowired by the plugin, but not defined in its context, with
+ * stubs: the ext services, the message submitter... They all share the same {@link BenchmarkStubs.Answer}.
+ *
+ * @author Generix Group
+ */
+public class StubbingBeanFactory extends DefaultListableBeanFactory {
+
+    private final BenchmarkStubs.Answer answer;
+    private final Map<Class<?>, Object> stubs = new ConcurrentHashMap<>();
+
+    public StubbingBeanFactory(BenchmarkStubs.Answer answer) {
+        this.answer = answer;
+    }
+
+    @Override
+    public Object doResolveDependency(DependencyDescriptor descriptor, String beanName, Set<String> autowiredBeanNames,
+                                      TypeConverter typeConverter) throws BeansException {
+        try {
+            return super.doResolveDependency(descriptor, beanName, autowiredBeanNames, typeConverter);
+        } catch (NoSuchBeanDefinitionException e) {
+            final Class<?> type = descriptor.getDependencyType();
+            if (!type.isInterface() || !type.getName().startsWith("eu.domibus.")) {
+                throw e;
+            }
+            return stubs.computeIfAbsent(type, key -> BenchmarkStubs.stub(key, answer));
+        }
+    }
+}
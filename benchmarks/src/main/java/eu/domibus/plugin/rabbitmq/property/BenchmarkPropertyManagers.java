@@ -0,0 +1,22 @@
+package eu.domibus.plugin.rabbitmq.property;
+
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.ext.services.DomibusPropertyExtService;
+
+/**
+ * Creates property managers backed by stubbed Domibus services, outside of any Spring context.
+ *
+ * @author Generix Group
+ */
+public final class BenchmarkPropertyManagers {
+
+    private BenchmarkPropertyManagers() {
+    }
+
+    public static RabbitmqPluginPropertyManager create(DomibusPropertyExtService domibusPropertyExtService, DomainExtService domainExtService) {
+        final RabbitmqPluginPropertyManager propertyManager = new RabbitmqPluginPropertyManager();
+        propertyManager.domibusPropertyExtService = domibusPropertyExtService;
+        propertyManager.domainExtService = domainExtService;
+        return propertyManager;
+    }
+}
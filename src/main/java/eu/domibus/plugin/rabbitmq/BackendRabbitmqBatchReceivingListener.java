@@ -0,0 +1,107 @@
+package eu.domibus.plugin.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Batching consumer for the incoming queue: the messages drained by the listener container are submitted in a single
+ * transaction and acknowledged with one multiple-ack. The messages that fail are rejected individually and, unless
+ * {@code requeueRejected} is turned off for a queue having a dead-letter exchange, requeued.
+ * <p>
+ * The listener container must use {@link org.springframework.amqp.core.AcknowledgeMode#MANUAL} acknowledgements.
+ *
+ * @author Generix Group
+ */
+public class BackendRabbitmqBatchReceivingListener implements ChannelAwareBatchMessageListener {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(BackendRabbitmqBatchReceivingListener.class);
+
+    @Autowired
+    protected BackendRabbitmqReceivingListener backendRabbitmqReceivingListener;
+
+    private boolean requeueRejected = true;
+
+    /**
+     * This method is called when a batch of messages was received at the incoming queue
+     *
+     * @param messages The incoming RabbitMQ Messages
+     * @param channel  The channel the messages were received on
+     */
+    @Override
+    public void onMessageBatch(final List<Message> messages, final Channel channel) {
+        LOG.debug("Received a batch of [{}] messages", messages.size());
+        final List<Message> failedMessages;
+        try {
+            failedMessages = backendRabbitmqReceivingListener.onMessages(messages);
+        } catch (RuntimeException e) {
+            LOG.warn("The batch of [{}] messages could not be committed, processing the messages one by one", messages.size(), e);
+            onMessagesIndividually(messages, channel);
+            return;
+        }
+        settle(messages, failedMessages, channel);
+    }
+
+    protected void onMessagesIndividually(final List<Message> messages, final Channel channel) {
+        for (Message message : messages) {
+            try {
+                backendRabbitmqReceivingListener.onMessage(message);
+                ack(channel, message.getMessageProperties().getDeliveryTag(), false);
+            } catch (RuntimeException e) {
+                LOG.error("Exception occurred while processing message [{}]", message.getMessageProperties().getMessageId(), e);
+                reject(channel, message);
+            }
+        }
+    }
+
+    /**
+     * Rejects the failed messages one by one, then acknowledges all the others with a single multiple-ack.
+     */
+    protected void settle(final List<Message> messages, final List<Message> failedMessages, final Channel channel) {
+        final Set<Long> failedDeliveryTags = new HashSet<>();
+        for (Message failedMessage : failedMessages) {
+            failedDeliveryTags.add(failedMessage.getMessageProperties().getDeliveryTag());
+            reject(channel, failedMessage);
+        }
+        long lastDeliveryTag = -1;
+        for (Message message : messages) {
+            final long deliveryTag = message.getMessageProperties().getDeliveryTag();
+            if (!failedDeliveryTags.contains(deliveryTag)) {
+                lastDeliveryTag = Math.max(lastDeliveryTag, deliveryTag);
+            }
+        }
+        if (lastDeliveryTag >= 0) {
+            ack(channel, lastDeliveryTag, true);
+        }
+    }
+
+    protected void reject(final Channel channel, final Message message) {
+        final long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        LOG.warn("Rejecting message [{}] with delivery tag [{}], requeue [{}]", message.getMessageProperties().getMessageId(), deliveryTag, requeueRejected);
+        try {
+            channel.basicReject(deliveryTag, requeueRejected);
+        } catch (IOException e) {
+            throw new DefaultRabbitmqPluginException("Could not reject the message with delivery tag [" + deliveryTag + "]", e);
+        }
+    }
+
+    protected void ack(final Channel channel, final long deliveryTag, final boolean multiple) {
+        try {
+            channel.basicAck(deliveryTag, multiple);
+        } catch (IOException e) {
+            throw new DefaultRabbitmqPluginException("Could not acknowledge the message with delivery tag [" + deliveryTag + "]", e);
+        }
+    }
+
+    public void setRequeueRejected(boolean requeueRejected) {
+        this.requeueRejected = requeueRejected;
+    }
+}
@@ -4,7 +4,6 @@ import eu.domibus.common.ErrorResult;
 import eu.domibus.common.MessageReceiveFailureEvent;
 import eu.domibus.common.NotificationType;
 import eu.domibus.ext.domain.DomainDTO;
-import eu.domibus.ext.exceptions.DomibusPropertyExtException;
 import eu.domibus.ext.services.DomainContextExtService;
 import eu.domibus.ext.services.DomibusPropertyExtService;
 import eu.domibus.logging.DomibusLogger;
@@ -15,6 +14,9 @@ import eu.domibus.messaging.MessageConstants;
 import eu.domibus.messaging.MessageNotFoundException;
 import eu.domibus.messaging.MessagingProcessingException;
 import eu.domibus.plugin.AbstractBackendConnector;
+import eu.domibus.plugin.Submission;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics.Stage;
 import eu.domibus.plugin.transformer.MessageRetrievalTransformer;
 import eu.domibus.plugin.transformer.MessageSubmissionTransformer;
 import org.apache.commons.lang3.StringUtils;
@@ -22,16 +24,28 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.jms.core.JmsOperations;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.amqp.core.Address;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageBuilder;
 import org.springframework.amqp.core.MessageProperties;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MESSAGE_TYPE_PAYLOAD_CHUNK;
 import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MESSAGE_TYPE_SUBMIT;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.QUEUE_CONSUMER_NOTIFICATION_ERROR;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.QUEUE_OUT;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.QUEUE_PRODUCER_NOTIFICATION_ERROR;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.QUEUE_REPLY;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.RABBITMQ_PLUGIN_PROPERTY_PREFIX;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Christian Koch, Stefan Mueller, Generix Group
@@ -40,10 +54,10 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 
 	private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(BackendRabbitmqImpl.class);
 
-	protected static final String RABBITMQ_PLUGIN_QUEUE_REPLY = "plugin.rabbitmq.queue.reply";
-	protected static final String RABBITMQ_PLUGIN_QUEUE_CONSUMER_NOTIFICATION_ERROR = "plugin.rabbitmq.queue.consumer.notification.error";
-	protected static final String RABBITMQ_PLUGIN_QUEUE_PRODUCER_NOTIFICATION_ERROR = "plugin.rabbitmq.queue.producer.notification.error";
-	protected static final String RABBITMQ_PLUGIN_QUEUE_OUT = "plugin.rabbitmq.queue.out";
+	protected static final String RABBITMQ_PLUGIN_QUEUE_REPLY = RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + QUEUE_REPLY;
+	protected static final String RABBITMQ_PLUGIN_QUEUE_CONSUMER_NOTIFICATION_ERROR = RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + QUEUE_CONSUMER_NOTIFICATION_ERROR;
+	protected static final String RABBITMQ_PLUGIN_QUEUE_PRODUCER_NOTIFICATION_ERROR = RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + QUEUE_PRODUCER_NOTIFICATION_ERROR;
+	protected static final String RABBITMQ_PLUGIN_QUEUE_OUT = RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + QUEUE_OUT;
 
 	@Autowired
 	protected DomibusPropertyExtService domibusPropertyExtService;
@@ -59,7 +73,39 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 	private MessageSubmissionTransformer<Message> messageSubmissionTransformer;
 
 	@Autowired
-	private RabbitTemplate rabbitTemplate;
+	protected RabbitmqPublisher rabbitmqPublisher;
+
+	@Autowired
+	protected RabbitmqDestinationRegistry destinationRegistry;
+
+	@Autowired
+	protected RabbitmqChunkedPayloadSender chunkedPayloadSender;
+
+	@Autowired
+	protected RabbitmqChunkReassembler chunkReassembler;
+
+	@Autowired
+	protected RabbitmqPayloadStore payloadStore;
+
+	@Autowired
+	protected RabbitmqMetrics metrics;
+
+	@Autowired
+	protected RabbitmqPriorityClassifier priorityClassifier;
+
+	@Autowired
+	protected RabbitmqDeliveryPipeline deliveryPipeline;
+
+	@Autowired
+	protected RabbitmqNotificationAggregator notificationAggregator;
+
+	@Autowired
+	protected RabbitmqDuplicateDetector duplicateDetector;
+
+	@Autowired
+	protected RabbitmqUnsentMessageSpool unsentMessageSpool;
+
+	private final ThreadLocal<List<Message>> deferredReplies = new ThreadLocal<>();
 
 	public BackendRabbitmqImpl(String name) {
 		super(name);
@@ -85,12 +131,15 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 
 	/**
 	 * This method is called when a message was received at the incoming queue
+	 * <p>
+	 * A {@link DefaultRabbitmqPluginException} does not mark the surrounding transaction as rollback-only: when messages
+	 * are received in batches, the other messages of the batch must still be committed.
 	 *
 	 * @param message
 	 *            The incoming RabbitMQ Message
 	 */
 	@MDCKey(DomibusLogger.MDC_MESSAGE_ID)
-	@Transactional
+	@Transactional(noRollbackFor = DefaultRabbitmqPluginException.class)
 	public void receiveMessage(final Message message) {
 		try {
 			MessageProperties properties = message.getMessageProperties();
@@ -105,6 +154,13 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 			final String messageType = headers.get(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY).toString();
 
 			LOG.info("Received message with messageId [{}], correlationID [{}]", messageID, correlationID);
+			final String queue = properties.getConsumerQueue();
+			metrics.recordMessageSize(RabbitmqMetrics.DIRECTION_IN, queue, message.getBody());
+
+			if (MESSAGE_TYPE_PAYLOAD_CHUNK.equals(messageType)) {
+				chunkReassembler.onChunk(message);
+				return;
+			}
 
 			if (!MESSAGE_TYPE_SUBMIT.equals(messageType)) {
 				String wrongMessageTypeMessage = getWrongMessageTypeErrorMessage(messageID, correlationID, messageType);
@@ -113,16 +169,39 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 				return;
 			}
 
+			final String duplicateKey = duplicateDetector.isEnabled() ? duplicateDetector.getKey(message) : null;
+			if (duplicateKey != null) {
+				final RabbitmqDuplicateDetector.Reply reply = duplicateDetector.lookup(duplicateKey);
+				if (reply != null) {
+					LOG.warn("Message [{}], correlationID [{}] was already submitted as [{}], replying again", messageID, correlationID, reply.getMessageId());
+					sendReplyMessage(reply.getMessageId(), reply.getErrorMessage(), correlationID);
+					return;
+				}
+			}
+
+			// the chunks of the payloads may still be consumed by another consumer
+			chunkReassembler.awaitPayloads(message);
+
 			String errorMessage = null;
+			final long submitStart = metrics.start();
 			try {
 				// in case the messageID is not sent by the user it will be
 				// generated
 				messageID = submit(message);
+				metrics.record(Stage.SUBMIT, queue, submitStart, true);
+				chunkReassembler.release(message);
+			} catch (final RuntimeException e) {
+				metrics.record(Stage.SUBMIT, queue, submitStart, false);
+				throw e;
 			} catch (final MessagingProcessingException e) {
+				metrics.record(Stage.SUBMIT, queue, submitStart, false);
 				LOG.error("Exception occurred receiving message [{}}], correlationID [{}}]", messageID, correlationID, e);
 				errorMessage = e.getMessage() + ": Error Code: " + (e.getEbms3ErrorCode() != null ? e.getEbms3ErrorCode().getErrorCodeName() : " not set");
 			}
 
+			if (duplicateKey != null && errorMessage == null) {
+				duplicateDetector.record(duplicateKey, messageID);
+			}
 			sendReplyMessage(messageID, errorMessage, correlationID);
 
 			LOG.info("Submitted message with messageId [{}], correlationID [{}}]", messageID, correlationID);
@@ -139,21 +218,177 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 	}
 
 	protected void sendReplyMessage(final String messageId, final String errorMessage, final String correlationId) {
-		LOG.debug("Sending reply message");
 		final Message message = new ReplyMessageCreator(messageId, errorMessage, correlationId).createMessage();
-		sendRabbitMQMessage(message, RABBITMQ_PLUGIN_QUEUE_REPLY);
+		final List<Message> replies = deferredReplies.get();
+		if (replies != null) {
+			LOG.debug("Deferring reply message until the transaction commits");
+			replies.add(message);
+			return;
+		}
+		LOG.debug("Sending reply message");
+		sendRabbitMQMessage(message, RABBITMQ_PLUGIN_QUEUE_REPLY, Stage.REPLY_PUBLISH);
+	}
+
+	/**
+	 * Defers the replies of the messages received by the current thread until the current transaction committed, so
+	 * that no reply is sent for a batch of messages that is rolled back and received again. The deferred replies are
+	 * discarded on a rollback; after the commit they are published together, and the replies that the broker does not
+	 * accept are handed to the {@link RabbitmqUnsentMessageSpool} to be published again.
+	 */
+	public void deferReplies() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return;
+		}
+		final List<Message> replies = new ArrayList<>();
+		deferredReplies.set(replies);
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				deferredReplies.remove();
+				sendReplyMessages(replies);
+			}
+
+			@Override
+			public void afterCompletion(int status) {
+				deferredReplies.remove();
+			}
+		});
+	}
+
+	/**
+	 * Publishes the replies of a committed batch on a single channel and waits for the broker to confirm them all.
+	 */
+	protected void sendReplyMessages(final List<Message> replies) {
+		if (replies.isEmpty()) {
+			return;
+		}
+		final Address address = destinationRegistry.getAddress(RABBITMQ_PLUGIN_QUEUE_REPLY);
+		LOG.info("Sending [{}] reply messages to queue [{}]", replies.size(), address.getRoutingKey());
+		final long start = metrics.start();
+		final List<CompletableFuture<Void>> confirmations = rabbitmqPublisher.publishBatch(Collections.nCopies(replies.size(), address), replies);
+		try {
+			// waits for the confirms together, so that the listener only takes the next batch once its replies are out
+			rabbitmqPublisher.awaitConfirm(CompletableFuture.allOf(confirmations.toArray(new CompletableFuture[0])), address);
+		} catch (RuntimeException e) {
+			LOG.warn("Not all the [{}] replies sent to [{}] were confirmed by the broker", replies.size(), address.getRoutingKey(), e);
+		}
+		for (int i = 0; i < replies.size(); i++) {
+			final CompletableFuture<Void> confirmation = confirmations.get(i);
+			final boolean confirmed = confirmation.isDone() && !confirmation.isCompletedExceptionally();
+			metrics.record(Stage.REPLY_PUBLISH, address.getRoutingKey(), start, confirmed);
+			if (!confirmed) {
+				// nacked, or not confirmed in time and possibly delivered anyway: published again rather than lost
+				unsentMessageSpool.spool(address, replies.get(i));
+			}
+		}
 	}
 
 	@Override
 	public void deliverMessage(final String messageId) {
+		if (deliveryPipeline.isEnabled()) {
+			deliverThroughPipeline(messageId);
+			return;
+		}
 		LOG.debug("Delivering message");
-		final DomainDTO currentDomain = domainContextExtService.getCurrentDomain();
-		final String queueValue = domibusPropertyExtService.getDomainProperty(currentDomain, RABBITMQ_PLUGIN_QUEUE_OUT);
-		if (StringUtils.isEmpty(queueValue)) {
-			throw new DomibusPropertyExtException("Error getting the queue [" + RABBITMQ_PLUGIN_QUEUE_OUT + "]");
+		final long start = metrics.start();
+		final Address outAddress = destinationRegistry.getAddress(RABBITMQ_PLUGIN_QUEUE_OUT);
+		final Message message;
+		try {
+			message = createMessage(messageId);
+			metrics.record(Stage.DOWNLOAD, outAddress.getRoutingKey(), start, true);
+		} catch (RuntimeException e) {
+			metrics.record(Stage.DOWNLOAD, outAddress.getRoutingKey(), start, false);
+			metrics.record(Stage.DELIVER_MESSAGE, outAddress.getRoutingKey(), start, false);
+			throw e;
+		}
+		final String lane = priorityClassifier.isEnabled() ? priorityClassifier.classify(message.getMessageProperties()) : null;
+		final Address address = lane != null ? destinationRegistry.getAddress(priorityClassifier.route(message, lane)) : outAddress;
+		final String queue = address.getRoutingKey();
+		LOG.info("Sending message to queue [{}] in lane [{}]", queue, lane);
+		metrics.recordMessageSize(RabbitmqMetrics.DIRECTION_OUT, queue, message.getBody());
+		final long publishStart = metrics.start();
+		boolean publishing = false;
+		try {
+			if (message instanceof RabbitmqChunkedMessage) {
+				// the chunks have to be queued before the message referencing them
+				chunkedPayloadSender.sendChunks(address, (RabbitmqChunkedMessage) message);
+			}
+			publishing = true;
+			// waits for the confirm: Domibus considers the message delivered once this method returns, so a message
+			// the broker did not accept must fail the notification for Domibus to deliver it again
+			rabbitmqPublisher.publishAndWait(address, message);
+		} catch (RuntimeException e) {
+			metrics.record(Stage.PUBLISH, queue, publishStart, false);
+			metrics.record(Stage.DELIVER_MESSAGE, queue, start, false);
+			recordLane(lane, start, false);
+			if (!publishing || e instanceof RabbitmqPublisher.UnsentMessageException) {
+				// the payloads stored for this delivery are stored again when it is retried
+				payloadStore.release(message);
+			}
+			// otherwise the message may still reach the backend, its stored payloads are kept until they expire
+			throw e;
+		}
+		metrics.record(Stage.PUBLISH, queue, publishStart, true);
+		metrics.record(Stage.DELIVER_MESSAGE, queue, start, true);
+		recordLane(lane, start, true);
+	}
+
+	/**
+	 * Downloads the message on the notification listener thread, then lets the pipeline transform and publish it, and
+	 * waits for the broker to confirm it.
+	 */
+	protected void deliverThroughPipeline(final String messageId) {
+		LOG.debug("Delivering message through the pipeline");
+		final long start = metrics.start();
+		final Address outAddress = destinationRegistry.getAddress(RABBITMQ_PLUGIN_QUEUE_OUT);
+		final Submission submission;
+		try {
+			submission = messageRetriever.downloadMessage(messageId);
+			LOG.businessInfo(DomibusMessageCode.BUS_MESSAGE_RETRIEVED);
+			metrics.record(Stage.DOWNLOAD, outAddress.getRoutingKey(), start, true);
+		} catch (MessageNotFoundException | RuntimeException e) {
+			LOG.businessError(DomibusMessageCode.BUS_MESSAGE_RETRIEVE_FAILED, e);
+			metrics.record(Stage.DOWNLOAD, outAddress.getRoutingKey(), start, false);
+			metrics.record(Stage.DELIVER_MESSAGE, outAddress.getRoutingKey(), start, false);
+			throw e instanceof RuntimeException ? (RuntimeException) e : new DefaultRabbitmqPluginException("Unable to create push message", e);
+		}
+		final AtomicReference<Message> transformed = new AtomicReference<>();
+		final AtomicReference<String> lane = new AtomicReference<>();
+		try {
+			deliveryPipeline.deliver(outAddress, () -> {
+				final Message message = createMessage(submission);
+				transformed.set(message);
+				lane.set(priorityClassifier.isEnabled() ? priorityClassifier.classify(message.getMessageProperties()) : null);
+				final Address address = lane.get() != null ? destinationRegistry.getAddress(priorityClassifier.route(message, lane.get())) : outAddress;
+				metrics.recordMessageSize(RabbitmqMetrics.DIRECTION_OUT, address.getRoutingKey(), message.getBody());
+				if (message instanceof RabbitmqChunkedMessage) {
+					// the chunks have to be queued before the message referencing them
+					chunkedPayloadSender.sendChunks(address, (RabbitmqChunkedMessage) message);
+				}
+				return new RabbitmqDeliveryPipeline.Delivery(address, message);
+			});
+		} catch (RabbitmqDeliveryPipeline.UnsentDeliveryException e) {
+			metrics.record(Stage.DELIVER_MESSAGE, outAddress.getRoutingKey(), start, false);
+			recordLane(lane.get(), start, false);
+			if (transformed.get() != null) {
+				// the payloads stored for this delivery are stored again when it is retried
+				payloadStore.release(transformed.get());
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			// the message may still reach the backend, its stored payloads are kept until they expire
+			metrics.record(Stage.DELIVER_MESSAGE, outAddress.getRoutingKey(), start, false);
+			recordLane(lane.get(), start, false);
+			throw e;
+		}
+		metrics.record(Stage.DELIVER_MESSAGE, outAddress.getRoutingKey(), start, true);
+		recordLane(lane.get(), start, true);
+	}
+
+	private void recordLane(String lane, long start, boolean success) {
+		if (lane != null) {
+			metrics.recordLane(lane, start, success);
 		}
-		LOG.info("Sending message to queue [{}]", queueValue);
-		rabbitTemplate.send(queueValue, createMessage(messageId));
 	}
 
 	@Override
@@ -161,31 +396,66 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 		LOG.debug("Handling messageReceiveFailed");
 		final Message message = new ErrorMessageCreator(messageReceiveFailureEvent.getErrorResult(), 
 				messageReceiveFailureEvent.getEndpoint(), NotificationType.MESSAGE_RECEIVED_FAILURE).createMessage();
-		sendRabbitMQMessage(message, RABBITMQ_PLUGIN_QUEUE_CONSUMER_NOTIFICATION_ERROR);
+		sendNotification(message, RABBITMQ_PLUGIN_QUEUE_CONSUMER_NOTIFICATION_ERROR);
 	}
 
 	@Override
 	public void messageSendFailed(final String messageId) {
 		List<ErrorResult> errors = super.getErrorsForMessage(messageId);
 		final Message message = new ErrorMessageCreator(errors.get(errors.size() - 1), null, NotificationType.MESSAGE_SEND_FAILURE).createMessage();
-		sendRabbitMQMessage(message, RABBITMQ_PLUGIN_QUEUE_PRODUCER_NOTIFICATION_ERROR);
+		sendNotification(message, RABBITMQ_PLUGIN_QUEUE_PRODUCER_NOTIFICATION_ERROR);
 	}
 
 	@Override
 	public void messageSendSuccess(String messageId) {
 		LOG.debug("Handling messageSendSuccess");
 		final Message rabbitmqMessageDTO = new SignalMessageCreator(messageId, NotificationType.MESSAGE_SEND_SUCCESS).createMessage();
-		sendRabbitMQMessage(rabbitmqMessageDTO, RABBITMQ_PLUGIN_QUEUE_REPLY);
+		sendNotification(rabbitmqMessageDTO, RABBITMQ_PLUGIN_QUEUE_REPLY);
+	}
+
+	/**
+	 * Publishes a notification, or buffers it to be published in a batch when the notifications are coalesced.
+	 */
+	protected void sendNotification(Message message, String queueProperty) {
+		if (notificationAggregator.isEnabled()) {
+			notificationAggregator.add(message, queueProperty);
+			return;
+		}
+		sendRabbitMQMessage(message, queueProperty);
 	}
 
 	protected void sendRabbitMQMessage(Message message, String queueProperty) {
-		final DomainDTO currentDomain = domainContextExtService.getCurrentDomain();
-		final String queueValue = domibusPropertyExtService.getDomainProperty(currentDomain, queueProperty);
-		if (StringUtils.isEmpty(queueValue)) {
-			throw new DomibusPropertyExtException("Error getting the queue [" + queueProperty + "]");
+		sendRabbitMQMessage(message, queueProperty, Stage.NOTIFICATION_PUBLISH);
+	}
+
+	/**
+	 * Publishes a reply or notification without waiting for the broker: the in-flight window of the publisher bounds
+	 * the messages waiting for their confirm, and a message that the broker nacks, or that finds no in-flight slot in
+	 * time, is handed to the {@link RabbitmqUnsentMessageSpool} to be published again instead of failing the caller.
+	 */
+	protected void sendRabbitMQMessage(Message message, String queueProperty, Stage stage) {
+		final Address address = destinationRegistry.getAddress(queueProperty);
+		final String queue = address.getRoutingKey();
+		LOG.info("Sending message to queue [{}]", queue);
+		final DomainDTO domain = domainContextExtService.getCurrentDomainSafely();
+		final String domainCode = domain == null ? null : domain.getCode();
+		final long start = metrics.start();
+		final CompletableFuture<Void> confirmation;
+		try {
+			confirmation = rabbitmqPublisher.publish(address, message);
+		} catch (RuntimeException e) {
+			LOG.warn("Could not send the message [{}] to [{}]", message.getMessageProperties().getMessageId(), queue, e);
+			metrics.record(stage, domainCode, queue, start, false);
+			unsentMessageSpool.spool(address, message);
+			return;
 		}
-		LOG.info("Sending message to queue [{}]", queueValue);
-		rabbitTemplate.send(queueValue, message);
+		confirmation.whenComplete((result, failure) -> {
+			if (failure != null) {
+				LOG.warn("The message [{}] sent to [{}] was not accepted by the broker", message.getMessageProperties().getMessageId(), queue, failure);
+				unsentMessageSpool.spool(address, message);
+			}
+			metrics.record(stage, domainCode, queue, start, failure == null);
+		});
 	}
 
 	@Override
@@ -204,12 +474,24 @@ public class BackendRabbitmqImpl extends AbstractBackendConnector<Message, Messa
 	}
 
 	public Message createMessage(String messageId) {
-		final Message message = MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build();
+		final Message message;
 		try {
-			downloadMessage(messageId, message);
+			message = downloadMessage(messageId, MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build());
 		} catch (final MessageNotFoundException e) {
 			throw new DefaultRabbitmqPluginException("Unable to create push message", e);
 		}
+		return addDeliveryHeaders(message);
+	}
+
+	/**
+	 * Transforms a submission already downloaded.
+	 */
+	protected Message createMessage(Submission submission) {
+		final Message message = getMessageRetrievalTransformer().transformFromSubmission(submission, MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build());
+		return addDeliveryHeaders(message);
+	}
+
+	private Message addDeliveryHeaders(Message message) {
 		final DomainDTO currentDomain = domainContextExtService.getCurrentDomain();
 		message.getMessageProperties().setHeader(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, RabbitmqMessageConstants.MESSAGE_TYPE_INCOMING);
 		message.getMessageProperties().setHeader(MessageConstants.DOMAIN, currentDomain.getCode());
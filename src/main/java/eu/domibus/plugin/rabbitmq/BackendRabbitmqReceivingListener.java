@@ -5,12 +5,16 @@ import eu.domibus.ext.services.DomainContextExtService;
 import eu.domibus.ext.services.DomibusPropertyExtService;
 import eu.domibus.logging.DomibusLogger;
 import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -33,6 +37,18 @@ public class BackendRabbitmqReceivingListener implements MessageListener{
     @Autowired
     protected AuthenticationExtService authenticationExtService;
 
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    @Autowired
+    protected RabbitmqAuthenticationCache authenticationCache;
+
+    @Autowired
+    protected RabbitmqBrokerIdentityAuthenticator brokerIdentityAuthenticator;
+
+    @Autowired
+    protected RabbitmqMetrics metrics;
+
 
     /**
      * This method is called when a message was received at the incoming queue
@@ -44,12 +60,56 @@ public class BackendRabbitmqReceivingListener implements MessageListener{
         if (!authenticationExtService.isUnsecureLoginAllowed()) {
             LOG.debug("Performing authentication");
             LOG.clearCustomKeys();
-            authenticate(map);
+            timedAuthenticate(map);
         }
         backendRabbitmq.receiveMessage(map);
     }
 
+    /**
+     * This method is called when a batch of messages was received at the incoming queue. All the messages are submitted
+     * in a single transaction; a message that fails does not fail the rest of the batch and is returned instead. The
+     * replies are only sent once the transaction committed.
+     *
+     * @param messages The incoming RabbitMQ Messages
+     * @return the messages that could not be processed
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, timeout = 1200)
+    public List<Message> onMessages(final List<Message> messages) {
+        final List<Message> failedMessages = new ArrayList<>();
+        backendRabbitmq.deferReplies();
+        for (Message message : messages) {
+            try {
+                if (!authenticationExtService.isUnsecureLoginAllowed()) {
+                    LOG.debug("Performing authentication");
+                    LOG.clearCustomKeys();
+                    timedAuthenticate(message);
+                }
+                backendRabbitmq.receiveMessage(message);
+            } catch (RuntimeException e) {
+                LOG.error("Exception occurred while processing message [{}] of the batch", message.getMessageProperties().getMessageId(), e);
+                failedMessages.add(message);
+            }
+        }
+        return failedMessages;
+    }
+
+    protected void timedAuthenticate(final Message message) {
+        final String queue = message.getMessageProperties().getConsumerQueue();
+        final long start = metrics.start();
+        try {
+            authenticate(message);
+        } catch (RuntimeException e) {
+            metrics.record(RabbitmqMetrics.Stage.AUTHENTICATE, queue, start, false);
+            throw e;
+        }
+        metrics.record(RabbitmqMetrics.Stage.AUTHENTICATE, queue, start, true);
+    }
+
     protected void authenticate(final Message map) {
+        if (brokerIdentityAuthenticator.isEnabled()) {
+            brokerIdentityAuthenticator.authenticate(map);
+            return;
+        }
         String username = null;
         String password = null;
         MessageProperties properties = map.getMessageProperties();
@@ -70,7 +130,24 @@ public class BackendRabbitmqReceivingListener implements MessageListener{
             throw new DefaultRabbitmqPluginException("Password is empty");
         }
 
-        authenticationExtService.basicAuthenticate(username, password);
+        final RabbitmqAuthenticationCache.CachedAuthentication cachedAuthentication = authenticationCache.get(username, password);
+        if (cachedAuthentication != null) {
+            LOG.debug("Using the cached authentication of user [{}]", username);
+            SecurityContextHolder.getContext().setAuthentication(cachedAuthentication.getAuthentication());
+            // the authentication sets the domain of the user as well
+            if (cachedAuthentication.getDomain() != null) {
+                domainContextExtService.setCurrentDomain(cachedAuthentication.getDomain());
+            }
+            return;
+        }
+        try {
+            authenticationExtService.basicAuthenticate(username, password);
+        } catch (RuntimeException e) {
+            authenticationCache.invalidate(username);
+            throw e;
+        }
+        authenticationCache.put(username, password, SecurityContextHolder.getContext().getAuthentication(),
+                domainContextExtService.getCurrentDomainSafely());
     }
 
 }
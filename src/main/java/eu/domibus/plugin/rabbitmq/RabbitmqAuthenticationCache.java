@@ -0,0 +1,207 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.springframework.security.core.Authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the authentications obtained for the username/password headers of the incoming messages, with the
+ * domain of the user they were obtained in.
+ * <p>
+ * Entries are keyed on a salted SHA-256 digest of the credentials, so the passwords are never kept in memory. The
+ * salt is generated at startup. Entries expire {@code timeToLive} ms after they were cached, whether they are used or
+ * not, so that a changed or disabled user is authenticated again within that delay. The entries are kept in the order
+ * they were cached, which is the order they expire in: each put drops the expired entries from the head, then the
+ * oldest entry once {@code maxSize} entries are cached.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqAuthenticationCache {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqAuthenticationCache.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private boolean enabled = true;
+    private long timeToLive = 300000;
+    private int maxSize = 1000;
+
+    private final byte[] salt = new byte[32];
+    /**
+     * The entries in the order they were cached; guarded by itself.
+     */
+    private final Map<String, CachedAuthentication> entries = new LinkedHashMap<String, CachedAuthentication>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedAuthentication> eldest) {
+            if (size() > maxSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public RabbitmqAuthenticationCache() {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * @return the cached authentication for these credentials, or {@code null} if there is none or it expired
+     */
+    public CachedAuthentication get(final String username, final String password) {
+        if (!enabled) {
+            return null;
+        }
+        final String key = digest(username, password);
+        final CachedAuthentication cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+            if (cached != null && cached.isExpired(System.currentTimeMillis())) {
+                entries.remove(key);
+                evictions.increment();
+                misses.increment();
+                return null;
+            }
+        }
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cached;
+    }
+
+    /**
+     * @param domain the domain the authentication was obtained in, restored with it
+     */
+    public void put(final String username, final String password, final Authentication authentication, final DomainDTO domain) {
+        if (!enabled || authentication == null) {
+            return;
+        }
+        final String key = digest(username, password);
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            evictExpired(now);
+            // a renewed entry moves to the tail, with its new expiry
+            entries.remove(key);
+            entries.put(key, new CachedAuthentication(username, authentication, domain, now + timeToLive));
+        }
+    }
+
+    /**
+     * Removes all the cached authentications of a user, e.g. after the user was changed or failed to authenticate.
+     */
+    public void invalidate(final String username) {
+        LOG.debug("Invalidating the cached authentications of user [{}]", username);
+        synchronized (entries) {
+            entries.values().removeIf(cached -> cached.username.equals(username));
+        }
+    }
+
+    public void invalidateAll() {
+        LOG.debug("Invalidating all the cached authentications");
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Drops the expired entries, all at the head as they expire in the order they were cached. Called with the lock of
+     * the entries held.
+     */
+    protected void evictExpired(final long now) {
+        final Iterator<CachedAuthentication> iterator = entries.values().iterator();
+        while (iterator.hasNext() && iterator.next().isExpired(now)) {
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    protected String digest(final String username, final String password) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest.update(salt);
+            digest.update(username.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new DefaultRabbitmqPluginException("Digest algorithm [" + DIGEST_ALGORITHM + "] is not available", e);
+        }
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static final class CachedAuthentication {
+
+        private final String username;
+        private final Authentication authentication;
+        private final DomainDTO domain;
+        private final long expiresAt;
+
+        CachedAuthentication(String username, Authentication authentication, DomainDTO domain, long expiresAt) {
+            this.username = username;
+            this.authentication = authentication;
+            this.domain = domain;
+            this.expiresAt = expiresAt;
+        }
+
+        public Authentication getAuthentication() {
+            return authentication;
+        }
+
+        /**
+         * @return the domain of the user, {@code null} if none was set when authenticating
+         */
+        public DomainDTO getDomain() {
+            return domain;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.ext.services.DomibusConfigurationExtService;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Authenticates the incoming messages on the AMQP {@code user_id} property instead of the username/password headers.
+ * <p>
+ * RabbitMQ rejects any message whose {@code user_id} differs from the user the publishing connection logged in with,
+ * so the property identifies the backend as reliably as the credential headers. The broker users are mapped to
+ * Domibus authentications with {@code userMapping}, a list of {@code brokerUser=role[,originalUser[,domain]]}
+ * entries separated by semicolons, e.g.
+ * {@code backendA=ROLE_ADMIN;backendB=ROLE_USER,urn:oasis:names:tc:ebcore:partyid-type:unregistered:C1}.
+ * As for the Domibus plugin users, {@code ROLE_USER} requires the original user the backend submits for.
+ * <p>
+ * The username/password authentication sets the domain of the plugin user as well; in multitenancy every broker user
+ * is therefore mapped to the domain it submits to, e.g. {@code backendA=ROLE_ADMIN,,red}, and a broker user without a
+ * domain is rejected.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqBrokerIdentityAuthenticator {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqBrokerIdentityAuthenticator.class);
+
+    protected static final String ROLE_USER = "ROLE_USER";
+
+    @Autowired
+    protected DomainExtService domainExtService;
+
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    @Autowired
+    protected DomibusConfigurationExtService domibusConfigurationExtService;
+
+    private boolean enabled = false;
+    private Map<String, BrokerUser> brokerUsers = Collections.emptyMap();
+
+    public void authenticate(final Message message) {
+        final String userId = message.getMessageProperties().getUserId();
+        if (StringUtils.isBlank(userId)) {
+            LOG.error("The message has no user_id property");
+            throw new DefaultRabbitmqPluginException("The message has no user_id property");
+        }
+        final BrokerUser brokerUser = brokerUsers.get(userId);
+        if (brokerUser == null) {
+            LOG.error("Broker user [{}] is not mapped to a Domibus user", userId);
+            throw new DefaultRabbitmqPluginException("Broker user [" + userId + "] is not mapped to a Domibus user");
+        }
+        if (brokerUser.domainCode != null) {
+            final DomainDTO domain = domainExtService.getDomain(brokerUser.domainCode);
+            if (domain == null) {
+                LOG.error("Broker user [{}] is mapped to the unknown domain [{}]", userId, brokerUser.domainCode);
+                throw new DefaultRabbitmqPluginException("Broker user [" + userId + "] is mapped to the unknown domain [" + brokerUser.domainCode + "]");
+            }
+            domainContextExtService.setCurrentDomain(domain);
+        } else if (domibusConfigurationExtService.isMultiTenantAware()) {
+            LOG.error("Broker user [{}] is not mapped to a domain", userId);
+            throw new DefaultRabbitmqPluginException("Broker user [" + userId + "] is not mapped to a domain");
+        }
+        LOG.debug("Authenticated broker user [{}] as [{}] in domain [{}]", userId, brokerUser.authentication.getPrincipal(), brokerUser.domainCode);
+        SecurityContextHolder.getContext().setAuthentication(brokerUser.authentication);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setUserMapping(final String userMapping) {
+        final Map<String, BrokerUser> mapped = new HashMap<>();
+        for (String entry : StringUtils.split(StringUtils.defaultString(userMapping), ';')) {
+            final String brokerUser = StringUtils.trim(StringUtils.substringBefore(entry, "="));
+            final String[] values = StringUtils.splitPreserveAllTokens(StringUtils.substringAfter(entry, "="), ",", 3);
+            final String role = values.length > 0 ? StringUtils.trim(values[0]) : null;
+            final String originalUser = values.length > 1 ? StringUtils.trimToNull(values[1]) : null;
+            final String domainCode = values.length > 2 ? StringUtils.trimToNull(values[2]) : null;
+            if (StringUtils.isAnyBlank(brokerUser, role)) {
+                throw new DefaultRabbitmqPluginException("Invalid broker user mapping [" + entry + "]");
+            }
+            if (ROLE_USER.equals(role) && originalUser == null) {
+                throw new DefaultRabbitmqPluginException("Broker user [" + brokerUser + "] has role [" + ROLE_USER + "] but no original user");
+            }
+            final String principal = originalUser != null ? originalUser : brokerUser;
+            mapped.put(brokerUser, new BrokerUser(new UsernamePasswordAuthenticationToken(principal, null,
+                    Collections.singletonList(new SimpleGrantedAuthority(role))), domainCode));
+        }
+        this.brokerUsers = mapped;
+    }
+
+    protected static class BrokerUser {
+        protected final Authentication authentication;
+        protected final String domainCode;
+
+        protected BrokerUser(final Authentication authentication, final String domainCode) {
+            this.authentication = authentication;
+            this.domainCode = domainCode;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package eu.domibus.plugin.rabbitmq;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only {@link DataSource} over a {@link ByteBuffer}, e.g. a frame of a {@link RabbitmqFramedBody}, which does
+ * not copy the buffer.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqByteBufferDataSource implements DataSource {
+
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final ByteBuffer buffer;
+    private final String contentType;
+
+    public RabbitmqByteBufferDataSource(ByteBuffer buffer, String contentType) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.contentType = contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * @return the number of bytes of the buffer
+     */
+    public int getSize() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("The data source is read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return null;
+    }
+
+    protected static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
+
+/**
+ * Reassembles the payloads sent as chunk messages (see {@link RabbitmqChunkedPayloadSender}) on the incoming queue.
+ * <p>
+ * Each chunk is written at its offset in a temporary file of {@code directory}, so the chunks may be consumed in any
+ * order and the payload is never held in heap. Once all the chunks arrived and the checksum matches, the file is
+ * renamed and handed to the submission as a file-backed {@link DataHandler}. The file is deleted once the message
+ * referencing it was submitted. Transfers are tracked in memory: a transfer interrupted by a restart has to be
+ * sent again. Files older than {@code maxAge} ms are swept.
+ * <p>
+ * With several consumers, the message referencing the payloads may be consumed while its chunks are still being
+ * reassembled by the other consumers: {@link #awaitPayloads(Message)} waits for them for up to {@code awaitTimeout}
+ * ms, after which the message fails and is delivered again later. A payload whose checksum does not match is kept as a
+ * {@value #CORRUPT_FILE_SUFFIX} file, until swept, and the message referencing it fails.
+ * <p>
+ * When chunking is disabled, no directory is created, nothing is swept and the chunks received are rejected.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqChunkReassembler {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqChunkReassembler.class);
+
+    protected static final Pattern TRANSFER_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+    protected static final String PART_FILE_SUFFIX = ".part";
+    protected static final String PAYLOAD_FILE_SUFFIX = ".payload";
+    protected static final String CORRUPT_FILE_SUFFIX = ".corrupt";
+
+    private boolean enabled = false;
+    private Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "domibus-rabbitmq-chunks");
+    private long maxAge = TimeUnit.DAYS.toMillis(1);
+    private long awaitTimeout = 30000;
+
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            LOG.debug("The chunked payloads are disabled");
+            return;
+        }
+        Files.createDirectories(directory);
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-chunk-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long sweepPeriod = Math.max(1000, maxAge / 10);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepPeriod, sweepPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+    }
+
+    public void onChunk(final Message chunk) {
+        checkEnabled();
+        final MessageProperties properties = chunk.getMessageProperties();
+        final String transferId = validateTransferId(properties.getHeader(CHUNK_TRANSFER_ID));
+        final int sequence = ((Number) properties.getHeader(CHUNK_SEQUENCE)).intValue();
+        final long offset = ((Number) properties.getHeader(CHUNK_OFFSET)).longValue();
+        LOG.debug("Received chunk [{}] of payload [{}] at offset [{}]", sequence, transferId, offset);
+
+        final Transfer transfer = transfers.computeIfAbsent(transferId, Transfer::new);
+        write(partFile(transferId), chunk.getBody(), offset);
+
+        final boolean complete;
+        synchronized (transfer) {
+            if (properties.getHeader(CHUNK_TOTAL) != null) {
+                transfer.total = ((Number) properties.getHeader(CHUNK_TOTAL)).intValue();
+                transfer.checksum = properties.getHeader(CHUNK_CHECKSUM);
+            }
+            transfer.sequences.set(sequence);
+            complete = transfer.total > 0 && transfer.sequences.cardinality() == transfer.total;
+        }
+        if (complete) {
+            complete(transfer);
+        }
+    }
+
+    /**
+     * @return the reassembled payload
+     * @throws DefaultRabbitmqPluginException if the payload is not (yet) complete
+     */
+    public DataHandler getPayload(final String transferId) {
+        final Path payloadFile = payloadFile(validateTransferId(transferId));
+        if (!Files.exists(payloadFile)) {
+            checkNotCorrupt(transferId);
+            throw new DefaultRabbitmqPluginException("The chunked payload [" + transferId + "] is not complete");
+        }
+        return new DataHandler(new FileDataSource(payloadFile.toFile()));
+    }
+
+    /**
+     * Waits for the chunked payloads referenced by a message to be reassembled.
+     *
+     * @throws DefaultRabbitmqPluginException if a payload is corrupt or still not complete after {@code awaitTimeout} ms
+     */
+    public void awaitPayloads(final Message message) {
+        final long deadline = System.currentTimeMillis() + awaitTimeout;
+        for (Map.Entry<String, Object> header : message.getMessageProperties().getHeaders().entrySet()) {
+            if (header.getKey().endsWith(PAYLOAD_CHUNK_TRANSFER_ID_SUFFIX) && header.getValue() != null) {
+                checkEnabled();
+                awaitPayload(validateTransferId(header.getValue().toString().trim()), deadline);
+            }
+        }
+    }
+
+    protected void awaitPayload(final String transferId, final long deadline) {
+        final Path payloadFile = payloadFile(transferId);
+        synchronized (this) {
+            long remaining = deadline - System.currentTimeMillis();
+            while (!Files.exists(payloadFile)) {
+                checkNotCorrupt(transferId);
+                if (remaining <= 0) {
+                    throw new DefaultRabbitmqPluginException("The chunked payload [" + transferId + "] was not complete within ["
+                            + awaitTimeout + "] ms");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DefaultRabbitmqPluginException("Interrupted while waiting for the chunked payload [" + transferId + "]", e);
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    protected void checkEnabled() {
+        if (!enabled) {
+            throw new DefaultRabbitmqPluginException("The chunked payloads are disabled, set plugin.rabbitmq.chunk.enabled to receive them");
+        }
+    }
+
+    protected void checkNotCorrupt(final String transferId) {
+        if (Files.exists(corruptFile(transferId))) {
+            throw new DefaultRabbitmqPluginException("The chunked payload [" + transferId + "] is corrupt, its checksum does not match");
+        }
+    }
+
+    /**
+     * Deletes the reassembled payloads referenced by a message once it was submitted. Within a transaction the
+     * payloads are only deleted once it committed, so that a rolled back submission received again still finds them.
+     */
+    public void release(final Message message) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            delete(message);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                    delete(message);
+                }
+            }
+        });
+    }
+
+    protected void delete(final Message message) {
+        for (Map.Entry<String, Object> header : message.getMessageProperties().getHeaders().entrySet()) {
+            if (header.getKey().endsWith(PAYLOAD_CHUNK_TRANSFER_ID_SUFFIX) && header.getValue() != null) {
+                final String transferId = validateTransferId(header.getValue().toString().trim());
+                try {
+                    Files.deleteIfExists(payloadFile(transferId));
+                } catch (IOException e) {
+                    LOG.warn("Could not delete the chunked payload [{}]", transferId, e);
+                }
+            }
+        }
+    }
+
+    protected void complete(final Transfer transfer) {
+        transfers.remove(transfer.transferId);
+        final Path partFile = partFile(transfer.transferId);
+        try {
+            final String checksum = checksum(partFile);
+            if (!checksum.equals(transfer.checksum)) {
+                LOG.error("Checksum mismatch for the chunked payload [{}]: expected [{}], got [{}], keeping it as [{}]",
+                        transfer.transferId, transfer.checksum, checksum, corruptFile(transfer.transferId));
+                Files.move(partFile, corruptFile(transfer.transferId), StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.move(partFile, payloadFile(transfer.transferId), StandardCopyOption.ATOMIC_MOVE);
+                LOG.debug("Reassembled the chunked payload [{}] from [{}] chunks", transfer.transferId, transfer.total);
+            }
+        } catch (IOException e) {
+            throw new DefaultRabbitmqPluginException("Could not complete the chunked payload [" + transfer.transferId + "]", e);
+        } finally {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    protected void write(final Path file, final byte[] body, final long offset) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(body);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new DefaultRabbitmqPluginException("Could not write to [" + file + "]", e);
+        }
+    }
+
+    protected String checksum(final Path file) throws IOException {
+        final MessageDigest digest = RabbitmqChunkedPayloadSender.createDigest();
+        final byte[] buffer = new byte[8192];
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    protected void sweep() {
+        final long oldest = System.currentTimeMillis() - maxAge;
+        transfers.values().removeIf(transfer -> transfer.startedAt < oldest);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < oldest) {
+                    LOG.info("Deleting the expired chunked payload file [{}]", file);
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not sweep the chunked payload directory [{}]", directory, e);
+        }
+    }
+
+    protected String validateTransferId(final String transferId) {
+        if (transferId == null || !TRANSFER_ID_PATTERN.matcher(transferId).matches()) {
+            throw new DefaultRabbitmqPluginException("Invalid chunk transfer id [" + transferId + "]");
+        }
+        return transferId;
+    }
+
+    protected Path partFile(final String transferId) {
+        return directory.resolve(transferId + PART_FILE_SUFFIX);
+    }
+
+    protected Path payloadFile(final String transferId) {
+        return directory.resolve(transferId + PAYLOAD_FILE_SUFFIX);
+    }
+
+    protected Path corruptFile(final String transferId) {
+        return directory.resolve(transferId + CORRUPT_FILE_SUFFIX);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setDirectory(String directory) {
+        if (StringUtils.isNotBlank(directory)) {
+            this.directory = Paths.get(directory);
+        }
+    }
+
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public void setAwaitTimeout(long awaitTimeout) {
+        this.awaitTimeout = awaitTimeout;
+    }
+
+    protected static class Transfer {
+
+        private final String transferId;
+        private final long startedAt = System.currentTimeMillis();
+        private final BitSet sequences = new BitSet();
+        private int total;
+        private String checksum;
+
+        Transfer(String transferId) {
+            this.transferId = transferId;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.springframework.amqp.core.Message;
+
+import javax.activation.DataHandler;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message whose large payloads are not embedded but have to be sent as chunk messages, see
+ * {@link RabbitmqChunkedPayloadSender}. The message itself references each chunked payload with its
+ * {@code payload_N_chunkTransferId} header.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqChunkedMessage extends Message {
+
+    private final transient List<ChunkedPayload> chunkedPayloads;
+
+    public RabbitmqChunkedMessage(Message message, List<ChunkedPayload> chunkedPayloads) {
+        super(message.getBody(), message.getMessageProperties());
+        this.chunkedPayloads = Collections.unmodifiableList(chunkedPayloads);
+    }
+
+    public List<ChunkedPayload> getChunkedPayloads() {
+        return chunkedPayloads;
+    }
+
+    public static class ChunkedPayload {
+
+        private final String transferId;
+        private final DataHandler dataHandler;
+
+        public ChunkedPayload(String transferId, DataHandler dataHandler) {
+            this.transferId = transferId;
+            this.dataHandler = dataHandler;
+        }
+
+        public String getTransferId() {
+            return transferId;
+        }
+
+        public DataHandler getDataHandler() {
+            return dataHandler;
+        }
+    }
+}
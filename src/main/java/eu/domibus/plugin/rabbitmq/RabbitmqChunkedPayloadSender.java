@@ -0,0 +1,164 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.io.IOUtils;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
+
+/**
+ * Streams the payloads above {@code threshold} bytes as a sequence of chunk messages of at most {@code chunkSize}
+ * bytes, so that they are never loaded in heap as a whole nor sent as one huge AMQP message.
+ * <p>
+ * Every chunk carries the {@code chunkTransferId}, {@code chunkSequence} (starting at 1) and {@code chunkOffset}
+ * headers. The last chunk also carries {@code chunkTotal}, the number of chunks, and {@code chunkChecksum}, the
+ * Base64 SHA-256 digest of the whole payload. The chunks are sent, and confirmed, before the message referencing them.
+ * <p>
+ * At most {@code maxChunksInFlight} chunks of a payload are waiting for their confirm at a time, so that a transfer
+ * holds at most {@code maxChunksInFlight * chunkSize} bytes in heap whatever the size of the payload.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqChunkedPayloadSender {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqChunkedPayloadSender.class);
+
+    protected static final String CHECKSUM_ALGORITHM = "SHA-256";
+
+    @Autowired
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    private boolean enabled = false;
+    private long threshold = 10 * 1024 * 1024;
+    private int chunkSize = 1024 * 1024;
+    private int maxChunksInFlight = 4;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean exceedsThreshold(final DataHandler dataHandler) throws IOException {
+        return isLargerThan(dataHandler, threshold);
+    }
+
+    /**
+     * @return whether the payload is larger than {@code size} bytes; the length of the files and buffers is used as is,
+     * at most {@code size + 1} bytes of the other payloads are read
+     */
+    protected static boolean isLargerThan(final DataHandler dataHandler, final long size) throws IOException {
+        if (dataHandler.getDataSource() instanceof FileDataSource) {
+            return ((FileDataSource) dataHandler.getDataSource()).getFile().length() > size;
+        }
+        if (dataHandler.getDataSource() instanceof RabbitmqByteBufferDataSource) {
+            return ((RabbitmqByteBufferDataSource) dataHandler.getDataSource()).getSize() > size;
+        }
+        try (InputStream inputStream = dataHandler.getInputStream()) {
+            return IOUtils.skip(inputStream, size + 1) > size;
+        }
+    }
+
+    /**
+     * Sends the chunks of all the payloads of the message and waits for their confirms.
+     */
+    public void sendChunks(final Address address, final RabbitmqChunkedMessage message) {
+        for (RabbitmqChunkedMessage.ChunkedPayload chunkedPayload : message.getChunkedPayloads()) {
+            sendChunks(address, chunkedPayload, message.getMessageProperties().getPriority());
+        }
+    }
+
+    /**
+     * @param priority the priority of the message referencing the chunks, so that they are not consumed after it
+     */
+    protected void sendChunks(final Address address, final RabbitmqChunkedMessage.ChunkedPayload chunkedPayload, final Integer priority) {
+        final MessageDigest digest = createDigest();
+        final Deque<CompletableFuture<Void>> confirmations = new ArrayDeque<>(maxChunksInFlight);
+        try (InputStream inputStream = chunkedPayload.getDataHandler().getInputStream()) {
+            int sequence = 0;
+            long offset = 0;
+            byte[] chunk = readChunk(inputStream);
+            while (chunk != null) {
+                // read ahead to know whether this is the last chunk
+                final byte[] nextChunk = readChunk(inputStream);
+                sequence++;
+                digest.update(chunk);
+
+                final MessageProperties properties = new MessageProperties();
+                properties.setHeader(RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, MESSAGE_TYPE_PAYLOAD_CHUNK);
+                properties.setHeader(CHUNK_TRANSFER_ID, chunkedPayload.getTransferId());
+                properties.setHeader(CHUNK_SEQUENCE, sequence);
+                properties.setHeader(CHUNK_OFFSET, offset);
+                properties.setPriority(priority);
+                if (nextChunk == null) {
+                    properties.setHeader(CHUNK_TOTAL, sequence);
+                    properties.setHeader(CHUNK_CHECKSUM, Base64.getEncoder().encodeToString(digest.digest()));
+                }
+                if (confirmations.size() >= maxChunksInFlight) {
+                    rabbitmqPublisher.awaitConfirm(confirmations.poll(), address);
+                }
+                confirmations.add(rabbitmqPublisher.publish(address, new Message(chunk, properties)));
+
+                offset += chunk.length;
+                chunk = nextChunk;
+            }
+            // waits for the confirms: the message referencing the payload is only sent once all its chunks are queued
+            for (CompletableFuture<Void> confirmation : confirmations) {
+                rabbitmqPublisher.awaitConfirm(confirmation, address);
+            }
+            LOG.debug("Sent payload [{}] as [{}] chunks of [{}] bytes in total", chunkedPayload.getTransferId(), sequence, offset);
+        } catch (IOException e) {
+            throw new DefaultRabbitmqPluginException("Could not read the payload [" + chunkedPayload.getTransferId() + "]", e);
+        }
+    }
+
+    /**
+     * @return the next chunk, or {@code null} at the end of the stream
+     */
+    protected byte[] readChunk(final InputStream inputStream) throws IOException {
+        final byte[] buffer = new byte[chunkSize];
+        final int read = IOUtils.read(inputStream, buffer);
+        if (read == 0) {
+            return null;
+        }
+        return read < chunkSize ? Arrays.copyOf(buffer, read) : buffer;
+    }
+
+    protected static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new DefaultRabbitmqPluginException("Digest algorithm [" + CHECKSUM_ALGORITHM + "] is not available", e);
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setThreshold(long threshold) {
+        this.threshold = threshold;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public void setMaxChunksInFlight(int maxChunksInFlight) {
+        this.maxChunksInFlight = Math.max(1, maxChunksInFlight);
+    }
+}
@@ -0,0 +1,242 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of consumers and the prefetch of the incoming queue listener containers to the load.
+ * <p>
+ * Every {@code interval} ms the depth of the incoming queue is sampled through {@link AmqpAdmin}, together with the
+ * mean submit latency since the previous sample (from the {@code submit} stage timer) and the number of messages
+ * waiting for a publisher confirm:
+ * <ul>
+ * <li>when the submit latency exceeds {@code maxSubmitLatency} ms or more than {@code maxPublisherInFlight} messages
+ * wait for a confirm, Domibus or the broker is the bottleneck and a consumer is removed;</li>
+ * <li>otherwise, when more than {@code scaleUpDepth} messages per consumer are waiting, a consumer is added;</li>
+ * <li>when the queue is drained, a consumer is removed.</li>
+ * </ul>
+ * The consumers stay within {@code minConsumers} and {@code maxConsumers}. The prefetch is doubled with each consumer
+ * added and halved with each one removed, within {@code minPrefetch} and {@code maxPrefetch}; it applies to the
+ * consumers started afterwards. The containers are expected to start with {@code minConsumers} and {@code minPrefetch}
+ * and without a maximum concurrency, so that they do not scale on their own; only the running ones are adjusted.
+ * <p>
+ * The decisions are counted by the {@code rabbitmq.plugin.concurrency.decisions} counter and the current consumers,
+ * prefetch and queue depth are exposed as gauges.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqConcurrencyController {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqConcurrencyController.class);
+
+    protected static final String DECISIONS_COUNTER = "rabbitmq.plugin.concurrency.decisions";
+
+    /**
+     * The outcome of a sample.
+     */
+    public enum Decision {
+        SCALE_UP, SCALE_DOWN, HOLD
+    }
+
+    @Autowired
+    protected AmqpAdmin amqpAdmin;
+
+    @Autowired
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Autowired
+    protected RabbitmqMetrics metrics;
+
+    private List<AbstractMessageListenerContainer> containers = Collections.emptyList();
+    private boolean enabled = false;
+    private String queueName;
+    private long interval = 5000;
+    private int minConsumers = 1;
+    private int maxConsumers = 10;
+    private int minPrefetch = 10;
+    private int maxPrefetch = 250;
+    private int scaleUpDepth = 100;
+    private long maxSubmitLatency = 2000;
+    private int maxPublisherInFlight = 500;
+
+    private volatile int consumers;
+    private volatile int prefetch;
+    private volatile long queueDepth;
+    private long lastSubmitCount;
+    private double lastSubmitTotalMillis;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        consumers = minConsumers;
+        prefetch = minPrefetch;
+        if (!enabled) {
+            return;
+        }
+        final MeterRegistry meterRegistry = metrics.getMeterRegistry();
+        Gauge.builder("rabbitmq.plugin.concurrency.consumers", this, RabbitmqConcurrencyController::getConsumers).register(meterRegistry);
+        Gauge.builder("rabbitmq.plugin.concurrency.prefetch", this, RabbitmqConcurrencyController::getPrefetch).register(meterRegistry);
+        Gauge.builder("rabbitmq.plugin.concurrency.queueDepth", this, RabbitmqConcurrencyController::getQueueDepth).register(meterRegistry);
+
+        LOG.info("Adapting the consumers of [{}] between [{}] and [{}] every [{}] ms", queueName, minConsumers, maxConsumers, interval);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-concurrency-controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    protected void sample() {
+        try {
+            final QueueInformation queueInformation = amqpAdmin.getQueueInfo(queueName);
+            if (queueInformation == null) {
+                LOG.warn("The queue [{}] does not exist, the consumers are not adapted", queueName);
+                return;
+            }
+            queueDepth = queueInformation.getMessageCount();
+            final Decision decision = decide(queueDepth, getSubmitLatencySinceLastSample(), rabbitmqPublisher.getInFlight());
+            Counter.builder(DECISIONS_COUNTER).tag("decision", decision.name().toLowerCase()).register(metrics.getMeterRegistry()).increment();
+            if (decision == Decision.SCALE_UP) {
+                apply(consumers + 1, Math.min(maxPrefetch, prefetch * 2));
+            } else if (decision == Decision.SCALE_DOWN) {
+                apply(consumers - 1, Math.max(minPrefetch, prefetch / 2));
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Could not adapt the consumers of [{}]", queueName, e);
+        }
+    }
+
+    /**
+     * @param depth               the number of messages waiting in the incoming queue
+     * @param submitLatencyMillis the mean submit latency since the previous sample, negative if nothing was submitted
+     * @param publisherInFlight   the number of messages waiting for a publisher confirm
+     */
+    protected Decision decide(long depth, double submitLatencyMillis, int publisherInFlight) {
+        if (submitLatencyMillis > maxSubmitLatency || publisherInFlight > maxPublisherInFlight) {
+            LOG.debug("Submit latency [{}] ms, [{}] messages waiting for a confirm: backing off", submitLatencyMillis, publisherInFlight);
+            return consumers > minConsumers ? Decision.SCALE_DOWN : Decision.HOLD;
+        }
+        if (depth > (long) scaleUpDepth * consumers) {
+            return consumers < maxConsumers ? Decision.SCALE_UP : Decision.HOLD;
+        }
+        if (depth == 0) {
+            return consumers > minConsumers ? Decision.SCALE_DOWN : Decision.HOLD;
+        }
+        return Decision.HOLD;
+    }
+
+    protected double getSubmitLatencySinceLastSample() {
+        long count = 0;
+        double totalMillis = 0;
+        for (Timer timer : metrics.getMeterRegistry().find(RabbitmqMetrics.STAGE_TIMER)
+                .tag(RabbitmqMetrics.TAG_STAGE, RabbitmqMetrics.Stage.SUBMIT.getTag()).timers()) {
+            count += timer.count();
+            totalMillis += timer.totalTime(TimeUnit.MILLISECONDS);
+        }
+        final long submitted = count - lastSubmitCount;
+        final double latency = submitted > 0 ? (totalMillis - lastSubmitTotalMillis) / submitted : -1;
+        lastSubmitCount = count;
+        lastSubmitTotalMillis = totalMillis;
+        return latency;
+    }
+
+    protected void apply(int newConsumers, int newPrefetch) {
+        LOG.info("Setting [{}] consumers with a prefetch of [{}] on [{}] (queue depth [{}])", newConsumers, newPrefetch, queueName, queueDepth);
+        for (AbstractMessageListenerContainer container : containers) {
+            if (!container.isRunning()) {
+                continue;
+            }
+            container.setPrefetchCount(newPrefetch);
+            if (container instanceof DirectMessageListenerContainer) {
+                ((DirectMessageListenerContainer) container).setConsumersPerQueue(newConsumers);
+            } else if (container instanceof SimpleMessageListenerContainer) {
+                ((SimpleMessageListenerContainer) container).setConcurrentConsumers(newConsumers);
+            }
+        }
+        consumers = newConsumers;
+        prefetch = newPrefetch;
+    }
+
+    public int getConsumers() {
+        return consumers;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setContainers(List<AbstractMessageListenerContainer> containers) {
+        this.containers = containers;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setQueueName(String queueName) {
+        this.queueName = queueName;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public void setMinConsumers(int minConsumers) {
+        this.minConsumers = minConsumers;
+    }
+
+    public void setMaxConsumers(int maxConsumers) {
+        this.maxConsumers = maxConsumers;
+    }
+
+    public void setMinPrefetch(int minPrefetch) {
+        this.minPrefetch = minPrefetch;
+    }
+
+    public void setMaxPrefetch(int maxPrefetch) {
+        this.maxPrefetch = maxPrefetch;
+    }
+
+    public void setScaleUpDepth(int scaleUpDepth) {
+        this.scaleUpDepth = scaleUpDepth;
+    }
+
+    public void setMaxSubmitLatency(long maxSubmitLatency) {
+        this.maxSubmitLatency = maxSubmitLatency;
+    }
+
+    public void setMaxPublisherInFlight(int maxPublisherInFlight) {
+        this.maxPublisherInFlight = maxPublisherInFlight;
+    }
+}
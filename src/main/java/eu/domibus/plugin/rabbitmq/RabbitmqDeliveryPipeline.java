@@ -0,0 +1,315 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics.Stage;
+import io.micrometer.core.instrument.Gauge;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staged pipeline of the deliveries: the message downloaded by the notification listener thread is transformed by one
+ * of the {@code transformThreads} threads, then published by the publishing thread together with the other deliveries
+ * ready at that time, up to {@code batchSize} messages on a single channel.
+ * <p>
+ * The stages are separated by queues of {@code queueCapacity} deliveries: when the transform queue is full, the
+ * notification listener thread transforms the message itself; when the publish queue is full, the transform threads
+ * wait. The notification listener thread waits for the broker to confirm its message, for at most
+ * {@code deliveryTimeout} ms, so that the notification is only acknowledged once the message is safely queued.
+ * <p>
+ * A delivery that times out before the publishing thread took it is cancelled and never published. A delivery known
+ * not to be published fails with an {@link UnsentDeliveryException}; any other failure leaves it unknown whether the
+ * broker received the message.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqDeliveryPipeline {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqDeliveryPipeline.class);
+
+    @Autowired
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    @Autowired
+    protected RabbitmqMetrics metrics;
+
+    private boolean enabled = false;
+    private int transformThreads = 4;
+    private int queueCapacity = 100;
+    private int batchSize = 50;
+    private long deliveryTimeout = 150000;
+
+    private ThreadPoolExecutor transformExecutor;
+    private BlockingQueue<PendingDelivery> publishQueue;
+    private Thread publishThread;
+    private volatile boolean running;
+
+    /**
+     * A message transformed and routed, ready to be published.
+     */
+    public static final class Delivery {
+
+        private final Address address;
+        private final Message message;
+
+        public Delivery(Address address, Message message) {
+            this.address = address;
+            this.message = message;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Failure of a delivery that was not published: its transform failed, it was cancelled before being published or
+     * the broker did not confirm it.
+     */
+    public static class UnsentDeliveryException extends DefaultRabbitmqPluginException {
+
+        public UnsentDeliveryException(String message, Exception e) {
+            super(message, e);
+        }
+    }
+
+    /**
+     * Completion of a delivery, claimed either by the publishing thread or by the caller cancelling it on timeout.
+     */
+    private static final class Ticket {
+
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private final AtomicBoolean claimed = new AtomicBoolean();
+    }
+
+    private static final class PendingDelivery {
+
+        private final Delivery delivery;
+        private final Ticket ticket;
+        private final long queuedAt;
+        /**
+         * The domain of the delivery, captured on the transform thread as the confirm thread has none.
+         */
+        private final String domainCode;
+
+        PendingDelivery(Delivery delivery, Ticket ticket, long queuedAt, String domainCode) {
+            this.delivery = delivery;
+            this.ticket = ticket;
+            this.queuedAt = queuedAt;
+            this.domainCode = domainCode;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        transformExecutor = new ThreadPoolExecutor(transformThreads, transformThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "rabbitmq-delivery-transform-" + threadCount.incrementAndGet()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        publishQueue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        publishThread = new Thread(this::publishLoop, "rabbitmq-delivery-publish");
+        publishThread.start();
+        Gauge.builder("rabbitmq.plugin.delivery.transformQueue", transformExecutor, executor -> executor.getQueue().size())
+                .register(metrics.getMeterRegistry());
+        Gauge.builder("rabbitmq.plugin.delivery.publishQueue", publishQueue, BlockingQueue::size)
+                .register(metrics.getMeterRegistry());
+        LOG.info("Delivering through a pipeline of [{}] transform threads and batches of up to [{}] messages", transformThreads, batchSize);
+    }
+
+    /**
+     * Stops taking deliveries, then publishes the ones already transformed.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        transformExecutor.shutdown();
+        try {
+            transformExecutor.awaitTermination(deliveryTimeout, TimeUnit.MILLISECONDS);
+            running = false;
+            publishThread.join(deliveryTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs {@code transform} on a transform thread, in the current domain, then publishes the resulting delivery and
+     * waits for the broker to confirm it.
+     *
+     * @param destination the address used in the error messages
+     */
+    public void deliver(final Address destination, final Callable<Delivery> transform) {
+        if (transformExecutor.isShutdown()) {
+            throw new DefaultRabbitmqPluginException("The delivery pipeline is stopped, could not deliver a message to [" + destination + "]");
+        }
+        final DomainDTO domain = domainContextExtService.getCurrentDomain();
+        final Thread caller = Thread.currentThread();
+        final Ticket ticket = new Ticket();
+        transformExecutor.execute(() -> transform(domain, transform, ticket, Thread.currentThread() != caller));
+        try {
+            ticket.completion.get(deliveryTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cancel(ticket, "Interrupted while delivering a message to [" + destination + "]", e);
+        } catch (ExecutionException e) {
+            final Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            throw new UnsentDeliveryException("Could not deliver a message to [" + destination + "]: " + cause.getMessage(), cause);
+        } catch (TimeoutException e) {
+            throw cancel(ticket, "The message to [" + destination + "] was not delivered within [" + deliveryTimeout + "] ms", e);
+        }
+    }
+
+    /**
+     * Cancels a delivery the publishing thread did not take yet.
+     *
+     * @return an {@link UnsentDeliveryException} if the delivery was cancelled, else an exception leaving the outcome
+     * unknown
+     */
+    private DefaultRabbitmqPluginException cancel(final Ticket ticket, final String message, final Exception e) {
+        if (ticket.claimed.compareAndSet(false, true)) {
+            ticket.completion.cancel(false);
+            return new UnsentDeliveryException(message, e);
+        }
+        return new DefaultRabbitmqPluginException(message + ", it may still be confirmed", e);
+    }
+
+    /**
+     * @param transformThread {@code false} when the transform queue is full and the notification listener thread,
+     *                        already in the domain, runs the transform itself
+     */
+    private void transform(final DomainDTO domain, final Callable<Delivery> transform, final Ticket ticket,
+                           final boolean transformThread) {
+        if (ticket.claimed.get()) {
+            // cancelled while waiting for a transform thread
+            return;
+        }
+        if (transformThread) {
+            domainContextExtService.setCurrentDomain(domain);
+        }
+        try {
+            final Delivery delivery = transform.call();
+            publishQueue.put(new PendingDelivery(delivery, ticket, metrics.start(), domain == null ? null : domain.getCode()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ticket.completion.completeExceptionally(e);
+        } catch (Exception e) {
+            ticket.completion.completeExceptionally(e);
+        } finally {
+            if (transformThread) {
+                domainContextExtService.clearCurrentDomain();
+            }
+        }
+    }
+
+    private void publishLoop() {
+        final List<PendingDelivery> batch = new ArrayList<>(batchSize);
+        while (running || !publishQueue.isEmpty()) {
+            try {
+                final PendingDelivery first = publishQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                publishQueue.drainTo(batch, batchSize - 1);
+                // the deliveries cancelled by their caller are not published
+                batch.removeIf(pendingDelivery -> !pendingDelivery.ticket.claimed.compareAndSet(false, true));
+                if (!batch.isEmpty()) {
+                    publish(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOG.error("Could not publish a batch of [{}] deliveries", batch.size(), e);
+                batch.forEach(pendingDelivery -> pendingDelivery.ticket.completion.completeExceptionally(e));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void publish(final List<PendingDelivery> batch) {
+        final List<Address> addresses = new ArrayList<>(batch.size());
+        final List<Message> messages = new ArrayList<>(batch.size());
+        for (PendingDelivery pendingDelivery : batch) {
+            addresses.add(pendingDelivery.delivery.getAddress());
+            messages.add(pendingDelivery.delivery.getMessage());
+        }
+        LOG.debug("Publishing a batch of [{}] deliveries", batch.size());
+        final List<CompletableFuture<Void>> confirmations = rabbitmqPublisher.publishBatch(addresses, messages);
+        for (int i = 0; i < batch.size(); i++) {
+            final PendingDelivery pendingDelivery = batch.get(i);
+            final String queue = pendingDelivery.delivery.getAddress().getRoutingKey();
+            confirmations.get(i).whenComplete((result, failure) -> {
+                // the delivery is completed first, so that a failing measurement cannot hold it until its timeout
+                if (failure != null) {
+                    pendingDelivery.ticket.completion.completeExceptionally(failure);
+                } else {
+                    pendingDelivery.ticket.completion.complete(null);
+                }
+                try {
+                    metrics.record(Stage.PUBLISH, pendingDelivery.domainCode, queue, pendingDelivery.queuedAt, failure == null);
+                } catch (RuntimeException e) {
+                    LOG.warn("Could not record the publishing of a delivery to [{}]", queue, e);
+                }
+            });
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setTransformThreads(int transformThreads) {
+        this.transformThreads = transformThreads;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setDeliveryTimeout(long deliveryTimeout) {
+        this.deliveryTimeout = deliveryTimeout;
+    }
+}
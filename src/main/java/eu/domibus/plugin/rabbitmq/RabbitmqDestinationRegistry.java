@@ -0,0 +1,206 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.exceptions.DomibusPropertyExtException;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.ext.services.DomibusPropertyExtService;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Queue;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_CONSUMER_NOTIFICATION_ERROR;
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_OUT;
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_PRODUCER_NOTIFICATION_ERROR;
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_REPLY;
+
+/**
+ * Caches, per domain, the addresses of the reply, out and notification error queues so that publishing does not
+ * resolve any property. The queues of the resolved domains, bound to the routing exchange of the
+ * {@link RabbitmqDomainRoutingTopology} when it is enabled, are exposed by {@link #getDeclarables()}, so that the admin
+ * declares them whenever it connects to the broker. In the {@code lanes} mode of the {@link RabbitmqPriorityClassifier},
+ * the lane queues of {@code queue.out}, {@code <queue.out>.<lane>}, are resolved with them, under the
+ * {@code <queue.out property>.<lane>} queue property.
+ * <p>
+ * The addresses of the {@code warmUpDomains} (comma separated domain codes) are resolved at startup, without
+ * connecting to the broker; the queues of the other domains are declared as soon as their addresses are resolved. The
+ * addresses of a domain are resolved again after one of its queue properties was changed through the property manager.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqDestinationRegistry {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqDestinationRegistry.class);
+
+    protected static final String[] QUEUE_PROPERTIES = {
+            RABBITMQ_PLUGIN_QUEUE_REPLY, RABBITMQ_PLUGIN_QUEUE_OUT,
+            RABBITMQ_PLUGIN_QUEUE_CONSUMER_NOTIFICATION_ERROR, RABBITMQ_PLUGIN_QUEUE_PRODUCER_NOTIFICATION_ERROR
+    };
+
+    @Autowired
+    protected DomibusPropertyExtService domibusPropertyExtService;
+
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    @Autowired
+    protected DomainExtService domainExtService;
+
+    @Autowired
+    protected AmqpAdmin amqpAdmin;
+
+    @Autowired
+    protected RabbitmqPriorityClassifier priorityClassifier;
+
+    @Autowired
+    protected RabbitmqDomainRoutingTopology domainRoutingTopology;
+
+    private String warmUpDomains = "default";
+
+    private final Map<String, Destinations> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * The queues and bindings of all the resolved domains, read by the admin each time it connects.
+     */
+    private final Declarables declarables = new Declarables(Collections.emptyList()) {
+        @Override
+        public Collection<Declarable> getDeclarables() {
+            return destinations.values().stream()
+                    .flatMap(domainDestinations -> domainDestinations.declarables.stream())
+                    .collect(Collectors.toList());
+        }
+    };
+
+    @PostConstruct
+    public void warmUp() {
+        for (String domainCode : StringUtils.split(warmUpDomains, ',')) {
+            try {
+                final DomainDTO domain = domainExtService.getDomain(domainCode.trim());
+                destinations.putIfAbsent(domain.getCode(), resolve(domain));
+            } catch (RuntimeException e) {
+                LOG.warn("Could not resolve the queues of domain [{}]", domainCode, e);
+            }
+        }
+    }
+
+    /**
+     * @return the queues and bindings of the resolved domains, to be exposed as a bean
+     */
+    public Declarables getDeclarables() {
+        return declarables;
+    }
+
+    /**
+     * @param queueProperty the name of the queue property, e.g. {@code plugin.rabbitmq.queue.reply}
+     * @return the address of the queue in the current domain
+     */
+    public Address getAddress(String queueProperty) {
+        final Address address = getAddresses(domainContextExtService.getCurrentDomain()).get(queueProperty);
+        if (address == null) {
+            throw new DomibusPropertyExtException("Error getting the queue [" + queueProperty + "]");
+        }
+        return address;
+    }
+
+    public Map<String, Address> getAddresses(DomainDTO domain) {
+        final Destinations domainDestinations = destinations.get(domain.getCode());
+        if (domainDestinations != null) {
+            return domainDestinations.addresses;
+        }
+        // resolved and declared outside of the map, so that a slow broker does not block the lookups of the other
+        // domains; the queues of a domain may then be declared twice, which the broker ignores
+        final Destinations declared = declare(resolve(domain));
+        final Destinations previous = destinations.putIfAbsent(domain.getCode(), declared);
+        return previous != null ? previous.addresses : declared.addresses;
+    }
+
+    public void invalidate(String domainCode) {
+        LOG.debug("Invalidating the queues of domain [{}]", domainCode);
+        destinations.remove(domainCode);
+    }
+
+    protected Destinations resolve(DomainDTO domain) {
+        final Map<String, Address> resolved = new HashMap<>();
+        final List<Declarable> domainDeclarables = new ArrayList<>();
+        for (String queueProperty : QUEUE_PROPERTIES) {
+            final String queueName = domibusPropertyExtService.getDomainProperty(domain, queueProperty);
+            if (StringUtils.isEmpty(queueName)) {
+                throw new DomibusPropertyExtException("Error getting the queue [" + queueProperty + "]");
+            }
+            if (!RABBITMQ_PLUGIN_QUEUE_OUT.equals(queueProperty)) {
+                resolve(domain, queueProperty, queueName, Collections.emptyMap(), resolved, domainDeclarables);
+                continue;
+            }
+            // queue.out holds the priorities of the deliveries, if any
+            resolve(domain, queueProperty, queueName, priorityClassifier.getQueueArguments(), resolved, domainDeclarables);
+            for (String lane : priorityClassifier.getQueueLanes()) {
+                resolve(domain, RabbitmqPriorityClassifier.getLaneQueueProperty(queueProperty, lane), queueName + "." + lane,
+                        Collections.emptyMap(), resolved, domainDeclarables);
+            }
+        }
+        LOG.info("Resolved the queues of domain [{}]: [{}]", domain.getCode(), resolved);
+        return new Destinations(Collections.unmodifiableMap(resolved), domainDeclarables);
+    }
+
+    /**
+     * Resolves the address of a queue, bound to the routing exchange when it is enabled.
+     */
+    protected void resolve(DomainDTO domain, String queueProperty, String queueName, Map<String, Object> arguments,
+                           Map<String, Address> resolved, List<Declarable> domainDeclarables) {
+        if (domainRoutingTopology.isEnabled()) {
+            resolved.put(queueProperty, domainRoutingTopology.declare(domain, queueProperty, queueName, arguments, domainDeclarables));
+            return;
+        }
+        domainDeclarables.add(new Queue(queueName, true, false, false, arguments));
+        resolved.put(queueProperty, new Address(StringUtils.EMPTY, queueName));
+    }
+
+    /**
+     * Declares the queues of a domain resolved while the plugin runs, the admin having possibly connected already.
+     */
+    protected Destinations declare(Destinations domainDestinations) {
+        for (Declarable declarable : domainDestinations.declarables) {
+            if (declarable instanceof Queue) {
+                amqpAdmin.declareQueue((Queue) declarable);
+            } else if (declarable instanceof Binding) {
+                amqpAdmin.declareBinding((Binding) declarable);
+            }
+        }
+        return domainDestinations;
+    }
+
+    public void setWarmUpDomains(String warmUpDomains) {
+        this.warmUpDomains = warmUpDomains;
+    }
+
+    /**
+     * The addresses of the queues of a domain, by queue property, and their declarations.
+     */
+    protected static final class Destinations {
+
+        private final Map<String, Address> addresses;
+        private final List<Declarable> declarables;
+
+        Destinations(Map<String, Address> addresses, List<Declarable> declarables) {
+            this.addresses = addresses;
+            this.declarables = declarables;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.aopalliance.aop.Advice;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.TopicExchange;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.RABBITMQ_PLUGIN_PROPERTY_PREFIX;
+
+/**
+ * Optional exchange-based routing topology isolating the domains of a multitenant MSH: instead of publishing to the
+ * default exchange, the plugin publishes to the topic exchange {@code exchangeName} with the routing key
+ * {@code <domain>.<type>}, {@code <type>} being the name of the queue property without its {@code queue.} prefix, e.g.
+ * {@code red.out}, {@code red.out.urgent} or {@code red.reply}. Each domain has its own queues, named
+ * {@code <queue>.<domain>} and declared lazily with the {@code queueMode}, {@code maxLength}, {@code overflow} and
+ * {@code messageTtl} arguments, so that the backlog of one domain does not delay the others. A queue with a
+ * {@code maxLength} rejects the publishes once full ({@code reject-publish}) unless another {@code overflow} is set, so
+ * that a full queue does not silently drop its oldest messages.
+ * <p>
+ * The submissions of the {@code domains} are consumed from their own {@code <queue.in>.<domain>} queue, bound with the
+ * {@code <domain>.in} routing key, by a listener container per domain running in the context of its domain, with the
+ * {@code adviceChain} of the incoming queue such as the delayed retries. Like the incoming queue, the per-domain queues
+ * are consumed in batches by the {@code batchListener} when one is set, else through the {@code keyedDispatcher} by a
+ * single consumer when one is set. The exchange and these queues are exposed by {@link #getDeclarables()}, to be
+ * declared again by the admin whenever the connection is recovered. The incoming queue itself is still consumed, for
+ * the clients that do not publish to the exchange.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqDomainRoutingTopology implements SmartLifecycle {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqDomainRoutingTopology.class);
+
+    protected static final String QUEUE_PROPERTY_PREFIX = RABBITMQ_PLUGIN_PROPERTY_PREFIX + ".queue.";
+    protected static final String INCOMING_TYPE = "in";
+    protected static final String OVERFLOW_REJECT_PUBLISH = "reject-publish";
+
+    @Autowired
+    protected DomainExtService domainExtService;
+
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    private ConnectionFactory connectionFactory;
+    private MessageListener messageListener;
+    private RabbitmqKeyedDispatcher keyedDispatcher;
+    private ChannelAwareBatchMessageListener batchListener;
+    private int batchSize = 50;
+    private long batchTimeout = 100;
+    private Advice[] adviceChain = new Advice[0];
+    private boolean enabled = false;
+    private String exchangeName;
+    private String incomingQueueName;
+    private String domains = "default";
+    private int consumersPerDomain = 1;
+    private int prefetchCount = 10;
+    private String queueMode;
+    private long maxLength = 0;
+    private String overflow;
+    private long messageTtl = 0;
+
+    private TopicExchange exchange;
+    private final List<Declarable> declarables = new ArrayList<>();
+    private final List<SimpleMessageListenerContainer> containers = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        exchange = new TopicExchange(exchangeName);
+        declarables.add(exchange);
+
+        for (String domainCode : StringUtils.split(domains, ',')) {
+            final DomainDTO domain = domainExtService.getDomain(domainCode.trim());
+            final String queueName = bind(domain, INCOMING_TYPE, incomingQueueName, new HashMap<>(), declarables);
+            containers.add(createContainer(domain, queueName));
+            LOG.debug("Created the listener container of domain [{}] on the queue [{}]", domain.getCode(), queueName);
+        }
+        LOG.info("Routing the queues of the domains [{}] through the exchange [{}]", domains, exchangeName);
+    }
+
+    protected SimpleMessageListenerContainer createContainer(final DomainDTO domain, final String queueName) {
+        final SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(queueName);
+        if (batchListener != null) {
+            container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+            container.setConsumerBatchEnabled(true);
+            container.setBatchSize(batchSize);
+            container.setPrefetchCount(batchSize);
+            container.setReceiveTimeout(batchTimeout);
+            container.setConcurrentConsumers(consumersPerDomain);
+            container.setMessageListener((ChannelAwareBatchMessageListener) (messages, channel) ->
+                    runInDomain(domain, () -> batchListener.onMessageBatch(messages, channel)));
+        } else if (keyedDispatcher != null) {
+            // the order of a key only holds with a single consumer
+            container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+            container.setPrefetchCount(prefetchCount);
+            container.setConcurrentConsumers(1);
+            container.setMessageListener((ChannelAwareMessageListener) (message, channel) ->
+                    keyedDispatcher.dispatch(message, channel, domain));
+        } else {
+            container.setPrefetchCount(prefetchCount);
+            container.setConcurrentConsumers(consumersPerDomain);
+            container.setMessageListener(message -> runInDomain(domain, () -> messageListener.onMessage(message)));
+        }
+        container.setAdviceChain(adviceChain);
+        container.setAutoStartup(false);
+        container.afterPropertiesSet();
+        return container;
+    }
+
+    protected void runInDomain(final DomainDTO domain, final Runnable runnable) {
+        domainContextExtService.setCurrentDomain(domain);
+        try {
+            runnable.run();
+        } finally {
+            domainContextExtService.clearCurrentDomain();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        containers.forEach(SimpleMessageListenerContainer::destroy);
+    }
+
+    /**
+     * @return the exchange, the incoming queues of the domains and their bindings, none when the topology is disabled
+     */
+    public Declarables getDeclarables() {
+        return new Declarables(declarables);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Defines the queue of a domain and its binding to the exchange, to be declared by the caller.
+     *
+     * @param queueProperty the name of the queue property, e.g. {@code plugin.rabbitmq.queue.out}
+     * @param queueName     the name of the queue, suffixed by the domain code
+     * @param arguments     the arguments of the queue, completed by the configured ones
+     * @param declarables   the list to which the queue and its binding are added
+     * @return the address to publish to the queue of the domain
+     */
+    public Address declare(DomainDTO domain, String queueProperty, String queueName, Map<String, Object> arguments,
+                           List<Declarable> declarables) {
+        final String type = getType(queueProperty);
+        bind(domain, type, queueName, new HashMap<>(arguments), declarables);
+        return new Address(exchangeName, domain.getCode() + "." + type);
+    }
+
+    /**
+     * @return the name of the queue of the domain
+     */
+    protected String bind(DomainDTO domain, String type, String queueName, Map<String, Object> arguments,
+                          List<Declarable> declarables) {
+        final String domainQueueName = getDomainQueueName(queueName, domain.getCode());
+        final String routingKey = domain.getCode() + "." + type;
+        arguments.putAll(getQueueArguments());
+        final Queue queue = new Queue(domainQueueName, true, false, false, arguments);
+        declarables.add(queue);
+        declarables.add(BindingBuilder.bind(queue).to(exchange).with(routingKey));
+        LOG.debug("Bound the queue [{}] to the exchange [{}] with the routing key [{}]", domainQueueName, exchangeName, routingKey);
+        return domainQueueName;
+    }
+
+    public static String getDomainQueueName(String queueName, String domainCode) {
+        return queueName + "." + domainCode;
+    }
+
+    protected static String getType(String queueProperty) {
+        return StringUtils.removeStart(queueProperty, QUEUE_PROPERTY_PREFIX);
+    }
+
+    protected Map<String, Object> getQueueArguments() {
+        final Map<String, Object> arguments = new HashMap<>();
+        if (StringUtils.isNotEmpty(queueMode)) {
+            arguments.put("x-queue-mode", queueMode);
+        }
+        if (maxLength > 0) {
+            arguments.put("x-max-length", maxLength);
+        }
+        if (maxLength > 0) {
+            arguments.put("x-overflow", StringUtils.defaultIfEmpty(overflow, OVERFLOW_REJECT_PUBLISH));
+        } else if (StringUtils.isNotEmpty(overflow)) {
+            arguments.put("x-overflow", overflow);
+        }
+        if (messageTtl > 0) {
+            arguments.put("x-message-ttl", messageTtl);
+        }
+        return arguments;
+    }
+
+    @Override
+    public void start() {
+        containers.forEach(SimpleMessageListenerContainer::start);
+    }
+
+    @Override
+    public void stop() {
+        containers.forEach(SimpleMessageListenerContainer::stop);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return containers.stream().anyMatch(SimpleMessageListenerContainer::isRunning);
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return enabled;
+    }
+
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+
+    public List<SimpleMessageListenerContainer> getContainers() {
+        return containers;
+    }
+
+    public void setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    public void setMessageListener(MessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    public void setKeyedDispatcher(RabbitmqKeyedDispatcher keyedDispatcher) {
+        this.keyedDispatcher = keyedDispatcher;
+    }
+
+    public void setBatchListener(ChannelAwareBatchMessageListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchTimeout(long batchTimeout) {
+        this.batchTimeout = batchTimeout;
+    }
+
+    public void setAdviceChain(Advice... adviceChain) {
+        this.adviceChain = adviceChain;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setExchangeName(String exchangeName) {
+        this.exchangeName = exchangeName;
+    }
+
+    public void setIncomingQueueName(String incomingQueueName) {
+        this.incomingQueueName = incomingQueueName;
+    }
+
+    public void setDomains(String domains) {
+        this.domains = domains;
+    }
+
+    public void setConsumersPerDomain(int consumersPerDomain) {
+        this.consumersPerDomain = consumersPerDomain;
+    }
+
+    public void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+    }
+
+    public void setQueueMode(String queueMode) {
+        this.queueMode = queueMode;
+    }
+
+    public void setMaxLength(long maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public void setOverflow(String overflow) {
+        this.overflow = overflow;
+    }
+
+    public void setMessageTtl(long messageTtl) {
+        this.messageTtl = messageTtl;
+    }
+}
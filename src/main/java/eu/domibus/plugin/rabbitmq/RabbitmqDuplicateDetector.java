@@ -0,0 +1,307 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Message;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Idempotency of the submissions: remembers the reply sent for the last {@code maxEntries} successfully submitted
+ * messages, so that a message redelivered by the broker after its submission succeeded (e.g. because the reply could
+ * not be published) gets its original reply again instead of being submitted a second time. A message whose
+ * submission failed is submitted again when it is redelivered.
+ * <p>
+ * A message is identified by its AMQP message id or, without one, by the SHA-256 digest of its body. The lookup of a
+ * message id is a single {@link ConcurrentHashMap} read; the oldest entries are evicted first. A submission is only
+ * remembered once the transaction receiving it committed.
+ * <p>
+ * When an {@code indexFile} is set, the remembered replies are also appended to it and loaded back at startup, so that
+ * the duplicates are still detected after a restart. The entries are appended by a background thread every
+ * {@code flushInterval} ms and at shutdown, so a crash loses at most the entries of the last interval. The file is
+ * compacted when it holds twice {@code maxEntries} entries.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqDuplicateDetector {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqDuplicateDetector.class);
+
+    protected static final String MESSAGE_ID_KEY_PREFIX = "id:";
+    protected static final String DIGEST_KEY_PREFIX = "sha256:";
+    protected static final char INDEX_SEPARATOR = '\t';
+
+    private boolean enabled = false;
+    private int maxEntries = 100000;
+    private Path indexFile;
+    private long flushInterval = 1000;
+
+    private final Map<String, Reply> replies = new ConcurrentHashMap<>();
+    private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+    /**
+     * The index lines not written yet.
+     */
+    private final Queue<String> pendingEntries = new ConcurrentLinkedQueue<>();
+    private BufferedWriter indexWriter;
+    private int indexEntries;
+    private ScheduledExecutorService indexFlusher;
+
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * The reply sent for a submitted message.
+     */
+    public static final class Reply {
+
+        private final String messageId;
+        private final String errorMessage;
+
+        public Reply(String messageId, String errorMessage) {
+            this.messageId = messageId;
+            this.errorMessage = errorMessage;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled || indexFile == null) {
+            return;
+        }
+        if (Files.exists(indexFile)) {
+            final List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                final String[] fields = StringUtils.splitPreserveAllTokens(line, INDEX_SEPARATOR);
+                if (fields.length == 3) {
+                    remember(fields[0], new Reply(unescape(fields[1]), unescape(fields[2])));
+                }
+            }
+            LOG.info("Loaded [{}] submitted messages from [{}]", replies.size(), indexFile);
+        } else {
+            Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        }
+        compact();
+        indexFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-duplicates-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        indexFlusher.scheduleWithFixedDelay(this::writeIndex, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (indexFlusher != null) {
+            indexFlusher.shutdown();
+        }
+        writeIndex();
+        synchronized (this) {
+            if (indexWriter != null) {
+                indexWriter.close();
+                indexWriter = null;
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the key identifying the message, its message id if set, else the digest of its body
+     */
+    public String getKey(final Message message) {
+        final String messageId = message.getMessageProperties().getMessageId();
+        if (StringUtils.isNotBlank(messageId)) {
+            return MESSAGE_ID_KEY_PREFIX + messageId.trim();
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(message.getBody());
+            return DIGEST_KEY_PREFIX + Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new DefaultRabbitmqPluginException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * @return the reply already sent for the message, {@code null} if it was not submitted yet
+     */
+    public Reply lookup(final String key) {
+        final Reply reply = replies.get(key);
+        if (reply != null) {
+            duplicates.increment();
+        }
+        return reply;
+    }
+
+    /**
+     * Remembers the reply of a successfully submitted message once the current transaction, if any, committed.
+     */
+    public void record(final String key, final String messageId) {
+        final Reply reply = new Reply(messageId, null);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            store(key, reply);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                    store(key, reply);
+                }
+            }
+        });
+    }
+
+    protected void store(final String key, final Reply reply) {
+        remember(key, reply);
+        if (indexFile != null) {
+            pendingEntries.add(key + INDEX_SEPARATOR + escape(reply.messageId) + INDEX_SEPARATOR + escape(reply.errorMessage));
+        }
+    }
+
+    private void remember(final String key, final Reply reply) {
+        if (replies.put(key, reply) == null) {
+            insertionOrder.add(key);
+            while (replies.size() > maxEntries) {
+                final String eldest = insertionOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                replies.remove(eldest);
+            }
+        }
+    }
+
+    /**
+     * Appends the pending entries to the index file.
+     */
+    protected synchronized void writeIndex() {
+        if (indexWriter == null) {
+            return;
+        }
+        try {
+            int written = 0;
+            String entry;
+            while ((entry = pendingEntries.poll()) != null) {
+                indexWriter.write(entry);
+                indexWriter.newLine();
+                written++;
+            }
+            if (written == 0) {
+                return;
+            }
+            indexWriter.flush();
+            indexEntries += written;
+            if (indexEntries >= 2 * maxEntries) {
+                compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Could not append the submitted messages to [{}]", indexFile, e);
+        }
+    }
+
+    /**
+     * Rewrites the index file with the remembered replies only.
+     */
+    private synchronized void compact() throws IOException {
+        if (indexWriter != null) {
+            indexWriter.close();
+        }
+        final Path compacted = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Reply> entry : replies.entrySet()) {
+                writer.write(entry.getKey() + INDEX_SEPARATOR + escape(entry.getValue().messageId) + INDEX_SEPARATOR + escape(entry.getValue().errorMessage));
+                writer.newLine();
+            }
+        }
+        Files.move(compacted, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexEntries = replies.size();
+        indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Escapes the separators of the index file, {@code null} being written as an empty field.
+     */
+    protected static String escape(final String value) {
+        if (value == null) {
+            return StringUtils.EMPTY;
+        }
+        return "=" + value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    protected static String unescape(final String field) {
+        if (field.isEmpty()) {
+            return null;
+        }
+        final StringBuilder value = new StringBuilder(field.length());
+        for (int i = 1; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                final char escaped = field.charAt(++i);
+                value.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    public int getSize() {
+        return replies.size();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public void setIndexFile(String indexFile) {
+        if (StringUtils.isNotBlank(indexFile)) {
+            this.indexFile = Paths.get(indexFile).toAbsolutePath().normalize();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package eu.domibus.plugin.rabbitmq;
+
+import javax.activation.DataHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Framed multipart body carrying several payloads in a single AMQP message.
+ * <p>
+ * The body starts with a table of contents: the number of frames followed by the length of every frame, all as
+ * big-endian 4 bytes integers. The frames follow, in the same order. Messages with such a body have the
+ * {@code bodyFormat} header set to {@code framed} and each payload references its frame with its
+ * {@code payload_N_frame} header.
+ * <p>
+ * The frames are written one after the other to a single buffer as they are added, the payloads being streamed from
+ * their data handler, so that building the body copies each payload once into the buffer, then once into the body.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqFramedBody {
+
+    private final FrameBuffer buffer = new FrameBuffer();
+    private final List<Integer> offsets = new ArrayList<>();
+
+    /**
+     * @return the index of the frame
+     */
+    public int add(byte[] frame) {
+        offsets.add(buffer.size());
+        buffer.write(frame, 0, frame.length);
+        return offsets.size() - 1;
+    }
+
+    /**
+     * Streams the content of the data handler into the frame.
+     *
+     * @return the index of the frame
+     */
+    public int add(DataHandler dataHandler) throws IOException {
+        offsets.add(buffer.size());
+        dataHandler.writeTo(buffer);
+        return offsets.size() - 1;
+    }
+
+    public int size() {
+        return offsets.size();
+    }
+
+    public byte[] getFrame(int index) {
+        return Arrays.copyOfRange(buffer.array(), offsets.get(index), getEnd(index));
+    }
+
+    private int getEnd(int index) {
+        return index + 1 < offsets.size() ? offsets.get(index + 1) : buffer.size();
+    }
+
+    /**
+     * @return the framed body, allocated once for all the frames
+     */
+    public byte[] toByteArray() {
+        final ByteBuffer body = ByteBuffer.allocate(Integer.BYTES * (1 + offsets.size()) + buffer.size());
+        body.putInt(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            body.putInt(getEnd(i) - offsets.get(i));
+        }
+        body.put(buffer.array(), 0, buffer.size());
+        return body.array();
+    }
+
+    /**
+     * Reads the frames of a framed body without copying them.
+     *
+     * @return read-only slices of the body, one per frame
+     * @throws DefaultRabbitmqPluginException if the body is not a valid framed body
+     */
+    public static List<ByteBuffer> decode(byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body).asReadOnlyBuffer();
+        if (buffer.remaining() < Integer.BYTES) {
+            throw new DefaultRabbitmqPluginException("The framed body has no table of contents");
+        }
+        final int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / Integer.BYTES) {
+            throw new DefaultRabbitmqPluginException("Invalid number of frames [" + count + "] in the framed body");
+        }
+        int offset = Integer.BYTES * (1 + count);
+        final List<ByteBuffer> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int length = buffer.getInt();
+            if (length < 0 || length > body.length - offset) {
+                throw new DefaultRabbitmqPluginException("Frame [" + i + "] of [" + length + "] bytes exceeds the framed body");
+            }
+            final ByteBuffer frame = buffer.duplicate();
+            frame.position(offset);
+            frame.limit(offset + length);
+            frames.add(frame.slice());
+            offset += length;
+        }
+        return Collections.unmodifiableList(frames);
+    }
+
+    /**
+     * Gives access to the written bytes without copying them.
+     */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
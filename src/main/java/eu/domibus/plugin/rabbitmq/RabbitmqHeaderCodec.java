@@ -0,0 +1,84 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.springframework.amqp.core.MessageProperties;
+
+import java.text.MessageFormat;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
+
+/**
+ * Reads and writes the message headers.
+ * <p>
+ * The names of the per-payload headers ({@code payload_N}, {@code payload_N_mimeType}...) are precomputed for the
+ * first {@link #PRECOMPUTED_PAYLOADS} payloads instead of being formatted for each message; the names of the following
+ * ones are formatted on demand, as before. Header values are trimmed, which only creates a new string when they have
+ * leading or trailing whitespace.
+ *
+ * @author Generix Group
+ */
+public final class RabbitmqHeaderCodec {
+
+    public static final int PRECOMPUTED_PAYLOADS = 64;
+
+    private static final String[] PAYLOAD_NAMES = table(PAYLOAD_NAME_FORMAT);
+    private static final String[] PAYLOAD_MIME_TYPES = table(PAYLOAD_MIME_TYPE_FORMAT);
+    private static final String[] PAYLOAD_FILE_NAMES = table(PAYLOAD_FILE_NAME_FORMAT);
+    private static final String[] PAYLOAD_MIME_CONTENT_IDS = table(PAYLOAD_MIME_CONTENT_ID_FORMAT);
+    private static final String[] PAYLOAD_CHUNK_TRANSFER_IDS = table(PAYLOAD_CHUNK_TRANSFER_ID_FORMAT);
+    private static final String[] PAYLOAD_FRAMES = table(PAYLOAD_FRAME_FORMAT);
+    private static final String[] RABBITMQ_PAYLOAD_NAMES = table(RABBITMQ_PAYLOAD_NAME_FORMAT);
+
+    private RabbitmqHeaderCodec() {
+    }
+
+    public static String payloadName(int i) {
+        return key(PAYLOAD_NAMES, PAYLOAD_NAME_FORMAT, i);
+    }
+
+    public static String payloadMimeType(int i) {
+        return key(PAYLOAD_MIME_TYPES, PAYLOAD_MIME_TYPE_FORMAT, i);
+    }
+
+    public static String payloadFileName(int i) {
+        return key(PAYLOAD_FILE_NAMES, PAYLOAD_FILE_NAME_FORMAT, i);
+    }
+
+    public static String payloadMimeContentId(int i) {
+        return key(PAYLOAD_MIME_CONTENT_IDS, PAYLOAD_MIME_CONTENT_ID_FORMAT, i);
+    }
+
+    public static String payloadChunkTransferId(int i) {
+        return key(PAYLOAD_CHUNK_TRANSFER_IDS, PAYLOAD_CHUNK_TRANSFER_ID_FORMAT, i);
+    }
+
+    public static String payloadFrame(int i) {
+        return key(PAYLOAD_FRAMES, PAYLOAD_FRAME_FORMAT, i);
+    }
+
+    public static String rabbitmqPayloadName(int i) {
+        return key(RABBITMQ_PAYLOAD_NAMES, RABBITMQ_PAYLOAD_NAME_FORMAT, i);
+    }
+
+    /**
+     * @return the trimmed value of a header, {@code null} if it is not set
+     */
+    public static String getString(MessageProperties properties, String header) {
+        final Object value = properties.getHeaders().get(header);
+        if (value == null) {
+            return null;
+        }
+        return (value instanceof String ? (String) value : value.toString()).trim();
+    }
+
+    private static String key(String[] table, String format, int i) {
+        return i > 0 && i <= PRECOMPUTED_PAYLOADS ? table[i] : MessageFormat.format(format, i);
+    }
+
+    private static String[] table(String format) {
+        final String[] table = new String[PRECOMPUTED_PAYLOADS + 1];
+        for (int i = 1; i <= PRECOMPUTED_PAYLOADS; i++) {
+            table[i] = MessageFormat.format(format, i);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,343 @@
+package eu.domibus.plugin.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.CONVERSATION_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MESSAGE_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.REF_TO_MESSAGE_ID;
+
+/**
+ * Keyed dispatcher between the incoming queue listener container and the {@link BackendRabbitmqReceivingListener}:
+ * the messages sharing a key are submitted one after the other, in the order they were received, while the messages
+ * of different keys are submitted in parallel by {@code threads} threads.
+ * <p>
+ * The key of a message is its {@code conversationId}; without one, the key of the message referenced by its
+ * {@code refToMessageId} if it is still known, else the {@code refToMessageId} itself; else its {@code messageId}, so
+ * that a chain of messages referencing each other stays on the same lane. Each key has a lane, a queue of the messages
+ * waiting to be submitted. At most {@code maxLanes} lanes exist at any time: when they are all in use, the consumer
+ * waits for one of them to become idle. The lanes idle for more than {@code laneIdleTimeout} ms are evicted. A message
+ * is forgotten as soon as it was processed, so only the chains of messages still waiting in a lane are followed.
+ * <p>
+ * A message is acknowledged once its lane submitted it, or rejected, and requeued by default, if the submission failed.
+ * The listener container must use {@link org.springframework.amqp.core.AcknowledgeMode#MANUAL} acknowledgements and a
+ * prefetch large enough for the lanes to run in parallel; the order is the order of delivery, hence only guaranteed
+ * with a single consumer, which the plugin configuration enforces when the keyed dispatch is enabled.
+ * <p>
+ * The messages consumed in the context of a domain, such as those of the per-domain queues of the
+ * {@link RabbitmqDomainRoutingTopology}, are dispatched with their domain, which their lane sets while submitting them.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqKeyedDispatcher implements ChannelAwareMessageListener {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqKeyedDispatcher.class);
+
+    @Autowired
+    protected BackendRabbitmqReceivingListener backendRabbitmqReceivingListener;
+
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    private int threads = 10;
+    private int maxLanes = 1000;
+    private long laneIdleTimeout = 60000;
+    private long shutdownTimeout = 30000;
+    private boolean requeueRejected = true;
+
+    /**
+     * The lanes by key; the lock of the lanes, taken before the lock of a lane.
+     */
+    private final Map<String, Lane> lanes = new HashMap<>();
+    /**
+     * The key of the lane of the messages waiting to be processed, by messageId; guarded by the lock of the lanes.
+     */
+    private final Map<String, String> chainKeys = new HashMap<>();
+    private final AtomicInteger anonymousKeys = new AtomicInteger();
+
+    private ExecutorService executor;
+    private ScheduledExecutorService evictionScheduler;
+
+    @PostConstruct
+    public void init() {
+        executor = createExecutor();
+        evictionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-keyed-dispatcher-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictionScheduler.scheduleWithFixedDelay(() -> evictIdleLanes(laneIdleTimeout), laneIdleTimeout, laneIdleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    protected ExecutorService createExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "rabbitmq-keyed-dispatcher-" + threadCount.incrementAndGet()));
+    }
+
+    /**
+     * Waits for the lanes to submit the messages already dispatched; the messages still waiting afterwards are
+     * delivered again once the channel is closed.
+     */
+    @PreDestroy
+    public void shutdown() {
+        evictionScheduler.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+                LOG.warn("The keyed dispatcher lanes did not complete within [{}] ms", shutdownTimeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onMessage(final Message message, final Channel channel) {
+        dispatch(message, channel, null);
+    }
+
+    /**
+     * @param domain the domain in which the message is submitted, {@code null} to leave the domain of the lane unset
+     */
+    public void dispatch(final Message message, final Channel channel, final DomainDTO domain) {
+        final String messageId = getMessageId(message.getMessageProperties());
+        synchronized (lanes) {
+            final String key = getKey(message.getMessageProperties(), messageId);
+            LOG.debug("Dispatching message [{}] to lane [{}]", messageId, key);
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                waitForFreeLane();
+                lane = new Lane(key);
+                lanes.put(key, lane);
+            }
+            if (messageId != null) {
+                chainKeys.put(messageId, key);
+            }
+            lane.add(new Delivery(message, channel, domain));
+        }
+    }
+
+    /**
+     * Forgets a processed message, so that the messages referring to it no longer follow its lane.
+     */
+    protected void complete(final String messageId, final String key) {
+        if (messageId == null) {
+            return;
+        }
+        synchronized (lanes) {
+            chainKeys.remove(messageId, key);
+        }
+    }
+
+    protected String getKey(final MessageProperties properties, final String messageId) {
+        final String conversationId = RabbitmqHeaderCodec.getString(properties, CONVERSATION_ID);
+        if (StringUtils.isNotEmpty(conversationId)) {
+            return conversationId;
+        }
+        final String refToMessageId = RabbitmqHeaderCodec.getString(properties, REF_TO_MESSAGE_ID);
+        if (StringUtils.isNotEmpty(refToMessageId)) {
+            return chainKeys.getOrDefault(refToMessageId, refToMessageId);
+        }
+        return messageId != null ? messageId : "anonymous-" + anonymousKeys.incrementAndGet();
+    }
+
+    /**
+     * @return the {@code messageId} header, else the AMQP message id, {@code null} if none is set
+     */
+    protected static String getMessageId(final MessageProperties properties) {
+        final String messageId = StringUtils.defaultIfEmpty(RabbitmqHeaderCodec.getString(properties, MESSAGE_ID), StringUtils.trim(properties.getMessageId()));
+        return StringUtils.isEmpty(messageId) ? null : messageId;
+    }
+
+    /**
+     * Called with the lock of the lanes held.
+     */
+    private void waitForFreeLane() {
+        while (lanes.size() >= maxLanes) {
+            if (evictIdleLanes(0) > 0) {
+                return;
+            }
+            LOG.debug("All the [{}] lanes are in use, waiting for one to become idle", maxLanes);
+            try {
+                lanes.wait(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DefaultRabbitmqPluginException("Interrupted while waiting for a free lane", e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lanes evicted
+     */
+    protected int evictIdleLanes(final long idleTimeout) {
+        final long now = System.currentTimeMillis();
+        int evicted = 0;
+        synchronized (lanes) {
+            final Iterator<Lane> iterator = lanes.values().iterator();
+            while (iterator.hasNext()) {
+                final Lane lane = iterator.next();
+                if (lane.isIdleSince(now - idleTimeout)) {
+                    iterator.remove();
+                    evicted++;
+                }
+            }
+        }
+        if (evicted > 0) {
+            LOG.debug("Evicted [{}] idle lanes", evicted);
+        }
+        return evicted;
+    }
+
+    protected void process(final Delivery delivery) {
+        if (delivery.domain == null) {
+            process(delivery.message, delivery.channel);
+            return;
+        }
+        domainContextExtService.setCurrentDomain(delivery.domain);
+        try {
+            process(delivery.message, delivery.channel);
+        } finally {
+            domainContextExtService.clearCurrentDomain();
+        }
+    }
+
+    protected void process(final Message message, final Channel channel) {
+        final long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        try {
+            backendRabbitmqReceivingListener.onMessage(message);
+        } catch (RuntimeException e) {
+            LOG.error("Exception occurred while processing message [{}], rejecting it with requeue [{}]", message.getMessageProperties().getMessageId(), requeueRejected, e);
+            try {
+                channel.basicReject(deliveryTag, requeueRejected);
+            } catch (IOException rejectException) {
+                LOG.error("Could not reject the message with delivery tag [{}]", deliveryTag, rejectException);
+            }
+            return;
+        }
+        try {
+            channel.basicAck(deliveryTag, false);
+        } catch (IOException e) {
+            LOG.error("Could not acknowledge the message with delivery tag [{}]", deliveryTag, e);
+        }
+    }
+
+    public int getLaneCount() {
+        synchronized (lanes) {
+            return lanes.size();
+        }
+    }
+
+    public int getChainKeyCount() {
+        synchronized (lanes) {
+            return chainKeys.size();
+        }
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setMaxLanes(int maxLanes) {
+        this.maxLanes = maxLanes;
+    }
+
+    public void setLaneIdleTimeout(long laneIdleTimeout) {
+        this.laneIdleTimeout = laneIdleTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public void setRequeueRejected(boolean requeueRejected) {
+        this.requeueRejected = requeueRejected;
+    }
+
+    /**
+     * A message dispatched to a lane, with the channel to acknowledge it on and the domain to submit it in.
+     */
+    protected static final class Delivery {
+
+        private final Message message;
+        private final Channel channel;
+        private final DomainDTO domain;
+
+        Delivery(Message message, Channel channel, DomainDTO domain) {
+            this.message = message;
+            this.channel = channel;
+            this.domain = domain;
+        }
+    }
+
+    /**
+     * The messages of a key waiting to be submitted. At most one task of the executor drains a lane at any time.
+     */
+    protected final class Lane implements Runnable {
+
+        private final String key;
+        private final Queue<Delivery> deliveries = new ArrayDeque<>();
+        private boolean scheduled;
+        private long lastUsed = System.currentTimeMillis();
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        synchronized void add(final Delivery delivery) {
+            deliveries.add(delivery);
+            if (!scheduled) {
+                scheduled = true;
+                executor.execute(this);
+            }
+        }
+
+        synchronized boolean isIdleSince(final long time) {
+            return !scheduled && deliveries.isEmpty() && lastUsed <= time;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Delivery delivery;
+                synchronized (this) {
+                    delivery = deliveries.poll();
+                    if (delivery == null) {
+                        scheduled = false;
+                        lastUsed = System.currentTimeMillis();
+                        break;
+                    }
+                }
+                process(delivery);
+                complete(getMessageId(delivery.message.getMessageProperties()), key);
+            }
+            // a consumer may be waiting for an idle lane
+            synchronized (lanes) {
+                lanes.notifyAll();
+            }
+            LOG.trace("Lane [{}] is idle", key);
+        }
+    }
+}
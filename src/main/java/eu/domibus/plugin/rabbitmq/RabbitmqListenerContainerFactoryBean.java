@@ -0,0 +1,78 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.springframework.amqp.rabbit.config.ListenerContainerFactoryBean;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the listener container of the incoming queue with the consumer engine selected by {@code mode}:
+ * <ul>
+ * <li>{@code simple}: a {@link org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer}, each
+ * consumer polling the deliveries handed over by the AMQP client on its own thread;</li>
+ * <li>{@code direct}: a {@link org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer}, the listener
+ * being invoked on the AMQP client threads without any hand-over;</li>
+ * <li>{@code virtual}: a simple container whose consumers run on virtual threads, so that hundreds of consumers
+ * blocked on the submission do not take as many platform threads. It falls back to the {@code simple} mode when the
+ * JVM has no virtual threads.</li>
+ * </ul>
+ *
+ * @author Generix Group
+ */
+public class RabbitmqListenerContainerFactoryBean extends ListenerContainerFactoryBean {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqListenerContainerFactoryBean.class);
+
+    public static final String MODE_SIMPLE = "simple";
+    public static final String MODE_DIRECT = "direct";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    protected static final String VIRTUAL_THREAD_NAME_PREFIX = "rabbitmq-consumer-";
+
+    public void setMode(String mode) {
+        switch (mode.trim().toLowerCase(Locale.ROOT)) {
+            case MODE_SIMPLE:
+                setType(Type.simple);
+                break;
+            case MODE_DIRECT:
+                setType(Type.direct);
+                break;
+            case MODE_VIRTUAL:
+                setType(Type.simple);
+                final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+                if (virtualThreadFactory == null) {
+                    LOG.warn("Virtual threads are not supported by this JVM, using the [{}] consumer mode", MODE_SIMPLE);
+                    break;
+                }
+                final SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor();
+                taskExecutor.setThreadFactory(virtualThreadFactory);
+                setTaskExecutor(taskExecutor);
+                break;
+            default:
+                throw new DefaultRabbitmqPluginException("Unknown consumer mode [" + mode + "], expected one of ["
+                        + MODE_SIMPLE + ", " + MODE_DIRECT + ", " + MODE_VIRTUAL + "]");
+        }
+        LOG.info("Using the [{}] consumer mode", mode);
+    }
+
+    /**
+     * @return a factory of virtual threads, {@code null} if the JVM does not support them
+     */
+    protected static ThreadFactory createVirtualThreadFactory() {
+        try {
+            // Thread.ofVirtual().name(prefix, 0).factory(), the plugin being compiled for Java 8
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            final Method name = builderType.getMethod("name", String.class, long.class);
+            final Method factory = builderType.getMethod("factory");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) factory.invoke(name.invoke(builder, VIRTUAL_THREAD_NAME_PREFIX, 0L));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Virtual threads are not available", e);
+            return null;
+        }
+    }
+}
@@ -38,6 +38,17 @@ public class RabbitmqMessageConstants {
     public static final String MESSAGE_TYPE_SEND_SUCCESS = "messageSent";
     public static final String MESSAGE_TYPE_SEND_FAILURE = "messageSendFailure";
     public static final String MESSAGE_TYPE_RECEIVE_FAILURE = "messageReceptionFailure";
+    public static final String MESSAGE_TYPE_PAYLOAD_CHUNK = "payloadChunk";
+    public static final String MESSAGE_TYPE_NOTIFICATION_BATCH = "notificationBatch";
+    public static final String NOTIFICATION_COUNT = "notificationCount";
+    public static final String CHUNK_TRANSFER_ID = "chunkTransferId";
+    public static final String CHUNK_SEQUENCE = "chunkSequence";
+    public static final String CHUNK_OFFSET = "chunkOffset";
+    public static final String CHUNK_TOTAL = "chunkTotal";
+    public static final String CHUNK_CHECKSUM = "chunkChecksum";
+    public static final String BODY_FORMAT = "bodyFormat";
+    public static final String BODY_FORMAT_FRAMED = "framed";
+    public static final String ERROR_MESSAGE = "ErrorMessage";
     public static final String ERROR_CODE = "errorCode";
     public static final String ERROR_DETAIL = "errorDetail";
     public static final String PROPERTY_PREFIX = "property_";
@@ -50,10 +61,23 @@ public class RabbitmqMessageConstants {
     public static final String PAYLOAD_FILE_NAME_FORMAT = PAYLOAD_NAME_FORMAT + PAYLOAD_FILE_NAME_SUFFIX;
     private static final String PAYLOAD_MIME_CONTENT_ID_SUFFIX = "_mimeContentId";
     public static final String PAYLOAD_MIME_CONTENT_ID_FORMAT = PAYLOAD_NAME_FORMAT + PAYLOAD_MIME_CONTENT_ID_SUFFIX;
+    public static final String PAYLOAD_CHUNK_TRANSFER_ID_SUFFIX = "_chunkTransferId";
+    public static final String PAYLOAD_CHUNK_TRANSFER_ID_FORMAT = PAYLOAD_NAME_FORMAT + PAYLOAD_CHUNK_TRANSFER_ID_SUFFIX;
+    private static final String PAYLOAD_FRAME_SUFFIX = "_frame";
+    public static final String PAYLOAD_FRAME_FORMAT = PAYLOAD_NAME_FORMAT + PAYLOAD_FRAME_SUFFIX;
     public static final String PUT_ATTACHMENTS_IN_QUEUE = "putAttachmentInQueue";
     public static final String PAYLOAD_FILENAME = "FileName";
     public static final String RABBITMQ_PAYLOAD_NAME_FORMAT = PAYLOAD_NAME_FORMAT + "_" + MessageConstants.PAYLOAD_PROPERTY_FILE_NAME;
 
+    public static final String QUEUE_REPLY = "queue.reply";
+    public static final String QUEUE_OUT = "queue.out";
+    public static final String QUEUE_CONSUMER_NOTIFICATION_ERROR = "queue.consumer.notification.error";
+    public static final String QUEUE_PRODUCER_NOTIFICATION_ERROR = "queue.producer.notification.error";
+
+    public static final String COMPRESSION_ENCODING = "compression.encoding";
+    public static final String COMPRESSION_THRESHOLD = "compression.threshold";
+    public static final String FRAMED_BODY = "framedBody";
+
     public static final String USERNAME = "username";
     public static final String PASSWORD = "password"; //NOSONAR
 }
@@ -8,9 +8,14 @@ import eu.domibus.logging.DomibusLogger;
 import eu.domibus.logging.DomibusLoggerFactory;
 import eu.domibus.messaging.MessageConstants;
 import eu.domibus.plugin.Submission;
+import eu.domibus.plugin.rabbitmq.compression.RabbitmqBodyCompressor;
+import eu.domibus.plugin.rabbitmq.compression.RabbitmqCompressionCodec;
+import eu.domibus.plugin.rabbitmq.compression.RabbitmqDecompressingDataSource;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import eu.domibus.plugin.rabbitmq.property.RabbitmqPluginPropertyManager;
+import eu.domibus.plugin.rabbitmq.property.RabbitmqPluginPropertySnapshot;
 import eu.domibus.plugin.transformer.MessageRetrievalTransformer;
 import eu.domibus.plugin.transformer.MessageSubmissionTransformer;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -18,23 +23,24 @@ import org.springframework.stereotype.Service;
 import javax.activation.DataHandler;
 import javax.activation.URLDataSource;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessageBuilder;
 import org.springframework.amqp.core.MessageProperties;
 
 import javax.mail.util.ByteArrayDataSource;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.MessageFormat;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
-import static org.apache.commons.lang3.StringUtils.trim;
 
 /**
  * This class is responsible for transformations from {@link org.springframework.amqp.core.Message}
@@ -58,16 +64,51 @@ public class RabbitmqMessageTransformer implements MessageRetrievalTransformer<M
 	@Autowired
 	protected FileUtilExtService fileUtilExtService;
 
+	@Autowired
+	protected RabbitmqPluginPropertyManager rabbitmqPluginPropertyManager;
+
+	@Autowired
+	protected RabbitmqChunkedPayloadSender chunkedPayloadSender;
+
+	@Autowired
+	protected RabbitmqChunkReassembler chunkReassembler;
+
+	@Autowired
+	protected RabbitmqPayloadStore payloadStore;
+
+	@Autowired
+	protected RabbitmqBodyCompressor bodyCompressor;
+
+	@Autowired
+	protected RabbitmqMetrics metrics;
+
 	/**
 	 * Transforms {@link eu.domibus.plugin.Submission} to
 	 * {@link org.springframework.amqp.core.Message}
 	 *
 	 * @param submission
 	 *            the message to be transformed *
-	 * @return result of the transformation as {@link org.springframework.amqp.core.Message}
+	 * @return result of the transformation as {@link org.springframework.amqp.core.Message}, a
+	 *         {@link RabbitmqChunkedMessage} if some payloads have to be sent as chunks
 	 */
 	@Override
 	public Message transformFromSubmission(final Submission submission, final Message messageOut) {
+		final long start = metrics.start();
+		final Message message;
+		try {
+			message = doTransformFromSubmission(submission, messageOut);
+		} catch (RuntimeException e) {
+			metrics.record(RabbitmqMetrics.Stage.TRANSFORM_FROM_SUBMISSION, null, start, false);
+			throw e;
+		}
+		metrics.record(RabbitmqMetrics.Stage.TRANSFORM_FROM_SUBMISSION, null, start, true);
+		return message;
+	}
+
+	protected Message doTransformFromSubmission(final Submission submission, final Message messageOut) {
+		final RabbitmqFramedBody framedBody = new RabbitmqFramedBody();
+		final List<RabbitmqChunkedMessage.ChunkedPayload> chunkedPayloads = new ArrayList<>();
+		final RabbitmqPluginPropertySnapshot snapshot = getPropertySnapshot();
 		try {
 			if (submission.getMpc() != null) {
 				messageOut.getMessageProperties().setHeader(MPC, submission.getMpc());
@@ -120,16 +161,11 @@ public class RabbitmqMessageTransformer implements MessageRetrievalTransformer<M
 				}
 			}
 
-			final boolean putAttachmentsInQueue = Boolean.parseBoolean(getProperty(PUT_ATTACHMENTS_IN_QUEUE, "true")); // Used
-																														// to
-																														// be
-																														// set
-																														// to
-																														// true
+			final boolean putAttachmentsInQueue = snapshot.isPutAttachmentInQueue();
 			for (final Submission.Payload p : submission.getPayloads()) {
 				// counter is increased for payloads (not for bodyload which is
 				// always set to payload_1)
-				counter = transformFromSubmissionHandlePayload(messageOut, putAttachmentsInQueue, counter, p);
+				counter = transformFromSubmissionHandlePayload(messageOut.getMessageProperties(), putAttachmentsInQueue, counter, p, framedBody, chunkedPayloads);
 			}
 			messageOut.getMessageProperties().setHeader(TOTAL_NUMBER_OF_PAYLOADS, submission.getPayloads().size());
 		} catch (final IOException ex) {
@@ -137,7 +173,40 @@ public class RabbitmqMessageTransformer implements MessageRetrievalTransformer<M
 			throw new DefaultRabbitmqPluginException(ex);
 		}
 
-		return messageOut;
+		byte[] body = createBody(messageOut, framedBody, snapshot.isFramedBody());
+		final String encoding = bodyCompressor.selectEncoding(body.length, snapshot);
+		if (encoding != null) {
+			body = bodyCompressor.compress(encoding, body);
+			messageOut.getMessageProperties().setContentEncoding(encoding);
+		}
+		final Message message = new Message(body, messageOut.getMessageProperties());
+		if (!chunkedPayloads.isEmpty()) {
+			return new RabbitmqChunkedMessage(message, chunkedPayloads);
+		}
+		return message;
+	}
+
+	/**
+	 * A single payload_1 is sent as the body itself, as before. Several payloads are sent as a
+	 * {@link RabbitmqFramedBody} with the {@value RabbitmqMessageConstants#BODY_FORMAT} header, if the framed body is
+	 * enabled for the domain: the consumers of the plain body would otherwise read the frames as the payload.
+	 */
+	private byte[] createBody(Message messageOut, RabbitmqFramedBody framedBody, boolean framedBodyEnabled) {
+		final MessageProperties properties = messageOut.getMessageProperties();
+		if (framedBody.size() == 0) {
+			return messageOut.getBody();
+		}
+		final String bodyloadFrame = RabbitmqHeaderCodec.payloadFrame(1);
+		if (framedBody.size() == 1 && properties.getHeaders().containsKey(bodyloadFrame)) {
+			properties.getHeaders().remove(bodyloadFrame);
+			return framedBody.getFrame(0);
+		}
+		if (!framedBodyEnabled) {
+			throw new DefaultRabbitmqPluginException("The message carries [" + framedBody.size() + "] payloads in its body, set "
+					+ RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + FRAMED_BODY + " to send them as a framed body");
+		}
+		properties.setHeader(BODY_FORMAT, BODY_FORMAT_FRAMED);
+		return framedBody.toByteArray();
 	}
 
 	protected String getProperty(String propertyName) {
@@ -145,38 +214,42 @@ public class RabbitmqMessageTransformer implements MessageRetrievalTransformer<M
 	}
 
 	protected String getProperty(String propertyName, String defaultValue) {
-		final DomainDTO currentDomain = domainContextExtService.getCurrentDomain();
-		return domibusPropertyExtService.getDomainProperty(currentDomain, RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + propertyName, defaultValue);
+		return getPropertySnapshot().getProperty(propertyName, defaultValue);
 	}
 
-	private int transformFromSubmissionHandlePayload(Message messageOut, boolean putAttachmentsInQueue, int counter, Submission.Payload p) throws IOException {
-		MessageProperties properties = messageOut.getMessageProperties();
+	protected RabbitmqPluginPropertySnapshot getPropertySnapshot() {
+		final DomainDTO currentDomain = domainContextExtService.getCurrentDomain();
+		return rabbitmqPluginPropertyManager.getSnapshot(currentDomain);
+	}
 
+	private int transformFromSubmissionHandlePayload(MessageProperties properties, boolean putAttachmentsInQueue, int counter, Submission.Payload p,
+			RabbitmqFramedBody framedBody, List<RabbitmqChunkedMessage.ChunkedPayload> chunkedPayloads) throws IOException {
 		if (p.isInBody()) {
-			if (p.getPayloadDatahandler() != null) {
-				messageOut = MessageBuilder.withBody(IOUtils.toByteArray(p.getPayloadDatahandler().getInputStream())).andProperties(properties).build();
-				properties = messageOut.getMessageProperties();
+			if (p.getPayloadDatahandler() != null && (claimCheck(p, 1, properties) || sendAsChunks(p, 1, properties, chunkedPayloads))) {
+				properties.setHeader(P1_IN_BODY, "true");
+			} else if (p.getPayloadDatahandler() != null) {
+				addFrame(p, 1, properties, framedBody);
 				properties.setHeader(P1_IN_BODY, "true");
 			}
-			properties.setHeader(MessageFormat.format(PAYLOAD_MIME_TYPE_FORMAT, 1), findMime(p.getPayloadProperties()));
-			properties.setHeader(MessageFormat.format(PAYLOAD_MIME_CONTENT_ID_FORMAT, 1), p.getContentId());
+			properties.setHeader(RabbitmqHeaderCodec.payloadMimeType(1), findMime(p.getPayloadProperties()));
+			properties.setHeader(RabbitmqHeaderCodec.payloadMimeContentId(1), p.getContentId());
 		} else {
 			properties.setHeader(P1_IN_BODY, "false");
-			final String payContID = String.valueOf(MessageFormat.format(PAYLOAD_MIME_CONTENT_ID_FORMAT, counter));
-			final String propPayload = String.valueOf(MessageFormat.format(PAYLOAD_NAME_FORMAT, counter));
-			final String payMimeTypeProp = String.valueOf(MessageFormat.format(PAYLOAD_MIME_TYPE_FORMAT, counter));
-			final String payFileNameProp = String.valueOf(MessageFormat.format(PAYLOAD_FILE_NAME_FORMAT, counter));
+			final String payContID = RabbitmqHeaderCodec.payloadMimeContentId(counter);
+			final String propPayload = RabbitmqHeaderCodec.payloadName(counter);
+			final String payMimeTypeProp = RabbitmqHeaderCodec.payloadMimeType(counter);
+			final String payFileNameProp = RabbitmqHeaderCodec.payloadFileName(counter);
 			if (p.getPayloadDatahandler() != null) {
 				if (putAttachmentsInQueue) {
-					if (counter == 1)
-						LOG.error("putAttachmentsInQueue is not supported yet");
-					else {
-						messageOut = MessageBuilder.fromClonedMessage(messageOut).withBody(IOUtils.toByteArray(p.getPayloadDatahandler().getInputStream()))
-								.build();
-					}
+					if (claimCheck(p, counter, properties))
+						LOG.debug("Payload [{}] is referenced from the payload store", counter);
+					else if (sendAsChunks(p, counter, properties, chunkedPayloads))
+						LOG.debug("Payload [{}] is sent as chunks", counter);
+					else
+						addFrame(p, counter, properties, framedBody);
 				} else {
 					LOG.debug("putAttachmentsInQueue is false");
-					messageOut.getMessageProperties().setHeader(payFileNameProp, findFilename(p.getPayloadProperties()));
+					properties.setHeader(payFileNameProp, findFilename(p.getPayloadProperties()));
 				}
 			}
 			properties.setHeader(payMimeTypeProp, findMime(p.getPayloadProperties()));
@@ -186,9 +259,43 @@ public class RabbitmqMessageTransformer implements MessageRetrievalTransformer<M
 		return counter;
 	}
 
+	private void addFrame(Submission.Payload p, int index, MessageProperties properties, RabbitmqFramedBody framedBody) throws IOException {
+		final int frame = framedBody.add(p.getPayloadDatahandler());
+		properties.setHeader(RabbitmqHeaderCodec.payloadFrame(index), frame);
+	}
+
+	/**
+	 * Writes the payload to the payload store if it is larger than the store threshold.
+	 *
+	 * @return whether the payload is referenced from the store
+	 */
+	private boolean claimCheck(Submission.Payload p, int index, MessageProperties properties) throws IOException {
+		if (!payloadStore.isEnabled() || !payloadStore.exceedsThreshold(p.getPayloadDatahandler())) {
+			return false;
+		}
+		properties.setHeader(RabbitmqHeaderCodec.payloadName(index), payloadStore.store(p.getPayloadDatahandler()).toString());
+		return true;
+	}
+
+	/**
+	 * Registers the payload to be sent as chunks if it is larger than the chunk threshold.
+	 *
+	 * @return whether the payload is sent as chunks
+	 */
+	private boolean sendAsChunks(Submission.Payload p, int index, MessageProperties properties,
+			List<RabbitmqChunkedMessage.ChunkedPayload> chunkedPayloads) throws IOException {
+		if (!chunkedPayloadSender.isEnabled() || !chunkedPayloadSender.exceedsThreshold(p.getPayloadDatahandler())) {
+			return false;
+		}
+		final String transferId = UUID.randomUUID().toString();
+		properties.setHeader(RabbitmqHeaderCodec.payloadChunkTransferId(index), transferId);
+		chunkedPayloads.add(new RabbitmqChunkedMessage.ChunkedPayload(transferId, p.getPayloadDatahandler()));
+		return true;
+	}
+
 	private String findElement(String element, Collection<Submission.TypedProperty> props) {
 		for (Submission.TypedProperty prop : props) {
-			if (element.equals(prop.getKey()) && isEmpty(trim(prop.getType()))) {
+			if (element.equals(prop.getKey()) && StringUtils.isBlank(prop.getType())) {
 				return prop.getValue();
 			}
 		}
@@ -214,47 +321,81 @@ public class RabbitmqMessageTransformer implements MessageRetrievalTransformer<M
 	 */
 	@Override
 	public Submission transformToSubmission(final Message messageIn) {
-		final Submission target = new Submission();
+		final String queue = messageIn.getMessageProperties().getConsumerQueue();
+		final long start = metrics.start();
+		final Submission submission;
+		try {
+			submission = doTransformToSubmission(messageIn);
+		} catch (RuntimeException e) {
+			metrics.record(RabbitmqMetrics.Stage.TRANSFORM_TO_SUBMISSION, queue, start, false);
+			throw e;
+		}
+		metrics.record(RabbitmqMetrics.Stage.TRANSFORM_TO_SUBMISSION, queue, start, true);
+		return submission;
+	}
+
+	protected Submission doTransformToSubmission(final Message messageIn) {
+		final RabbitmqPluginPropertySnapshot propertySnapshot = getPropertySnapshot();
+		final RabbitmqPluginPropertySnapshot.SubmissionTemplate template = propertySnapshot.getSubmissionTemplate();
+		final Submission target = template.newSubmission();
 
-		String mpc = trim(messageIn.getMessageProperties().getHeader(MPC));
+		String mpc = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), MPC);
 		if (!isEmpty(mpc)) {
 			target.setMpc(mpc);
 		}
-		target.setMessageId(trim(messageIn.getMessageProperties().getHeader(MESSAGE_ID)));
+		target.setMessageId(RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), MESSAGE_ID));
 
-		setTargetFromPartyIdAndFromPartyType(messageIn, target);
+		setTargetFromPartyIdAndFromPartyType(messageIn, target, template);
 
-		target.setFromRole(getPropertyWithFallback(messageIn, FROM_ROLE));
+		String fromRole = getNonEmptyHeader(messageIn, FROM_ROLE);
+		if (fromRole != null) {
+			target.setFromRole(fromRole);
+		}
 
-		setTargetToPartyIdAndToPartyType(messageIn, target);
+		setTargetToPartyIdAndToPartyType(messageIn, target, template);
 
-		target.setToRole(getPropertyWithFallback(messageIn, TO_ROLE));
+		String toRole = getNonEmptyHeader(messageIn, TO_ROLE);
+		if (toRole != null) {
+			target.setToRole(toRole);
+		}
 
-		target.setAction(getPropertyWithFallback(messageIn, ACTION));
+		String action = getNonEmptyHeader(messageIn, ACTION);
+		if (action != null) {
+			target.setAction(action);
+		}
 
-		target.setService(getPropertyWithFallback(messageIn, SERVICE));
+		String service = getNonEmptyHeader(messageIn, SERVICE);
+		if (service != null) {
+			target.setService(service);
+		}
 
-		target.setServiceType(getPropertyWithFallback(messageIn, SERVICE_TYPE));
+		String serviceType = getNonEmptyHeader(messageIn, SERVICE_TYPE);
+		if (serviceType != null) {
+			target.setServiceType(serviceType);
+		}
 
-		target.setAgreementRef(getPropertyWithFallback(messageIn, AGREEMENT_REF));
+		String agreementRef = getNonEmptyHeader(messageIn, AGREEMENT_REF);
+		if (agreementRef != null) {
+			target.setAgreementRef(agreementRef);
+		}
 
-		target.setConversationId(trim(messageIn.getMessageProperties().getHeader(CONVERSATION_ID)));
+		target.setConversationId(RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), CONVERSATION_ID));
 
 		// not part of ebMS3, eCODEX legacy property
-		String strOriginalSender = trim(messageIn.getMessageProperties().getHeader(PROPERTY_ORIGINAL_SENDER));
+		String strOriginalSender = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), PROPERTY_ORIGINAL_SENDER);
 		if (!isEmpty(strOriginalSender)) {
 			target.addMessageProperty(PROPERTY_ORIGINAL_SENDER, strOriginalSender);
 		}
 
-		String endpoint = trim(messageIn.getMessageProperties().getHeader(PROPERTY_ENDPOINT));
+		String endpoint = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), PROPERTY_ENDPOINT);
 		if (!isEmpty(endpoint)) {
 			target.addMessageProperty(PROPERTY_ENDPOINT, messageIn.getMessageProperties().getHeader(PROPERTY_ENDPOINT));
 		}
 
 		// not part of ebMS3, eCODEX legacy property
-		String strFinalRecipient = trim(messageIn.getMessageProperties().getHeader(PROPERTY_FINAL_RECIPIENT));
+		String strFinalRecipient = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), PROPERTY_FINAL_RECIPIENT);
 
-		String strFinalRecipientType = trim(messageIn.getMessageProperties().getHeader(PROPERTY_FINAL_RECIPIENT_TYPE));
+		String strFinalRecipientType = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), PROPERTY_FINAL_RECIPIENT_TYPE);
 
 		LOG.debug("FinalRecipient [{}] and FinalRecipientType [{}] properties from Message", strFinalRecipient, strFinalRecipientType);
 
@@ -262,81 +403,114 @@ public class RabbitmqMessageTransformer implements MessageRetrievalTransformer<M
 			target.addMessageProperty(PROPERTY_FINAL_RECIPIENT, strFinalRecipient, strFinalRecipientType);
 		}
 
-		target.setRefToMessageId(trim(messageIn.getMessageProperties().getHeader(REF_TO_MESSAGE_ID)));
+		target.setRefToMessageId(RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), REF_TO_MESSAGE_ID));
 
 		final int numPayloads = messageIn.getMessageProperties().getHeader(TOTAL_NUMBER_OF_PAYLOADS);
 
 		Set<String> allProps = messageIn.getMessageProperties().getHeaders().keySet();
 		for (String key : allProps) {
 			if (key.startsWith(PROPERTY_PREFIX)) {
-				target.addMessageProperty(key.substring(PROPERTY_PREFIX.length()), trim(messageIn.getMessageProperties().getHeader(key)),
-						trim(messageIn.getMessageProperties().getHeader(PROPERTY_TYPE_PREFIX + key.substring(PROPERTY_PREFIX.length()))));
+				target.addMessageProperty(key.substring(PROPERTY_PREFIX.length()), RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), key),
+						RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), PROPERTY_TYPE_PREFIX + key.substring(PROPERTY_PREFIX.length())));
 			}
 		}
 
-		String bodyloadEnabled = getPropertyWithFallback(messageIn, RabbitmqMessageConstants.P1_IN_BODY);
+		String bodyloadEnabled = getNonEmptyHeader(messageIn, RabbitmqMessageConstants.P1_IN_BODY);
+		if (bodyloadEnabled == null) {
+			bodyloadEnabled = propertySnapshot.getProperty(RabbitmqMessageConstants.P1_IN_BODY);
+		}
+		// content encodings without codec, e.g. a charset, do not denote a compressed body
+		final String contentEncoding = messageIn.getMessageProperties().getContentEncoding();
+		final RabbitmqCompressionCodec codec = contentEncoding == null ? null : bodyCompressor.getCodec(contentEncoding);
+		final List<ByteBuffer> frames;
+		if (BODY_FORMAT_FRAMED.equals(RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), BODY_FORMAT))) {
+			frames = RabbitmqFramedBody.decode(codec == null ? messageIn.getBody() : bodyCompressor.decompress(codec, messageIn.getBody()));
+		} else {
+			frames = Collections.emptyList();
+		}
 		for (int i = 1; i <= numPayloads; i++) {
-			transformToSubmissionHandlePayload(messageIn, target, bodyloadEnabled, i);
+			transformToSubmissionHandlePayload(messageIn, target, bodyloadEnabled, i, frames, codec);
 		}
 
 		return target;
 	}
 
-	private String getPropertyWithFallback(final Message messageIn, String propName) {
-		String propValue = null;
-
-		propValue = trim(messageIn.getMessageProperties().getHeader(propName));
-		if (isEmpty(propValue)) {
-			propValue = getProperty(propName);
+	private ByteBuffer getFrame(List<ByteBuffer> frames, Object frame, int i) {
+		final int index;
+		try {
+			index = Integer.parseInt(frame.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new DefaultRabbitmqPluginException("Invalid frame [" + frame + "] for payload [" + i + "]", e);
+		}
+		if (index < 0 || index >= frames.size()) {
+			throw new DefaultRabbitmqPluginException("Frame [" + index + "] of payload [" + i + "] is not in the body");
 		}
+		return frames.get(index);
+	}
+
+	private String getNonEmptyHeader(final Message messageIn, String headerName) {
+		final String value = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), headerName);
+		return isEmpty(value) ? null : value;
+	}
 
-		return propValue;
+	private String getHeaderWithFallback(final Message messageIn, String headerName, String defaultValue) {
+		final String value = getNonEmptyHeader(messageIn, headerName);
+		return value == null ? defaultValue : value;
 	}
 
-	private void setTargetToPartyIdAndToPartyType(Message messageIn, Submission target) {
-		String toPartyID = getPropertyWithFallback(messageIn, TO_PARTY_ID);
-		String toPartyType = getPropertyWithFallback(messageIn, TO_PARTY_TYPE);
+	private void setTargetToPartyIdAndToPartyType(Message messageIn, Submission target, RabbitmqPluginPropertySnapshot.SubmissionTemplate template) {
+		String toPartyID = getHeaderWithFallback(messageIn, TO_PARTY_ID, template.getToPartyId());
+		String toPartyType = getHeaderWithFallback(messageIn, TO_PARTY_TYPE, template.getToPartyType());
 		LOG.debug("To Party Id  [{}] and Type [{}]", toPartyID, toPartyType);
 		if (toPartyID != null) {
 			target.addToParty(toPartyID, toPartyType);
 		}
 	}
 
-	private void setTargetFromPartyIdAndFromPartyType(Message messageIn, Submission target) {
-		String fromPartyID = getPropertyWithFallback(messageIn, FROM_PARTY_ID);
-		String fromPartyType = getPropertyWithFallback(messageIn, FROM_PARTY_TYPE);
+	private void setTargetFromPartyIdAndFromPartyType(Message messageIn, Submission target, RabbitmqPluginPropertySnapshot.SubmissionTemplate template) {
+		String fromPartyID = getHeaderWithFallback(messageIn, FROM_PARTY_ID, template.getFromPartyId());
+		String fromPartyType = getHeaderWithFallback(messageIn, FROM_PARTY_TYPE, template.getFromPartyType());
 		LOG.debug("From Party Id  [{}] and Type [{}]", fromPartyID, fromPartyType);
 		target.addFromParty(fromPartyID, fromPartyType);
 	}
 
-	private void transformToSubmissionHandlePayload(Message messageIn, Submission target, String bodyloadEnabled, int i) {
-		final String propPayload = String.valueOf(MessageFormat.format(PAYLOAD_NAME_FORMAT, i));
+	private void transformToSubmissionHandlePayload(Message messageIn, Submission target, String bodyloadEnabled, int i, List<ByteBuffer> frames,
+			RabbitmqCompressionCodec codec) {
+		final String propPayload = RabbitmqHeaderCodec.payloadName(i);
 
 		final String contentId;
 		final String mimeType;
 		String fileName;
 		String payloadName;
 
-		final String payMimeTypeProp = MessageFormat.format(PAYLOAD_MIME_TYPE_FORMAT, i);
-		mimeType = trim(messageIn.getMessageProperties().getHeader(payMimeTypeProp));
-		final String payFileNameProp = MessageFormat.format(PAYLOAD_FILE_NAME_FORMAT, i);
-		fileName = fileUtilExtService.sanitizeFileName(trim(messageIn.getMessageProperties().getHeader(payFileNameProp)));
-		final String payloadNameProperty = MessageFormat.format(RABBITMQ_PAYLOAD_NAME_FORMAT, i);
-		payloadName = fileUtilExtService.sanitizeFileName(trim(messageIn.getMessageProperties().getHeader(payloadNameProperty)));
-		final String payContID = MessageFormat.format(PAYLOAD_MIME_CONTENT_ID_FORMAT, i);
-		contentId = trim(messageIn.getMessageProperties().getHeader(payContID));
+		final String payMimeTypeProp = RabbitmqHeaderCodec.payloadMimeType(i);
+		mimeType = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), payMimeTypeProp);
+		final String payFileNameProp = RabbitmqHeaderCodec.payloadFileName(i);
+		fileName = fileUtilExtService.sanitizeFileName(RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), payFileNameProp));
+		final String payloadNameProperty = RabbitmqHeaderCodec.rabbitmqPayloadName(i);
+		payloadName = fileUtilExtService.sanitizeFileName(RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), payloadNameProperty));
+		final String payContID = RabbitmqHeaderCodec.payloadMimeContentId(i);
+		contentId = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), payContID);
 		final Collection<Submission.TypedProperty> partProperties = new ArrayList<>();
-		if (mimeType != null && !mimeType.trim().equals("")) {
+		if (StringUtils.isNotEmpty(mimeType)) {
 			partProperties.add(new Submission.TypedProperty(MIME_TYPE, mimeType));
 		}
-		if (fileName != null && !fileName.trim().equals("")) {
+		if (StringUtils.isNotBlank(fileName)) {
 			partProperties.add(new Submission.TypedProperty(PAYLOAD_FILENAME, fileName));
 		}
 		if (StringUtils.isNotBlank(payloadName)) {
 			partProperties.add(new Submission.TypedProperty(MessageConstants.PAYLOAD_PROPERTY_FILE_NAME, payloadName));
 		}
 		DataHandler payloadDataHandler;
-		if (i == 1)
+		final String chunkTransferId = RabbitmqHeaderCodec.getString(messageIn.getMessageProperties(), RabbitmqHeaderCodec.payloadChunkTransferId(i));
+		final Object frame = messageIn.getMessageProperties().getHeader(RabbitmqHeaderCodec.payloadFrame(i));
+		if (StringUtils.isNotEmpty(chunkTransferId))
+			payloadDataHandler = chunkReassembler.getPayload(chunkTransferId);
+		else if (frame != null)
+			payloadDataHandler = new DataHandler(new RabbitmqByteBufferDataSource(getFrame(frames, frame, i), mimeType));
+		else if (i == 1 && messageIn.getMessageProperties().getHeader(propPayload) == null && codec != null)
+			payloadDataHandler = new DataHandler(new RabbitmqDecompressingDataSource(codec, new ByteArrayDataSource(messageIn.getBody(), mimeType), bodyCompressor.getMaxDecompressedSize()));
+		else if (i == 1 && messageIn.getMessageProperties().getHeader(propPayload) == null)
 			payloadDataHandler = new DataHandler(new ByteArrayDataSource(messageIn.getBody(), mimeType));
 		else {
 			try {
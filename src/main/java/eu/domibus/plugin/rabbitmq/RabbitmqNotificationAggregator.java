@@ -0,0 +1,438 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MESSAGE_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MESSAGE_TYPE_NOTIFICATION_BATCH;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.NOTIFICATION_COUNT;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY;
+
+/**
+ * Coalesces the send success, send failure and receive failure notifications: instead of publishing one empty message
+ * per event, the events are buffered per domain and queue and published as a single {@code notificationBatch} message
+ * once {@code maxEvents} events are buffered, or every {@code flushInterval} ms.
+ * <p>
+ * The body of a batch is a JSON array with an object per event holding its {@code messageId} and the headers of the
+ * notification it replaces, e.g. {@code [{"messageId":"42","messageType":"messageSent"}]}; its
+ * {@code notificationCount} header is the number of events.
+ * <p>
+ * The buffered events are flushed at shutdown; the batches that cannot be published then, or by the periodic flush,
+ * are spooled as files of {@code spoolDirectory}, which is required, and published again by the next flushes, including
+ * after a restart. A spooled file that cannot be read is moved to the {@value #QUARANTINE_DIRECTORY} subdirectory.
+ * <p>
+ * The events are only buffered in memory: the notification received from Domibus is already acknowledged, so the
+ * events still buffered when the JVM crashes, at most the last {@code flushInterval} ms of them, are lost. The backends
+ * relying on every notification must keep the coalescing disabled.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqNotificationAggregator {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqNotificationAggregator.class);
+
+    protected static final String SPOOL_FILE_SUFFIX = ".batch";
+    protected static final String TEMP_FILE_SUFFIX = ".tmp";
+    protected static final String QUARANTINE_DIRECTORY = "quarantine";
+    protected static final String SPOOL_DOMAIN = "domain";
+    protected static final String SPOOL_QUEUE = "queue";
+    protected static final String SPOOL_COUNT = "count";
+    protected static final String SPOOL_BODY = "body";
+
+    @Autowired
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Autowired
+    protected RabbitmqDestinationRegistry destinationRegistry;
+
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    @Autowired
+    protected DomainExtService domainExtService;
+
+    @Autowired
+    protected RabbitmqMetrics metrics;
+
+    private boolean enabled = false;
+    private int maxEvents = 500;
+    private long flushInterval = 1000;
+    private Path spoolDirectory;
+
+    /**
+     * The buffered events by domain code and queue property; guarded by itself.
+     */
+    private final Map<BufferKey, List<Message>> buffers = new HashMap<>();
+    private ScheduledExecutorService flusher;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedEvents = new LongAdder();
+    private final LongAdder flushFailures = new LongAdder();
+    private final LongAdder spooledBatches = new LongAdder();
+    private final LongAdder quarantinedBatches = new LongAdder();
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (spoolDirectory == null) {
+            throw new DefaultRabbitmqPluginException("A spool directory is required to coalesce the notifications");
+        }
+        Files.createDirectories(spoolDirectory.resolve(QUARANTINE_DIRECTORY));
+        deleteTempFiles();
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-notification-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAll, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        FunctionCounter.builder("rabbitmq.plugin.notification.flushes", flushes, LongAdder::sum).register(metrics.getMeterRegistry());
+        FunctionCounter.builder("rabbitmq.plugin.notification.flushedEvents", flushedEvents, LongAdder::sum).register(metrics.getMeterRegistry());
+        FunctionCounter.builder("rabbitmq.plugin.notification.flushFailures", flushFailures, LongAdder::sum).register(metrics.getMeterRegistry());
+        FunctionCounter.builder("rabbitmq.plugin.notification.spooledBatches", spooledBatches, LongAdder::sum).register(metrics.getMeterRegistry());
+        FunctionCounter.builder("rabbitmq.plugin.notification.quarantinedBatches", quarantinedBatches, LongAdder::sum).register(metrics.getMeterRegistry());
+        Gauge.builder("rabbitmq.plugin.notification.buffered", this, RabbitmqNotificationAggregator::getBufferedEvents).register(metrics.getMeterRegistry());
+        LOG.info("Coalescing the notifications by [{}] events or [{}] ms", maxEvents, flushInterval);
+    }
+
+    /**
+     * Flushes the buffered events, spooling the batches that cannot be published.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Map.Entry<BufferKey, List<Message>> batch : drainAll().entrySet()) {
+            if (!publish(batch.getKey(), batch.getValue())) {
+                spool(batch.getKey(), batch.getValue());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Buffers a notification of the current domain, to be published to the queue of {@code queueProperty}.
+     */
+    public void add(final Message notification, final String queueProperty) {
+        final BufferKey key = new BufferKey(domainContextExtService.getCurrentDomain().getCode(), queueProperty);
+        List<Message> batch = null;
+        synchronized (buffers) {
+            final List<Message> buffer = buffers.computeIfAbsent(key, bufferKey -> new ArrayList<>());
+            buffer.add(notification);
+            if (buffer.size() >= maxEvents) {
+                batch = buffers.remove(key);
+            }
+        }
+        if (batch != null && !publish(key, batch)) {
+            spool(key, batch);
+        }
+    }
+
+    protected void flushAll() {
+        try {
+            republishSpooled();
+            for (Map.Entry<BufferKey, List<Message>> batch : drainAll().entrySet()) {
+                if (!publish(batch.getKey(), batch.getValue())) {
+                    spool(batch.getKey(), batch.getValue());
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Could not flush the notifications", e);
+        }
+    }
+
+    private Map<BufferKey, List<Message>> drainAll() {
+        synchronized (buffers) {
+            final Map<BufferKey, List<Message>> drained = new HashMap<>(buffers);
+            buffers.clear();
+            return drained;
+        }
+    }
+
+    /**
+     * @return whether the broker confirmed the batch
+     */
+    protected boolean publish(final BufferKey key, final List<Message> events) {
+        return publish(key, events.size(), toJson(events));
+    }
+
+    protected boolean publish(final BufferKey key, final int count, final String body) {
+        try {
+            final DomainDTO domain = domainExtService.getDomain(key.domainCode);
+            final Address address = destinationRegistry.getAddresses(domain).get(key.queueProperty);
+            final MessageProperties properties = new MessageProperties();
+            properties.setHeader(RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, MESSAGE_TYPE_NOTIFICATION_BATCH);
+            properties.setHeader(NOTIFICATION_COUNT, count);
+            properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+            properties.setContentEncoding(StandardCharsets.UTF_8.name());
+            // waits for the confirm, which decides whether the batch has to be spooled
+            rabbitmqPublisher.publishAndWait(address, MessageBuilder.withBody(body.getBytes(StandardCharsets.UTF_8)).andProperties(properties).build());
+            LOG.debug("Published a batch of [{}] notifications to [{}]", count, address);
+            flushes.increment();
+            flushedEvents.add(count);
+            return true;
+        } catch (RuntimeException e) {
+            LOG.warn("Could not publish a batch of [{}] notifications of domain [{}] to [{}]", count, key.domainCode, key.queueProperty, e);
+            flushFailures.increment();
+            return false;
+        }
+    }
+
+    protected void spool(final BufferKey key, final List<Message> events) {
+        final Properties spooled = new Properties();
+        spooled.setProperty(SPOOL_DOMAIN, key.domainCode);
+        spooled.setProperty(SPOOL_QUEUE, key.queueProperty);
+        spooled.setProperty(SPOOL_COUNT, String.valueOf(events.size()));
+        spooled.setProperty(SPOOL_BODY, toJson(events));
+        final String name = UUID.randomUUID() + SPOOL_FILE_SUFFIX;
+        final Path tempFile = spoolDirectory.resolve(name + TEMP_FILE_SUFFIX);
+        try {
+            // written aside then moved, so that a crash never leaves a truncated batch to be published
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                spooled.store(writer, null);
+            }
+            final Path file = Files.move(tempFile, spoolDirectory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            spooledBatches.increment();
+            LOG.warn("Spooled a batch of [{}] notifications to [{}]", events.size(), file);
+        } catch (IOException e) {
+            LOG.error("Could not spool a batch of [{}] notifications of domain [{}] to [{}], they are lost", events.size(), key.domainCode, key.queueProperty, e);
+        }
+    }
+
+    protected void republishSpooled() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDirectory, "*" + SPOOL_FILE_SUFFIX)) {
+            for (Path file : files) {
+                final Properties spooled;
+                final int count;
+                try {
+                    spooled = readSpooled(file);
+                    count = Integer.parseInt(spooled.getProperty(SPOOL_COUNT));
+                } catch (IOException | RuntimeException e) {
+                    quarantine(file, e);
+                    continue;
+                }
+                final BufferKey key = new BufferKey(spooled.getProperty(SPOOL_DOMAIN), spooled.getProperty(SPOOL_QUEUE));
+                if (!publish(key, count, spooled.getProperty(SPOOL_BODY))) {
+                    // the broker is still unavailable, the next flush tries again
+                    return;
+                }
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            LOG.error("Could not read the spooled notifications of [{}]", spoolDirectory, e);
+        }
+    }
+
+    protected Properties readSpooled(final Path file) throws IOException {
+        final Properties spooled = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            spooled.load(reader);
+        }
+        for (String property : new String[]{SPOOL_DOMAIN, SPOOL_QUEUE, SPOOL_COUNT, SPOOL_BODY}) {
+            if (spooled.getProperty(property) == null) {
+                throw new DefaultRabbitmqPluginException("The spooled batch [" + file + "] has no [" + property + "]");
+            }
+        }
+        return spooled;
+    }
+
+    protected void quarantine(final Path file, final Exception cause) {
+        final Path quarantined = spoolDirectory.resolve(QUARANTINE_DIRECTORY).resolve(file.getFileName());
+        LOG.error("Could not read the spooled batch [{}], moving it to [{}]", file, quarantined, cause);
+        try {
+            Files.move(file, quarantined, StandardCopyOption.REPLACE_EXISTING);
+            quarantinedBatches.increment();
+        } catch (IOException e) {
+            LOG.error("Could not move the spooled batch [{}] to [{}]", file, quarantined, e);
+        }
+    }
+
+    /**
+     * Deletes the spool files whose writing was interrupted by a crash.
+     */
+    private void deleteTempFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDirectory, "*" + TEMP_FILE_SUFFIX)) {
+            for (Path file : files) {
+                LOG.warn("Deleting the incomplete spooled batch [{}]", file);
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * @return the events as a JSON array of objects holding their messageId and headers
+     */
+    protected static String toJson(final List<Message> events) {
+        final StringBuilder json = new StringBuilder("[");
+        for (Message event : events) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append('{');
+            final MessageProperties properties = event.getMessageProperties();
+            appendField(json, MESSAGE_ID, properties.getMessageId());
+            for (Map.Entry<String, Object> header : properties.getHeaders().entrySet()) {
+                if (header.getValue() != null) {
+                    json.append(',');
+                    appendField(json, header.getKey(), header.getValue().toString());
+                }
+            }
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static void appendField(final StringBuilder json, final String name, final String value) {
+        appendString(json, name);
+        json.append(':');
+        if (value == null) {
+            json.append("null");
+        } else {
+            appendString(json, value);
+        }
+    }
+
+    private static void appendString(final StringBuilder json, final String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    public int getBufferedEvents() {
+        synchronized (buffers) {
+            return buffers.values().stream().mapToInt(List::size).sum();
+        }
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public long getFlushFailures() {
+        return flushFailures.sum();
+    }
+
+    public long getSpooledBatches() {
+        return spooledBatches.sum();
+    }
+
+    public long getQuarantinedBatches() {
+        return quarantinedBatches.sum();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxEvents(int maxEvents) {
+        this.maxEvents = maxEvents;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        if (StringUtils.isNotBlank(spoolDirectory)) {
+            this.spoolDirectory = Paths.get(spoolDirectory).toAbsolutePath().normalize();
+        }
+    }
+
+    protected static final class BufferKey {
+
+        private final String domainCode;
+        private final String queueProperty;
+
+        BufferKey(String domainCode, String queueProperty) {
+            this.domainCode = domainCode;
+            this.queueProperty = queueProperty;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BufferKey)) {
+                return false;
+            }
+            final BufferKey other = (BufferKey) o;
+            return domainCode.equals(other.domainCode) && queueProperty.equals(other.queueProperty);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * domainCode.hashCode() + queueProperty.hashCode();
+        }
+    }
+}
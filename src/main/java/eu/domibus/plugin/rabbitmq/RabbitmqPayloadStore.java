@@ -0,0 +1,224 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Message;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.PAYLOAD_NAME_FORMAT;
+
+/**
+ * Claim-check store for the payloads above {@code threshold} bytes: the payload is written to a file of
+ * {@code directory} and the message only carries its {@code file:} URL in the {@code payload_N} header, which
+ * {@link RabbitmqMessageTransformer} reads back through a {@code URLDataSource}.
+ * <p>
+ * A payload stored by the plugin is deleted when the delivery referencing it is released because it was not
+ * published. The files written to the store by the backend, and the payloads of delivered messages, are never deleted
+ * on release: as the backend does not tell when it consumed a message, the files older than {@code timeToLive} ms are
+ * swept instead. The stored payloads are tracked in memory, so after a restart they are only swept too.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqPayloadStore {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqPayloadStore.class);
+
+    protected static final String PAYLOAD_FILE_SUFFIX = ".payload";
+    protected static final Pattern PAYLOAD_HEADER_PATTERN = Pattern.compile(PAYLOAD_NAME_FORMAT.replace("{0}", "\\d+"));
+
+    private boolean enabled = false;
+    private long threshold = 10 * 1024 * 1024;
+    private Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "domibus-rabbitmq-payloads");
+    private long timeToLive = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * The payloads stored by the plugin since it started.
+     */
+    private final Set<Path> storedFiles = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            LOG.debug("The payload store is disabled");
+            return;
+        }
+        directory = directory.toAbsolutePath().normalize();
+        Files.createDirectories(directory);
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-payload-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long sweepPeriod = Math.max(1000, timeToLive / 10);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepPeriod, sweepPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean exceedsThreshold(final DataHandler dataHandler) throws IOException {
+        return RabbitmqChunkedPayloadSender.isLargerThan(dataHandler, threshold);
+    }
+
+    /**
+     * Writes a payload to the store.
+     *
+     * @return the URL of the stored payload
+     */
+    public URL store(final DataHandler dataHandler) {
+        final Path file = directory.resolve(UUID.randomUUID() + PAYLOAD_FILE_SUFFIX);
+        try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final long size = transfer(dataHandler, target);
+            storedFiles.add(file);
+            LOG.debug("Stored payload of [{}] bytes in [{}]", size, file);
+            return file.toUri().toURL();
+        } catch (IOException e) {
+            delete(file);
+            throw new DefaultRabbitmqPluginException("Could not store the payload in [" + file + "]", e);
+        }
+    }
+
+    /**
+     * Deletes a payload stored by the plugin; the other files, e.g. written by the backend, are left to the sweep.
+     */
+    public void release(final URL url) {
+        final Path file = toStoredFile(url);
+        if (file != null && storedFiles.remove(file)) {
+            delete(file);
+        }
+    }
+
+    /**
+     * Releases the stored payloads referenced by the {@code payload_N} headers of a message that was not delivered.
+     */
+    public void release(final Message message) {
+        for (Map.Entry<String, Object> header : message.getMessageProperties().getHeaders().entrySet()) {
+            if (header.getValue() != null && PAYLOAD_HEADER_PATTERN.matcher(header.getKey()).matches()) {
+                try {
+                    release(new URL(header.getValue().toString().trim()));
+                } catch (MalformedURLException e) {
+                    LOG.debug("Header [{}] is not a payload reference", header.getKey());
+                }
+            }
+        }
+    }
+
+    protected long transfer(final DataHandler dataHandler, final FileChannel target) throws IOException {
+        if (dataHandler.getDataSource() instanceof FileDataSource) {
+            final Path source = ((FileDataSource) dataHandler.getDataSource()).getFile().toPath();
+            try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+                final long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += sourceChannel.transferTo(position, size - position, target);
+                }
+                return size;
+            }
+        }
+        try (InputStream inputStream = dataHandler.getInputStream();
+             ReadableByteChannel sourceChannel = Channels.newChannel(inputStream)) {
+            long position = 0;
+            long transferred;
+            while ((transferred = target.transferFrom(sourceChannel, position, Integer.MAX_VALUE)) > 0) {
+                position += transferred;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * @return the file of the store behind the URL, or {@code null} if the URL points outside of the store
+     */
+    protected Path toStoredFile(final URL url) {
+        if (!"file".equalsIgnoreCase(url.getProtocol())) {
+            return null;
+        }
+        try {
+            final Path file = Paths.get(url.toURI()).toAbsolutePath().normalize();
+            return directory.equals(file.getParent()) ? file : null;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    protected void sweep() {
+        final long oldest = System.currentTimeMillis() - timeToLive;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < oldest) {
+                    LOG.info("Deleting the expired payload [{}]", file);
+                    storedFiles.remove(file);
+                    delete(file);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not sweep the payload store [{}]", directory, e);
+        }
+    }
+
+    protected void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Could not delete the payload [{}]", file, e);
+        }
+    }
+
+    protected boolean isStored(final URL url) {
+        final Path file = toStoredFile(url);
+        return file != null && storedFiles.contains(file);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setThreshold(long threshold) {
+        this.threshold = threshold;
+    }
+
+    public void setDirectory(String directory) {
+        if (StringUtils.isNotBlank(directory)) {
+            this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        }
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+}
@@ -0,0 +1,217 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_OUT;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.ACTION;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.FROM_PARTY_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MPC;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.SERVICE;
+
+/**
+ * Classifies the messages delivered to {@code queue.out} into priority lanes, from the {@code mpc}, {@code service},
+ * {@code action} and {@code fromPartyId} headers set from the submission, so that urgent messages are not queued
+ * behind bulk ones.
+ * <p>
+ * The {@code lanes} are given as {@code <lane>:<priority>} separated by commas, e.g. {@code urgent:9,normal:5,bulk:1};
+ * the messages matching no rule go to the {@code defaultLane}. The {@code rules} are evaluated in order and separated
+ * by semicolons, each one being {@code <lane>:<header>=<value>[,<header>=<value>...]} and matching when all its
+ * headers have the given values, e.g. {@code urgent:service=urn:court,action=Urgent;bulk:mpc=urn:bulk}.
+ * <p>
+ * With the {@code priority} mode, the messages are published to {@code queue.out}, declared with
+ * {@code x-max-priority}, with the priority of their lane. With the {@code lanes} mode, they are published to the
+ * {@code <queue.out>.<lane>} queues, so that the consumers can poll the urgent lane first; the lane queues are resolved
+ * and declared with the other queues of the domain by the {@link RabbitmqDestinationRegistry}, under the
+ * {@code <queue.out property>.<lane>} queue property. The {@code none} mode keeps a single queue without priorities.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqPriorityClassifier {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqPriorityClassifier.class);
+
+    public static final String MODE_NONE = "none";
+    public static final String MODE_PRIORITY = "priority";
+    public static final String MODE_LANES = "lanes";
+
+    protected static final String MAX_PRIORITY_ARGUMENT = "x-max-priority";
+    protected static final String[] RULE_HEADERS = {MPC, SERVICE, ACTION, FROM_PARTY_ID};
+
+    private String mode = MODE_NONE;
+    private Map<String, Integer> lanes = Collections.singletonMap("normal", 5);
+    private String defaultLane = "normal";
+    private List<Rule> rules = Collections.emptyList();
+    private int maxPriority = 9;
+
+    public boolean isEnabled() {
+        return !MODE_NONE.equals(mode);
+    }
+
+    /**
+     * @return the arguments with which {@code queue.out} is declared
+     */
+    public Map<String, Object> getQueueArguments() {
+        if (MODE_PRIORITY.equals(mode)) {
+            return Collections.singletonMap(MAX_PRIORITY_ARGUMENT, maxPriority);
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @return the lane of the message, {@code defaultLane} if it matches no rule
+     */
+    public String classify(final MessageProperties properties) {
+        for (Rule rule : rules) {
+            if (rule.matches(properties)) {
+                return rule.lane;
+            }
+        }
+        return defaultLane;
+    }
+
+    /**
+     * @return the lanes having their own queue, none unless in the {@code lanes} mode
+     */
+    public Collection<String> getQueueLanes() {
+        return MODE_LANES.equals(mode) ? lanes.keySet() : Collections.emptySet();
+    }
+
+    /**
+     * @return the property of the queue of a lane, e.g. {@code plugin.rabbitmq.queue.out.urgent}
+     */
+    public static String getLaneQueueProperty(final String queueProperty, final String lane) {
+        return queueProperty + "." + lane;
+    }
+
+    /**
+     * Sets the priority of the message in the {@code priority} mode.
+     *
+     * @return the property of the queue to which the message, classified in {@code lane}, is published
+     */
+    public String route(final Message message, final String lane) {
+        if (MODE_PRIORITY.equals(mode)) {
+            message.getMessageProperties().setPriority(lanes.get(lane));
+        }
+        if (MODE_LANES.equals(mode)) {
+            return getLaneQueueProperty(RABBITMQ_PLUGIN_QUEUE_OUT, lane);
+        }
+        return RABBITMQ_PLUGIN_QUEUE_OUT;
+    }
+
+    public void setMode(String mode) {
+        final String normalized = mode.trim().toLowerCase(Locale.ROOT);
+        if (!MODE_NONE.equals(normalized) && !MODE_PRIORITY.equals(normalized) && !MODE_LANES.equals(normalized)) {
+            throw new DefaultRabbitmqPluginException("Unknown priority mode [" + mode + "], expected one of ["
+                    + MODE_NONE + ", " + MODE_PRIORITY + ", " + MODE_LANES + "]");
+        }
+        this.mode = normalized;
+    }
+
+    public void setLanes(String lanes) {
+        final Map<String, Integer> parsed = new LinkedHashMap<>();
+        for (String lane : StringUtils.split(lanes, ',')) {
+            final String name = StringUtils.substringBefore(lane, ":").trim();
+            final String priority = StringUtils.substringAfter(lane, ":").trim();
+            try {
+                parsed.put(name, Integer.valueOf(priority));
+            } catch (NumberFormatException e) {
+                throw new DefaultRabbitmqPluginException("Invalid priority of lane [" + lane + "]", e);
+            }
+        }
+        this.lanes = parsed;
+    }
+
+    public void setDefaultLane(String defaultLane) {
+        this.defaultLane = defaultLane.trim();
+    }
+
+    public void setRules(String rules) {
+        final List<Rule> parsed = new ArrayList<>();
+        for (String rule : StringUtils.split(rules, ';')) {
+            final String lane = StringUtils.substringBefore(rule, ":").trim();
+            final Map<String, String> conditions = new LinkedHashMap<>();
+            for (String condition : StringUtils.split(StringUtils.substringAfter(rule, ":"), ',')) {
+                final String header = StringUtils.substringBefore(condition, "=").trim();
+                if (!condition.contains("=") || !isRuleHeader(header)) {
+                    throw new DefaultRabbitmqPluginException("Invalid condition [" + condition + "] of rule [" + rule
+                            + "], expected <header>=<value> with a header among " + String.join(", ", RULE_HEADERS));
+                }
+                conditions.put(header, StringUtils.substringAfter(condition, "=").trim());
+            }
+            parsed.add(new Rule(lane, conditions));
+        }
+        this.rules = parsed;
+    }
+
+    public void setMaxPriority(int maxPriority) {
+        this.maxPriority = maxPriority;
+    }
+
+    /**
+     * Checks that the lanes of the rules are defined, once all the properties are set.
+     */
+    @PostConstruct
+    public void init() {
+        if (!lanes.containsKey(defaultLane)) {
+            throw new DefaultRabbitmqPluginException("The default lane [" + defaultLane + "] is not among the lanes " + lanes.keySet());
+        }
+        for (Rule rule : rules) {
+            if (!lanes.containsKey(rule.lane)) {
+                throw new DefaultRabbitmqPluginException("The lane [" + rule.lane + "] of a rule is not among the lanes " + lanes.keySet());
+            }
+        }
+        for (Map.Entry<String, Integer> lane : lanes.entrySet()) {
+            if (lane.getValue() < 0 || lane.getValue() > maxPriority) {
+                throw new DefaultRabbitmqPluginException("The priority of lane [" + lane.getKey() + "] is not between 0 and " + maxPriority);
+            }
+        }
+        LOG.info("Classifying the deliveries with the [{}] mode into the lanes {} with the rules {}", mode, lanes, rules);
+    }
+
+    private static boolean isRuleHeader(String header) {
+        for (String ruleHeader : RULE_HEADERS) {
+            if (ruleHeader.equals(header)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static final class Rule {
+
+        private final String lane;
+        private final Map<String, String> conditions;
+
+        Rule(String lane, Map<String, String> conditions) {
+            this.lane = lane;
+            this.conditions = conditions;
+        }
+
+        boolean matches(final MessageProperties properties) {
+            for (Map.Entry<String, String> condition : conditions.entrySet()) {
+                if (!condition.getValue().equals(RabbitmqHeaderCodec.getString(properties, condition.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return lane + conditions;
+        }
+    }
+}
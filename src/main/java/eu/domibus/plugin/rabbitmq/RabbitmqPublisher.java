@@ -0,0 +1,414 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.AmqpTimeoutException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous publisher backed by publisher confirms.
+ * <p>
+ * Every message is sent with its own correlation data and the returned future completes when the broker confirms
+ * it. At most {@code maxInFlight} messages wait for a confirm at any time; callers block for up to
+ * {@code inFlightTimeout} ms when the window is full. Nacked messages are published again up to {@code maxAttempts}
+ * times; messages returned as unroutable are failed straight away.
+ * <p>
+ * When the connection factory has no publisher confirms the messages are sent synchronously, as before.
+ * <p>
+ * A message known not to have been accepted by the broker, because it was nacked, returned, could not be sent or
+ * found no in-flight slot, fails with an {@link UnsentMessageException}; a message whose confirm did not arrive in time
+ * may still have been delivered.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqPublisher {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqPublisher.class);
+
+    protected static final String DEFAULT_EXCHANGE = "";
+
+    @Autowired
+    protected RabbitTemplate rabbitTemplate;
+
+    private int maxInFlight = 1000;
+    private long inFlightTimeout = 30000;
+    private int maxAttempts = 5;
+    private long retryDelay = 1000;
+
+    private Semaphore inFlight;
+    private ScheduledExecutorService retryScheduler;
+    private boolean confirmsEnabled;
+
+    /**
+     * Failure of a message that the broker did not accept.
+     */
+    public static class UnsentMessageException extends DefaultRabbitmqPluginException {
+
+        public UnsentMessageException(String message) {
+            super(message);
+        }
+
+        public UnsentMessageException(String message, Exception e) {
+            super(message, e);
+        }
+    }
+
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder nacked = new LongAdder();
+    private final LongAdder returned = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder confirmCount = new LongAdder();
+    private final LongAdder confirmLatencyTotalNanos = new LongAdder();
+    private final AtomicLong confirmLatencyMaxNanos = new AtomicLong();
+    private final LongAdder sendCount = new LongAdder();
+    private final LongAdder sendTotalNanos = new LongAdder();
+    private final LongAdder channelCheckoutTimeouts = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        inFlight = new Semaphore(maxInFlight);
+        confirmsEnabled = rabbitTemplate.getConnectionFactory().isPublisherConfirms();
+        if (!confirmsEnabled) {
+            LOG.warn("Publisher confirms are not enabled on the connection factory, messages are sent synchronously");
+            return;
+        }
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-publisher-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rabbitTemplate.setConfirmCallback(this::confirm);
+        rabbitTemplate.setReturnsCallback(returnedMessage -> LOG.warn("Message returned by the broker: exchange [{}], routing key [{}], reply [{}] [{}]",
+                returnedMessage.getExchange(), returnedMessage.getRoutingKey(), returnedMessage.getReplyCode(), returnedMessage.getReplyText()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (retryScheduler != null) {
+            retryScheduler.shutdown();
+        }
+    }
+
+    /**
+     * Publishes a message to a queue through the default exchange.
+     *
+     * @return a future completed once the broker confirmed the message
+     */
+    public CompletableFuture<Void> publish(final String queueName, final Message message) {
+        return publish(DEFAULT_EXCHANGE, queueName, message);
+    }
+
+    /**
+     * Publishes a message to an address without waiting for the broker.
+     *
+     * @return a future completed once the broker confirmed the message
+     */
+    public CompletableFuture<Void> publish(final Address address, final Message message) {
+        return publish(address.getExchangeName(), address.getRoutingKey(), message);
+    }
+
+    /**
+     * Publishes a message without waiting for the broker.
+     *
+     * @return a future completed once the broker confirmed the message
+     */
+    public CompletableFuture<Void> publish(final String exchange, final String routingKey, final Message message) {
+        if (!confirmsEnabled) {
+            final long start = System.nanoTime();
+            try {
+                rabbitTemplate.send(exchange, routingKey, message);
+            } catch (AmqpTimeoutException e) {
+                channelCheckoutTimeouts.increment();
+                throw e;
+            } finally {
+                recordSendTime(System.nanoTime() - start);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        acquireInFlightPermit();
+        final PendingPublish pendingPublish = new PendingPublish(UUID.randomUUID().toString(), exchange, routingKey, message, 1, new CompletableFuture<>());
+        send(pendingPublish);
+        return pendingPublish.completion;
+    }
+
+    /**
+     * Publishes a batch of messages on a single channel without waiting for the broker, the message {@code i} being
+     * sent to the address {@code i}. The in-flight permit of each message is taken just before it is sent; when the
+     * batch stops on a failure, the messages not sent yet are failed straight away.
+     *
+     * @return the futures completed once the broker confirmed each message
+     */
+    public List<CompletableFuture<Void>> publishBatch(final List<Address> addresses, final List<Message> messages) {
+        if (addresses.size() != messages.size()) {
+            throw new IllegalArgumentException("Expected as many addresses as messages");
+        }
+        final List<CompletableFuture<Void>> completions = new ArrayList<>(messages.size());
+        if (!confirmsEnabled) {
+            for (int i = 0; i < messages.size(); i++) {
+                completions.add(publish(addresses.get(i), messages.get(i)));
+            }
+            return completions;
+        }
+        final List<PendingPublish> pendingPublishes = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            final PendingPublish pendingPublish = new PendingPublish(UUID.randomUUID().toString(), addresses.get(i).getExchangeName(),
+                    addresses.get(i).getRoutingKey(), messages.get(i), 1, new CompletableFuture<>());
+            pendingPublishes.add(pendingPublish);
+            completions.add(pendingPublish.completion);
+        }
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger permits = new AtomicInteger();
+        try {
+            rabbitTemplate.invoke(operations -> {
+                for (PendingPublish pendingPublish : pendingPublishes) {
+                    acquireInFlightPermit();
+                    permits.incrementAndGet();
+                    pendingPublish.sentAt = System.nanoTime();
+                    try {
+                        operations.send(pendingPublish.exchange, pendingPublish.routingKey, pendingPublish.message, pendingPublish);
+                    } finally {
+                        recordSendTime(System.nanoTime() - pendingPublish.sentAt);
+                    }
+                    sent.incrementAndGet();
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            if (e instanceof AmqpTimeoutException) {
+                channelCheckoutTimeouts.increment();
+            }
+            // the messages sent before the failure are confirmed as usual
+            LOG.warn("Could not send [{}] messages of a batch of [{}]", pendingPublishes.size() - sent.get(), pendingPublishes.size(), e);
+            for (PendingPublish pendingPublish : pendingPublishes.subList(sent.get(), pendingPublishes.size())) {
+                failed.increment();
+                pendingPublish.completion.completeExceptionally(e);
+            }
+        } finally {
+            // the permits of the messages that were not sent
+            inFlight.release(permits.get() - sent.get());
+        }
+        return completions;
+    }
+
+    /**
+     * Publishes a message to an address and waits for the broker to confirm it.
+     */
+    public void publishAndWait(final Address address, final Message message) {
+        awaitConfirm(publish(address, message), address);
+    }
+
+    /**
+     * Waits for the broker to confirm the messages behind a future returned by {@link #publish}, or a combination of
+     * such futures.
+     */
+    public void awaitConfirm(final CompletableFuture<?> confirmation, final Address address) {
+        try {
+            confirmation.get(inFlightTimeout * maxAttempts, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DefaultRabbitmqPluginException("Interrupted while waiting for the confirm of the message sent to [" + address + "]", e);
+        } catch (ExecutionException e) {
+            throw new UnsentMessageException("The message sent to [" + address + "] was not accepted by the broker", e);
+        } catch (TimeoutException e) {
+            throw new DefaultRabbitmqPluginException("The message sent to [" + address + "] was not confirmed by the broker in time", e);
+        }
+    }
+
+    protected void acquireInFlightPermit() {
+        try {
+            if (!inFlight.tryAcquire(inFlightTimeout, TimeUnit.MILLISECONDS)) {
+                throw new UnsentMessageException("More than [" + maxInFlight + "] messages are waiting for a publisher confirm");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DefaultRabbitmqPluginException("Interrupted while waiting for a publisher confirm slot", e);
+        }
+    }
+
+    protected void send(final PendingPublish pendingPublish) {
+        pendingPublish.sentAt = System.nanoTime();
+        try {
+            rabbitTemplate.send(pendingPublish.exchange, pendingPublish.routingKey, pendingPublish.message, pendingPublish);
+        } catch (AmqpException e) {
+            if (e instanceof AmqpTimeoutException) {
+                channelCheckoutTimeouts.increment();
+            }
+            LOG.warn("Could not send message [{}] to [{}]", pendingPublish.getId(), pendingPublish.routingKey, e);
+            handleNack(pendingPublish, e.getMessage());
+        } catch (RuntimeException e) {
+            // not a broker failure, sending the message again would fail the same way
+            LOG.error("Could not send message [{}] to [{}]", pendingPublish.getId(), pendingPublish.routingKey, e);
+            inFlight.release();
+            failed.increment();
+            pendingPublish.completion.completeExceptionally(e);
+        } finally {
+            recordSendTime(System.nanoTime() - pendingPublish.sentAt);
+        }
+    }
+
+    protected void confirm(final CorrelationData correlationData, final boolean ack, final String cause) {
+        if (!(correlationData instanceof PendingPublish)) {
+            return;
+        }
+        final PendingPublish pendingPublish = (PendingPublish) correlationData;
+        recordConfirmLatency(System.nanoTime() - pendingPublish.sentAt);
+        if (!ack) {
+            nacked.increment();
+            handleNack(pendingPublish, cause);
+            return;
+        }
+        inFlight.release();
+        if (pendingPublish.getReturned() != null) {
+            returned.increment();
+            failed.increment();
+            pendingPublish.completion.completeExceptionally(new DefaultRabbitmqPluginException("Message [" + pendingPublish.getId()
+                    + "] could not be routed to [" + pendingPublish.routingKey + "]: " + pendingPublish.getReturned().getReplyText()));
+            return;
+        }
+        acked.increment();
+        pendingPublish.completion.complete(null);
+    }
+
+    protected void handleNack(final PendingPublish pendingPublish, final String cause) {
+        if (pendingPublish.attempt >= maxAttempts) {
+            LOG.error("Message [{}] to [{}] was not confirmed after [{}] attempts: [{}]", pendingPublish.getId(), pendingPublish.routingKey, pendingPublish.attempt, cause);
+            inFlight.release();
+            failed.increment();
+            pendingPublish.completion.completeExceptionally(new DefaultRabbitmqPluginException("Message [" + pendingPublish.getId()
+                    + "] to [" + pendingPublish.routingKey + "] was not confirmed: " + cause));
+            return;
+        }
+        LOG.warn("Message [{}] to [{}] was not confirmed, retrying (attempt [{}]): [{}]", pendingPublish.getId(), pendingPublish.routingKey, pendingPublish.attempt, cause);
+        retried.increment();
+        final PendingPublish retry = pendingPublish.nextAttempt();
+        retryScheduler.schedule(() -> send(retry), retryDelay * pendingPublish.attempt, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the time spent sending a message: checking out a channel, then writing to the socket, which blocks
+     * while the broker applies flow control to the publishers.
+     */
+    protected void recordSendTime(final long sendNanos) {
+        sendCount.increment();
+        sendTotalNanos.add(sendNanos);
+    }
+
+    protected void recordConfirmLatency(final long latencyNanos) {
+        confirmCount.increment();
+        confirmLatencyTotalNanos.add(latencyNanos);
+        confirmLatencyMaxNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getAcked() {
+        return acked.sum();
+    }
+
+    public long getNacked() {
+        return nacked.sum();
+    }
+
+    public long getReturned() {
+        return returned.sum();
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getConfirmCount() {
+        return confirmCount.sum();
+    }
+
+    public long getConfirmLatencyTotalNanos() {
+        return confirmLatencyTotalNanos.sum();
+    }
+
+    public long getConfirmLatencyMaxNanos() {
+        return confirmLatencyMaxNanos.get();
+    }
+
+    public long getSendCount() {
+        return sendCount.sum();
+    }
+
+    public long getSendTotalNanos() {
+        return sendTotalNanos.sum();
+    }
+
+    public long getChannelCheckoutTimeouts() {
+        return channelCheckoutTimeouts.sum();
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setInFlightTimeout(long inFlightTimeout) {
+        this.inFlightTimeout = inFlightTimeout;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Correlation data of a message waiting for its confirm. A new instance is used for every attempt, all of them
+     * sharing the same id and completion future.
+     */
+    protected static class PendingPublish extends CorrelationData {
+
+        protected final String exchange;
+        protected final String routingKey;
+        protected final Message message;
+        protected final int attempt;
+        protected final CompletableFuture<Void> completion;
+        protected volatile long sentAt;
+
+        PendingPublish(String id, String exchange, String routingKey, Message message, int attempt, CompletableFuture<Void> completion) {
+            super(id);
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.message = message;
+            this.attempt = attempt;
+            this.completion = completion;
+        }
+
+        PendingPublish nextAttempt() {
+            return new PendingPublish(getId(), exchange, routingKey, message, attempt + 1, completion);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Advice of the listener containers of the incoming queue replacing the immediate requeue of the messages that fail
+ * by delayed retries: a failed message is published to the retry queue of its attempt, {@code <queue>.retry.<delay>},
+ * whose {@code x-message-ttl} is the delay and whose dead-letter exchange sends the expired message back to the queue
+ * it was consumed from. The failed delivery itself is then acknowledged.
+ * <p>
+ * The advice applies to {@code queueName} and to the queues derived from it: the {@code shardCount} shards of the
+ * sharded topology and the per-domain queues of the {@code domains} of the routing topology, each with its own retry
+ * queues so that a retried message comes back to its shard or domain. The parking queue and the retry queues are
+ * exposed by {@link #getDeclarables()}, to be declared by the admin of the connection factory, which declares them
+ * again whenever the connection is recovered.
+ * <p>
+ * The attempts are counted by the {@value #RETRY_ATTEMPT_HEADER} header set on each retry; the {@code x-death} header
+ * the broker adds each time a message expires from a retry queue is only used for the messages retried before the
+ * header was introduced, as brokers from RabbitMQ 4.0 on do not let it be relied upon. The attempt {@code n} waits for
+ * the n-th of the {@code delays} (1s, 10s, 1m and 10m by default); once all of them were used, the message is
+ * published to {@code parkingQueue} with the last error in the {@value #RETRY_ERROR_HEADER} header and the queue it
+ * failed on in the {@value #RETRY_QUEUE_HEADER} header, to be inspected and moved back by an operator.
+ * <p>
+ * When a retry cannot be published, the exception is rethrown and the container requeues the message as before.
+ * Batches and manually acknowledged messages are not retried by this advice.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqRetryInterceptor implements MethodInterceptor {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqRetryInterceptor.class);
+
+    public static final String RETRY_ERROR_HEADER = "x-retry-error";
+    public static final String RETRY_QUEUE_HEADER = "x-retry-queue";
+    public static final String RETRY_ATTEMPT_HEADER = "x-domibus-retry-attempt";
+
+    protected static final String X_DEATH_QUEUE = "queue";
+    protected static final String X_DEATH_REASON = "reason";
+    protected static final String X_DEATH_COUNT = "count";
+    protected static final String X_DEATH_EXPIRED = "expired";
+
+    @Autowired
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Autowired
+    protected RabbitmqMetrics metrics;
+
+    private boolean enabled = false;
+    private String queueName;
+    private long[] delays = {1000, 10000, 60000, 600000};
+    private String parkingQueue;
+    private int shardCount = 0;
+    private String domains;
+
+    /**
+     * The queues whose failed messages are retried.
+     */
+    private final Set<String> retriedQueues = new LinkedHashSet<>();
+    private final List<Declarable> declarables = new ArrayList<>();
+    private final Map<String, LongAdder> retries = new ConcurrentHashMap<>();
+    private final LongAdder parked = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        if (delays.length == 0) {
+            throw new DefaultRabbitmqPluginException("At least one retry delay is required for the queue [" + queueName + "]");
+        }
+        retriedQueues.add(queueName);
+        for (int shard = 0; shard < shardCount; shard++) {
+            retriedQueues.add(RabbitmqShardedInboundTopology.getShardQueueName(queueName, shard));
+        }
+        for (String domainCode : StringUtils.split(StringUtils.defaultString(domains), ',')) {
+            retriedQueues.add(RabbitmqDomainRoutingTopology.getDomainQueueName(queueName, domainCode.trim()));
+        }
+
+        declarables.add(new Queue(parkingQueue));
+        for (String retriedQueue : retriedQueues) {
+            final List<String> retryQueueNames = getRetryQueueNames(retriedQueue);
+            for (int attempt = 0; attempt < delays.length; attempt++) {
+                final String retryQueueName = retryQueueNames.get(attempt);
+                final Map<String, Object> arguments = new HashMap<>();
+                arguments.put("x-message-ttl", delays[attempt]);
+                arguments.put("x-dead-letter-exchange", "");
+                arguments.put("x-dead-letter-routing-key", retriedQueue);
+                declarables.add(new Queue(retryQueueName, true, false, false, arguments));
+
+                final LongAdder retried = new LongAdder();
+                retries.put(retryQueueName, retried);
+                FunctionCounter.builder("rabbitmq.plugin.retry", retried, LongAdder::sum)
+                        .tag(RabbitmqMetrics.TAG_QUEUE, retryQueueName)
+                        .register(metrics.getMeterRegistry());
+            }
+        }
+        FunctionCounter.builder("rabbitmq.plugin.retry.parked", parked, LongAdder::sum).register(metrics.getMeterRegistry());
+        LOG.info("Retrying the failed messages of {} through their retry queues after {} ms, then parking them in [{}]",
+                retriedQueues, Arrays.toString(delays), parkingQueue);
+    }
+
+    /**
+     * @return the parking queue and the retry queues, none when the retries are disabled
+     */
+    public Declarables getDeclarables() {
+        return new Declarables(declarables);
+    }
+
+    /**
+     * @return the retry queues of each tier sending the messages back to {@code consumerQueue}
+     */
+    public List<String> getRetryQueueNames(final String consumerQueue) {
+        final List<String> names = new ArrayList<>(delays.length);
+        for (long delay : delays) {
+            names.add(consumerQueue + ".retry." + delay);
+        }
+        return names;
+    }
+
+    /**
+     * Intercepts {@code invokeListener(Channel, Object)} of the container.
+     */
+    @Override
+    public Object invoke(final MethodInvocation invocation) throws Throwable {
+        final Object data = invocation.getArguments()[1];
+        if (!enabled || !(data instanceof Message)) {
+            return invocation.proceed();
+        }
+        try {
+            return invocation.proceed();
+        } catch (Throwable failure) {
+            final Message message = (Message) data;
+            if (!isRetried(message.getMessageProperties().getConsumerQueue())) {
+                throw failure;
+            }
+            retryOrPark(message, failure);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the messages of the queue are retried: the incoming queue and the queues derived from it
+     */
+    protected boolean isRetried(final String consumerQueue) {
+        return consumerQueue != null && retriedQueues.contains(consumerQueue);
+    }
+
+    protected void retryOrPark(final Message message, final Throwable failure) throws Throwable {
+        final String messageId = message.getMessageProperties().getMessageId();
+        final String consumerQueue = message.getMessageProperties().getConsumerQueue();
+        final List<String> queueRetryQueueNames = getRetryQueueNames(consumerQueue);
+        final int attempt = getAttempts(message, queueRetryQueueNames);
+        // waits for the confirms: the failed message is acknowledged once its copy is queued, the copy must not be lost
+        try {
+            if (attempt < delays.length) {
+                LOG.warn("Message [{}] of [{}] failed, retrying it in [{}] ms (attempt [{}] of [{}])", messageId, consumerQueue, delays[attempt], attempt + 1, delays.length, failure);
+                message.getMessageProperties().setHeader(RETRY_ATTEMPT_HEADER, attempt + 1);
+                rabbitmqPublisher.publishAndWait(new Address("", queueRetryQueueNames.get(attempt)), message);
+                retries.get(queueRetryQueueNames.get(attempt)).increment();
+                return;
+            }
+            LOG.error("Message [{}] of [{}] failed after [{}] retries, parking it in [{}]", messageId, consumerQueue, attempt, parkingQueue, failure);
+            message.getMessageProperties().setHeader(RETRY_ERROR_HEADER, StringUtils.abbreviate(String.valueOf(failure), 1000));
+            message.getMessageProperties().setHeader(RETRY_QUEUE_HEADER, consumerQueue);
+            rabbitmqPublisher.publishAndWait(new Address("", parkingQueue), message);
+            parked.increment();
+        } catch (RuntimeException e) {
+            LOG.error("Could not publish the failed message [{}] for a retry, requeuing it", messageId, e);
+            failure.addSuppressed(e);
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the number of retries of the message: its {@value #RETRY_ATTEMPT_HEADER} header, else the number of
+     * times it expired from the retry queues
+     */
+    protected int getAttempts(final Message message, final List<String> queueRetryQueueNames) {
+        final Object attemptHeader = message.getMessageProperties().getHeader(RETRY_ATTEMPT_HEADER);
+        if (attemptHeader instanceof Number) {
+            return Math.max(0, ((Number) attemptHeader).intValue());
+        }
+        if (attemptHeader != null && StringUtils.isNumeric(attemptHeader.toString())) {
+            return Integer.parseInt(attemptHeader.toString());
+        }
+        final List<Map<String, ?>> deaths = message.getMessageProperties().getXDeathHeader();
+        if (deaths == null) {
+            return 0;
+        }
+        long attempts = 0;
+        for (Map<String, ?> death : deaths) {
+            if (X_DEATH_EXPIRED.equals(String.valueOf(death.get(X_DEATH_REASON)))
+                    && queueRetryQueueNames.contains(String.valueOf(death.get(X_DEATH_QUEUE)))
+                    && death.get(X_DEATH_COUNT) instanceof Number) {
+                attempts += ((Number) death.get(X_DEATH_COUNT)).longValue();
+            }
+        }
+        return (int) Math.min(attempts, Integer.MAX_VALUE);
+    }
+
+    public long getRetries(final String retryQueueName) {
+        final LongAdder retried = retries.get(retryQueueName);
+        return retried == null ? 0 : retried.sum();
+    }
+
+    public long getParked() {
+        return parked.sum();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setQueueName(String queueName) {
+        this.queueName = queueName;
+    }
+
+    /**
+     * @param delays the comma separated delays of the retries, in ms
+     */
+    public void setDelays(String delays) {
+        final String[] values = StringUtils.split(delays, ',');
+        this.delays = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            this.delays[i] = Long.parseLong(values[i].trim());
+        }
+    }
+
+    public void setParkingQueue(String parkingQueue) {
+        this.parkingQueue = parkingQueue;
+    }
+
+    /**
+     * @param shardCount the number of shards of the incoming queue, 0 when it is not sharded
+     */
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * @param domains the comma separated codes of the domains having their own incoming queue, none by default
+     */
+    public void setDomains(String domains) {
+        this.domains = domains;
+    }
+}
@@ -0,0 +1,252 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import org.aopalliance.aop.Advice;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.CustomExchange;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.HeadersExchange;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.context.SmartLifecycle;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.CONVERSATION_ID;
+
+/**
+ * Optional sharded topology of the incoming queue: the submissions are published to the exchange {@code exchangeName}
+ * which spreads them over {@code shardCount} queues named {@code <queueName>.shard.<n>}.
+ * <p>
+ * The messages with the {@code hashHeader} header, {@code conversationId} by default, are routed to the consistent-hash
+ * exchange {@code <exchangeName>.header} hashing that header; another header such as {@code toPartyId} or a custom one
+ * can be used. All the messages with the same header value land on the same shard, which has its own listener
+ * container with {@code consumersPerShard} consumers: with one consumer per shard (the default), the submissions of a
+ * conversation are processed in order while the shards are processed in parallel. The messages without the header go to the alternate
+ * exchange {@code <exchangeName>.messageId}, which hashes their {@code message_id} property instead, so that they are
+ * spread over the shards as well.
+ * <p>
+ * The exchanges, the shard queues and their bindings are exposed by {@link #getDeclarables()}, to be declared by the
+ * admin of the connection factory, which declares them again whenever the connection is recovered.
+ * <p>
+ * Like the incoming queue, the shards are consumed in batches by the {@code batchListener} when one is set, else
+ * through the {@code keyedDispatcher} by a single consumer per shard when one is set. The {@code adviceChain} of the
+ * incoming queue, such as the delayed retries, applies to the shards as well. The exchange type is provided by the {@code rabbitmq_consistent_hash_exchange} broker plugin. The incoming queue
+ * itself is still consumed, for the clients that do not publish to the exchange.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqShardedInboundTopology implements SmartLifecycle {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqShardedInboundTopology.class);
+
+    protected static final String CONSISTENT_HASH_EXCHANGE_TYPE = "x-consistent-hash";
+    protected static final String HASH_HEADER_ARGUMENT = "hash-header";
+    protected static final String HASH_PROPERTY_ARGUMENT = "hash-property";
+    protected static final String MESSAGE_ID_PROPERTY = "message_id";
+    protected static final String ALTERNATE_EXCHANGE_ARGUMENT = "alternate-exchange";
+    protected static final String HEADER_EXCHANGE_SUFFIX = ".header";
+    protected static final String MESSAGE_ID_EXCHANGE_SUFFIX = ".messageId";
+    /**
+     * The binding key is the weight of a shard in the hash ring, all the shards have the same.
+     */
+    protected static final String SHARD_WEIGHT = "1";
+
+    private ConnectionFactory connectionFactory;
+    private MessageListener messageListener;
+    private RabbitmqKeyedDispatcher keyedDispatcher;
+    private ChannelAwareBatchMessageListener batchListener;
+    private int batchSize = 50;
+    private long batchTimeout = 100;
+    private Advice[] adviceChain = new Advice[0];
+    private boolean enabled = false;
+    private String queueName;
+    private String exchangeName;
+    private int shardCount = 4;
+    private int consumersPerShard = 1;
+    private int prefetchCount = 10;
+    private String hashHeader = CONVERSATION_ID;
+
+    private final List<Declarable> declarables = new ArrayList<>();
+    private final List<SimpleMessageListenerContainer> containers = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        final CustomExchange headerExchange = new CustomExchange(exchangeName + HEADER_EXCHANGE_SUFFIX, CONSISTENT_HASH_EXCHANGE_TYPE,
+                true, false, Collections.singletonMap(HASH_HEADER_ARGUMENT, hashHeader));
+        final CustomExchange messageIdExchange = new CustomExchange(exchangeName + MESSAGE_ID_EXCHANGE_SUFFIX, CONSISTENT_HASH_EXCHANGE_TYPE,
+                true, false, Collections.singletonMap(HASH_PROPERTY_ARGUMENT, MESSAGE_ID_PROPERTY));
+        final Map<String, Object> arguments = new HashMap<>();
+        arguments.put(ALTERNATE_EXCHANGE_ARGUMENT, messageIdExchange.getName());
+        final HeadersExchange exchange = new HeadersExchange(exchangeName, true, false, arguments);
+        declarables.add(exchange);
+        declarables.add(headerExchange);
+        declarables.add(messageIdExchange);
+        declarables.add(BindingBuilder.bind(headerExchange).to(exchange).where(hashHeader).exists());
+
+        final List<String> shardQueueNames = getShardQueueNames();
+        for (String shardQueueName : shardQueueNames) {
+            final Queue shardQueue = new Queue(shardQueueName);
+            declarables.add(shardQueue);
+            declarables.add(BindingBuilder.bind(shardQueue).to(headerExchange).with(SHARD_WEIGHT).noargs());
+            declarables.add(BindingBuilder.bind(shardQueue).to(messageIdExchange).with(SHARD_WEIGHT).noargs());
+            containers.add(createContainer(shardQueueName));
+        }
+        LOG.info("Sharding the messages of the exchange [{}] by their [{}] header, else by their message id, over the queues {}",
+                exchangeName, hashHeader, shardQueueNames);
+    }
+
+    protected SimpleMessageListenerContainer createContainer(final String shardQueueName) {
+        final SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(shardQueueName);
+        if (batchListener != null) {
+            container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+            container.setConsumerBatchEnabled(true);
+            container.setBatchSize(batchSize);
+            container.setPrefetchCount(batchSize);
+            container.setReceiveTimeout(batchTimeout);
+            container.setConcurrentConsumers(consumersPerShard);
+            container.setMessageListener(batchListener);
+        } else if (keyedDispatcher != null) {
+            // the order of a key only holds with a single consumer
+            container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+            container.setPrefetchCount(prefetchCount);
+            container.setConcurrentConsumers(1);
+            container.setMessageListener((ChannelAwareMessageListener) (message, channel) ->
+                    keyedDispatcher.dispatch(message, channel, null));
+        } else {
+            container.setPrefetchCount(prefetchCount);
+            container.setConcurrentConsumers(consumersPerShard);
+            container.setMessageListener(messageListener);
+        }
+        container.setAdviceChain(adviceChain);
+        container.setAutoStartup(false);
+        container.afterPropertiesSet();
+        return container;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        containers.forEach(SimpleMessageListenerContainer::destroy);
+    }
+
+    /**
+     * @return the exchanges, queues and bindings of the topology, none when it is disabled
+     */
+    public Declarables getDeclarables() {
+        return new Declarables(declarables);
+    }
+
+    public List<String> getShardQueueNames() {
+        return IntStream.range(0, shardCount)
+                .mapToObj(shard -> getShardQueueName(queueName, shard))
+                .collect(Collectors.toList());
+    }
+
+    public static String getShardQueueName(String queueName, int shard) {
+        return queueName + ".shard." + shard;
+    }
+
+    @Override
+    public void start() {
+        containers.forEach(SimpleMessageListenerContainer::start);
+    }
+
+    @Override
+    public void stop() {
+        containers.forEach(SimpleMessageListenerContainer::stop);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return containers.stream().anyMatch(SimpleMessageListenerContainer::isRunning);
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return enabled;
+    }
+
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+
+    public List<SimpleMessageListenerContainer> getContainers() {
+        return containers;
+    }
+
+    public void setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    public void setMessageListener(MessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    public void setKeyedDispatcher(RabbitmqKeyedDispatcher keyedDispatcher) {
+        this.keyedDispatcher = keyedDispatcher;
+    }
+
+    public void setBatchListener(ChannelAwareBatchMessageListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchTimeout(long batchTimeout) {
+        this.batchTimeout = batchTimeout;
+    }
+
+    public void setAdviceChain(Advice... adviceChain) {
+        this.adviceChain = adviceChain;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setQueueName(String queueName) {
+        this.queueName = queueName;
+    }
+
+    public void setExchangeName(String exchangeName) {
+        this.exchangeName = exchangeName;
+    }
+
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    public void setConsumersPerShard(int consumersPerShard) {
+        this.consumersPerShard = consumersPerShard;
+    }
+
+    public void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+    }
+
+    public void setHashHeader(String hashHeader) {
+        this.hashHeader = hashHeader;
+    }
+}
@@ -0,0 +1,333 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes again the replies and notifications that the broker did not accept, once the publisher gave up on them,
+ * instead of only logging them.
+ * <p>
+ * The unsent messages are kept in memory, at most {@code maxMessages} of them, or as files of {@code directory} when it
+ * is set, which survive a restart. They are published again every {@code republishInterval} ms until the broker
+ * confirms them. A spooled file that cannot be read is moved to the {@value #QUARANTINE_DIRECTORY} subdirectory.
+ * <p>
+ * A message whose confirm did not arrive in time may have reached its queue anyway, so a backend may receive a spooled
+ * message twice; the replies and notifications carry their message id to recognize it. Only the message id,
+ * correlation id, content type and string headers are kept, which is all the replies and notifications have.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqUnsentMessageSpool {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqUnsentMessageSpool.class);
+
+    protected static final String SPOOL_FILE_SUFFIX = ".message";
+    protected static final String TEMP_FILE_SUFFIX = ".tmp";
+    protected static final String QUARANTINE_DIRECTORY = "quarantine";
+    protected static final String SPOOL_EXCHANGE = "exchange";
+    protected static final String SPOOL_ROUTING_KEY = "routingKey";
+    protected static final String SPOOL_MESSAGE_ID = "messageId";
+    protected static final String SPOOL_CORRELATION_ID = "correlationId";
+    protected static final String SPOOL_CONTENT_TYPE = "contentType";
+    protected static final String SPOOL_BODY = "body";
+    protected static final String SPOOL_HEADER_PREFIX = "header.";
+
+    @Autowired
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Autowired
+    protected RabbitmqMetrics metrics;
+
+    private Path directory;
+    private int maxMessages = 10000;
+    private long republishInterval = 5000;
+
+    private final Queue<UnsentMessage> unsentMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unsentCount = new AtomicInteger();
+    private ScheduledExecutorService republisher;
+
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder republished = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder quarantined = new LongAdder();
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (directory != null) {
+            Files.createDirectories(directory.resolve(QUARANTINE_DIRECTORY));
+            deleteTempFiles();
+        }
+        republisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rabbitmq-unsent-republisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        republisher.scheduleWithFixedDelay(this::republishAll, republishInterval, republishInterval, TimeUnit.MILLISECONDS);
+        FunctionCounter.builder("rabbitmq.plugin.unsent.spooled", spooled, LongAdder::sum).register(metrics.getMeterRegistry());
+        FunctionCounter.builder("rabbitmq.plugin.unsent.republished", republished, LongAdder::sum).register(metrics.getMeterRegistry());
+        FunctionCounter.builder("rabbitmq.plugin.unsent.lost", lost, LongAdder::sum).register(metrics.getMeterRegistry());
+        FunctionCounter.builder("rabbitmq.plugin.unsent.quarantined", quarantined, LongAdder::sum).register(metrics.getMeterRegistry());
+        Gauge.builder("rabbitmq.plugin.unsent.pending", unsentCount, AtomicInteger::get).register(metrics.getMeterRegistry());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (republisher != null) {
+            republisher.shutdownNow();
+        }
+        if (directory == null && unsentCount.get() > 0) {
+            LOG.error("[{}] unsent messages kept in memory are lost", unsentCount.get());
+        }
+    }
+
+    /**
+     * Keeps a message that the broker did not accept, to be published again to the same address.
+     */
+    public void spool(final Address address, final Message message) {
+        final String messageId = message.getMessageProperties().getMessageId();
+        if (directory != null) {
+            write(address, message);
+            return;
+        }
+        if (unsentCount.incrementAndGet() > maxMessages) {
+            unsentCount.decrementAndGet();
+            lost.increment();
+            LOG.error("More than [{}] messages are waiting to be published again, the message [{}] to [{}] is lost", maxMessages, messageId, address);
+            return;
+        }
+        unsentMessages.add(new UnsentMessage(address, message));
+        spooled.increment();
+        LOG.warn("The message [{}] to [{}] will be published again", messageId, address);
+    }
+
+    protected void republishAll() {
+        try {
+            if (directory != null) {
+                republishSpooled();
+            } else {
+                republishUnsent();
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Could not publish the unsent messages again", e);
+        }
+    }
+
+    protected void republishUnsent() {
+        UnsentMessage unsentMessage;
+        // the republisher is the only thread removing messages
+        while ((unsentMessage = unsentMessages.peek()) != null) {
+            if (!republish(unsentMessage.address, unsentMessage.message)) {
+                // the broker is still unavailable, the next run tries again
+                return;
+            }
+            unsentMessages.poll();
+            unsentCount.decrementAndGet();
+        }
+    }
+
+    protected void republishSpooled() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SPOOL_FILE_SUFFIX)) {
+            for (Path file : files) {
+                final Address address;
+                final Message message;
+                try {
+                    final Properties spooledMessage = read(file);
+                    address = new Address(spooledMessage.getProperty(SPOOL_EXCHANGE), spooledMessage.getProperty(SPOOL_ROUTING_KEY));
+                    message = toMessage(spooledMessage);
+                } catch (IOException | RuntimeException e) {
+                    quarantine(file, e);
+                    continue;
+                }
+                if (!republish(address, message)) {
+                    // the broker is still unavailable, the next run tries again
+                    return;
+                }
+                Files.delete(file);
+                unsentCount.decrementAndGet();
+            }
+        } catch (IOException e) {
+            LOG.error("Could not read the unsent messages of [{}]", directory, e);
+        }
+    }
+
+    /**
+     * @return whether the broker confirmed the message
+     */
+    protected boolean republish(final Address address, final Message message) {
+        try {
+            // waits for the confirm, which decides whether the message can be forgotten
+            rabbitmqPublisher.publishAndWait(address, message);
+            republished.increment();
+            LOG.info("Published the message [{}] to [{}] again", message.getMessageProperties().getMessageId(), address);
+            return true;
+        } catch (RuntimeException e) {
+            LOG.warn("Could not publish the message [{}] to [{}] again", message.getMessageProperties().getMessageId(), address, e);
+            return false;
+        }
+    }
+
+    protected void write(final Address address, final Message message) {
+        final MessageProperties properties = message.getMessageProperties();
+        final Properties spooledMessage = new Properties();
+        spooledMessage.setProperty(SPOOL_EXCHANGE, StringUtils.defaultString(address.getExchangeName()));
+        spooledMessage.setProperty(SPOOL_ROUTING_KEY, StringUtils.defaultString(address.getRoutingKey()));
+        setIfNotNull(spooledMessage, SPOOL_MESSAGE_ID, properties.getMessageId());
+        setIfNotNull(spooledMessage, SPOOL_CORRELATION_ID, properties.getCorrelationId());
+        setIfNotNull(spooledMessage, SPOOL_CONTENT_TYPE, properties.getContentType());
+        for (Map.Entry<String, Object> header : properties.getHeaders().entrySet()) {
+            setIfNotNull(spooledMessage, SPOOL_HEADER_PREFIX + header.getKey(), header.getValue() == null ? null : header.getValue().toString());
+        }
+        spooledMessage.setProperty(SPOOL_BODY, Base64.getEncoder().encodeToString(message.getBody()));
+        final String name = UUID.randomUUID() + SPOOL_FILE_SUFFIX;
+        final Path tempFile = directory.resolve(name + TEMP_FILE_SUFFIX);
+        try {
+            // written aside then moved, so that a crash never leaves a truncated message to be published
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                spooledMessage.store(writer, null);
+            }
+            final Path file = Files.move(tempFile, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            unsentCount.incrementAndGet();
+            spooled.increment();
+            LOG.warn("Spooled the message [{}] to [{}] as [{}]", properties.getMessageId(), address, file);
+        } catch (IOException e) {
+            lost.increment();
+            LOG.error("Could not spool the message [{}] to [{}], it is lost", properties.getMessageId(), address, e);
+        }
+    }
+
+    protected Properties read(final Path file) throws IOException {
+        final Properties spooledMessage = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            spooledMessage.load(reader);
+        }
+        for (String property : new String[]{SPOOL_EXCHANGE, SPOOL_ROUTING_KEY, SPOOL_BODY}) {
+            if (spooledMessage.getProperty(property) == null) {
+                throw new DefaultRabbitmqPluginException("The spooled message [" + file + "] has no [" + property + "]");
+            }
+        }
+        return spooledMessage;
+    }
+
+    protected static Message toMessage(final Properties spooledMessage) {
+        final MessageProperties properties = new MessageProperties();
+        properties.setMessageId(spooledMessage.getProperty(SPOOL_MESSAGE_ID));
+        properties.setCorrelationId(spooledMessage.getProperty(SPOOL_CORRELATION_ID));
+        properties.setContentType(spooledMessage.getProperty(SPOOL_CONTENT_TYPE, MessageProperties.CONTENT_TYPE_BYTES));
+        for (String name : spooledMessage.stringPropertyNames()) {
+            if (name.startsWith(SPOOL_HEADER_PREFIX)) {
+                properties.setHeader(name.substring(SPOOL_HEADER_PREFIX.length()), spooledMessage.getProperty(name));
+            }
+        }
+        return MessageBuilder.withBody(Base64.getDecoder().decode(spooledMessage.getProperty(SPOOL_BODY))).andProperties(properties).build();
+    }
+
+    protected void quarantine(final Path file, final Exception cause) {
+        final Path quarantinedFile = directory.resolve(QUARANTINE_DIRECTORY).resolve(file.getFileName());
+        LOG.error("Could not read the spooled message [{}], moving it to [{}]", file, quarantinedFile, cause);
+        try {
+            Files.move(file, quarantinedFile, StandardCopyOption.REPLACE_EXISTING);
+            unsentCount.decrementAndGet();
+            quarantined.increment();
+        } catch (IOException e) {
+            LOG.error("Could not move the spooled message [{}] to [{}]", file, quarantinedFile, e);
+        }
+    }
+
+    /**
+     * Deletes the spool files whose writing was interrupted by a crash and counts the others.
+     */
+    private void deleteTempFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX)) {
+                    LOG.warn("Deleting the incomplete spooled message [{}]", file);
+                    Files.delete(file);
+                } else if (file.getFileName().toString().endsWith(SPOOL_FILE_SUFFIX)) {
+                    unsentCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static void setIfNotNull(final Properties properties, final String name, final String value) {
+        if (value != null) {
+            properties.setProperty(name, value);
+        }
+    }
+
+    public int getUnsentMessages() {
+        return unsentCount.get();
+    }
+
+    public long getSpooled() {
+        return spooled.sum();
+    }
+
+    public long getRepublished() {
+        return republished.sum();
+    }
+
+    public long getLost() {
+        return lost.sum();
+    }
+
+    public long getQuarantined() {
+        return quarantined.sum();
+    }
+
+    public void setDirectory(String directory) {
+        if (StringUtils.isNotBlank(directory)) {
+            this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        }
+    }
+
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    public void setRepublishInterval(long republishInterval) {
+        this.republishInterval = republishInterval;
+    }
+
+    protected static final class UnsentMessage {
+        private final Address address;
+        private final Message message;
+
+        UnsentMessage(Address address, Message message) {
+            this.address = address;
+            this.message = message;
+        }
+    }
+}
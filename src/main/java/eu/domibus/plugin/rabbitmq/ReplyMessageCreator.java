@@ -30,7 +30,7 @@ public class ReplyMessageCreator {
         	properties.setMessageId(messageId);
         }
         if (errorMessage != null) {
-        	properties.setHeader("ErrorMessage", errorMessage);
+        	properties.setHeader(RabbitmqMessageConstants.ERROR_MESSAGE, errorMessage);
         }
         return MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).copyProperties(properties).build();
     }
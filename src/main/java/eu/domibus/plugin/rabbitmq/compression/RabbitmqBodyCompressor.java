@@ -0,0 +1,124 @@
+package eu.domibus.plugin.rabbitmq.compression;
+
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.DefaultRabbitmqPluginException;
+import eu.domibus.plugin.rabbitmq.property.RabbitmqPluginPropertySnapshot;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compresses the outgoing message bodies according to the compression policy of the domain and resolves the codec
+ * of the incoming ones from their {@code contentEncoding}.
+ * <p>
+ * The policy of a domain is given by its {@code plugin.rabbitmq.compression.encoding} property (no compression when
+ * empty or {@code identity}) and {@code plugin.rabbitmq.compression.threshold}, the minimum body size in bytes.
+ * Incoming content encodings without codec, such as a charset, are left alone. An incoming body or payload may not
+ * decompress to more than {@code maxDecompressedSize} bytes (100 MB by default, not limited when 0).
+ *
+ * @author Generix Group
+ */
+public class RabbitmqBodyCompressor {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqBodyCompressor.class);
+
+    protected static final String IDENTITY = "identity";
+
+    @Autowired(required = false)
+    protected List<RabbitmqCompressionCodec> codecBeans = Collections.emptyList();
+
+    private final Map<String, RabbitmqCompressionCodec> codecs = new ConcurrentHashMap<>();
+
+    private long maxDecompressedSize = 104857600;
+
+    private final LongAdder compressedBytesIn = new LongAdder();
+    private final LongAdder compressedBytesOut = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        register(new GzipCompressionCodec());
+        for (RabbitmqCompressionCodec codec : codecBeans) {
+            register(codec);
+        }
+    }
+
+    public void register(RabbitmqCompressionCodec codec) {
+        LOG.debug("Registering the compression codec [{}]", codec.getEncoding());
+        codecs.put(codec.getEncoding().toLowerCase(Locale.ROOT), codec);
+    }
+
+    /**
+     * @return the content encoding to compress a body of {@code length} bytes with, or {@code null} if the body is
+     * to be sent as is
+     */
+    public String selectEncoding(int length, RabbitmqPluginPropertySnapshot snapshot) {
+        final String encoding = snapshot.getCompressionEncoding();
+        if (StringUtils.isEmpty(encoding) || IDENTITY.equalsIgnoreCase(encoding) || length < snapshot.getCompressionThreshold()) {
+            return null;
+        }
+        final RabbitmqCompressionCodec codec = getCodec(encoding);
+        if (codec == null) {
+            LOG.warn("No compression codec for the encoding [{}] of domain [{}], the body is not compressed", encoding, snapshot.getDomainCode());
+            return null;
+        }
+        return codec.getEncoding();
+    }
+
+    /**
+     * @return the codec of a content encoding, or {@code null} if none is registered
+     */
+    public RabbitmqCompressionCodec getCodec(String encoding) {
+        return encoding == null ? null : codecs.get(encoding.trim().toLowerCase(Locale.ROOT));
+    }
+
+    public byte[] compress(String encoding, byte[] body) {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(512, body.length / 4));
+        try (OutputStream out = getCodec(encoding).compress(compressed)) {
+            out.write(body);
+        } catch (IOException e) {
+            throw new DefaultRabbitmqPluginException("Could not compress the message body with [" + encoding + "]", e);
+        }
+        compressedBytesIn.add(body.length);
+        compressedBytesOut.add(compressed.size());
+        LOG.debug("Compressed the message body from [{}] to [{}] bytes with [{}]", body.length, compressed.size(), encoding);
+        return compressed.toByteArray();
+    }
+
+    public byte[] decompress(RabbitmqCompressionCodec codec, byte[] body) {
+        try (InputStream in = RabbitmqDecompressingDataSource.limit(codec.decompress(new ByteArrayInputStream(body)), maxDecompressedSize)) {
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new DefaultRabbitmqPluginException("Could not decompress the message body with [" + codec.getEncoding() + "]", e);
+        }
+    }
+
+    public long getMaxDecompressedSize() {
+        return maxDecompressedSize;
+    }
+
+    public void setMaxDecompressedSize(long maxDecompressedSize) {
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    public long getCompressedBytesIn() {
+        return compressedBytesIn.sum();
+    }
+
+    public long getCompressedBytesOut() {
+        return compressedBytesOut.sum();
+    }
+}
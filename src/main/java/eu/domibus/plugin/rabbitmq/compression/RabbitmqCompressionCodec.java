@@ -0,0 +1,31 @@
+package eu.domibus.plugin.rabbitmq.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression of the AMQP message bodies, identified by the value of the {@code contentEncoding} message property.
+ * <p>
+ * Codecs declared as beans of the plugin context are picked up by {@link RabbitmqBodyCompressor}; {@code gzip} is
+ * always available.
+ *
+ * @author Generix Group
+ */
+public interface RabbitmqCompressionCodec {
+
+    /**
+     * @return the content encoding of the compressed bodies, e.g. {@code gzip}
+     */
+    String getEncoding();
+
+    /**
+     * @return a stream compressing what is written to it into {@code out}
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * @return a stream decompressing {@code in} as it is read
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
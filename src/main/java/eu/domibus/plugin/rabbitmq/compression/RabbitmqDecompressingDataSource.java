@@ -0,0 +1,96 @@
+package eu.domibus.plugin.rabbitmq.compression;
+
+import javax.activation.DataSource;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link DataSource} decompressing a compressed data source as it is read, so the decompressed payload is never
+ * held in memory. Reading more than {@code maxDecompressedSize} decompressed bytes fails, so that a small compressed
+ * body cannot expand without bound (decompression bomb).
+ *
+ * @author Generix Group
+ */
+public class RabbitmqDecompressingDataSource implements DataSource {
+
+    private final RabbitmqCompressionCodec codec;
+    private final DataSource compressed;
+    private final long maxDecompressedSize;
+
+    /**
+     * @param maxDecompressedSize the maximum size of the decompressed data in bytes, not limited when 0 or less
+     */
+    public RabbitmqDecompressingDataSource(RabbitmqCompressionCodec codec, DataSource compressed, long maxDecompressedSize) {
+        this.codec = codec;
+        this.compressed = compressed;
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return limit(codec.decompress(compressed.getInputStream()), maxDecompressedSize);
+    }
+
+    /**
+     * @return a stream failing with an {@link IOException} once more than {@code maxSize} bytes were read from
+     * {@code in}, {@code in} itself when {@code maxSize} is 0 or less
+     */
+    public static InputStream limit(final InputStream in, final long maxSize) {
+        if (maxSize <= 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+
+            private long read;
+
+            @Override
+            public int read() throws IOException {
+                final int value = super.read();
+                if (value >= 0) {
+                    count(1);
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                final int count = super.read(bytes, offset, length);
+                if (count > 0) {
+                    count(count);
+                }
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                final long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            private void count(long bytes) throws IOException {
+                read += bytes;
+                if (read > maxSize) {
+                    throw new IOException("The decompressed data exceeds the maximum size of [" + maxSize + "] bytes");
+                }
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("The data source is read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return compressed.getContentType();
+    }
+
+    @Override
+    public String getName() {
+        return compressed.getName();
+    }
+}
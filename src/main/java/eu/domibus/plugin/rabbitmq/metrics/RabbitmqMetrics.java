@@ -0,0 +1,310 @@
+package eu.domibus.plugin.rabbitmq.metrics;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.logging.DomibusLogger;
+import eu.domibus.logging.DomibusLoggerFactory;
+import eu.domibus.plugin.rabbitmq.RabbitmqAuthenticationCache;
+import eu.domibus.plugin.rabbitmq.RabbitmqDuplicateDetector;
+import eu.domibus.plugin.rabbitmq.RabbitmqPublisher;
+import eu.domibus.plugin.rabbitmq.compression.RabbitmqBodyCompressor;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer measurements of the plugin stages.
+ * <p>
+ * Every stage is timed by the {@code rabbitmq.plugin.stage} timer, tagged with the stage, the domain, the queue and
+ * the outcome ({@code success} or {@code failure}); the count of the timer is the number of messages that went through
+ * the stage. The sizes of the message bodies received and sent are recorded by the {@code rabbitmq.plugin.message.size}
+ * distribution summary, tagged with the domain, the queue and the direction. The deliveries are also timed per priority
+ * lane by the {@code rabbitmq.plugin.lane.deliver} timer. The counters already kept by the
+ * publisher, the authentication cache and the body compressor are bound as well, with the channel caches of the
+ * {@code connectionFactories}.
+ * <p>
+ * The {@code submit} stage includes {@code transformToSubmission} and {@code deliverMessage} includes
+ * {@code download} (which includes {@code transformFromSubmission}) and {@code publish}: the time spent in Domibus is
+ * the difference.
+ * <p>
+ * The measurements are taken on threads that may have no current domain, such as the publisher confirm and scheduler
+ * threads, whose measurements are tagged with the {@value #NO_DOMAIN} domain. A measurement never fails the code it
+ * measures: its errors are only logged.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqMetrics {
+
+    private static final DomibusLogger LOG = DomibusLoggerFactory.getLogger(RabbitmqMetrics.class);
+
+    public static final String STAGE_TIMER = "rabbitmq.plugin.stage";
+    public static final String MESSAGE_SIZE_SUMMARY = "rabbitmq.plugin.message.size";
+    public static final String LANE_TIMER = "rabbitmq.plugin.lane.deliver";
+
+    public static final String TAG_STAGE = "stage";
+    public static final String TAG_DOMAIN = "domain";
+    public static final String TAG_QUEUE = "queue";
+    public static final String TAG_OUTCOME = "outcome";
+    public static final String TAG_DIRECTION = "direction";
+    public static final String TAG_CONNECTION_FACTORY = "connectionFactory";
+    public static final String TAG_LANE = "lane";
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILURE = "failure";
+    public static final String DIRECTION_IN = "in";
+    public static final String DIRECTION_OUT = "out";
+
+    protected static final String UNKNOWN = "unknown";
+    protected static final String NO_DOMAIN = "none";
+
+    /**
+     * The measured stages, from the reception of a message on {@code queue.in} to the publishing of the deliveries and
+     * notifications.
+     */
+    public enum Stage {
+        AUTHENTICATE("authenticate"),
+        TRANSFORM_TO_SUBMISSION("transformToSubmission"),
+        SUBMIT("submit"),
+        REPLY_PUBLISH("replyPublish"),
+        DELIVER_MESSAGE("deliverMessage"),
+        DOWNLOAD("download"),
+        TRANSFORM_FROM_SUBMISSION("transformFromSubmission"),
+        PUBLISH("publish"),
+        NOTIFICATION_PUBLISH("notificationPublish");
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    @Autowired
+    protected DomainContextExtService domainContextExtService;
+
+    @Autowired
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Autowired
+    protected RabbitmqAuthenticationCache authenticationCache;
+
+    @Autowired
+    protected RabbitmqBodyCompressor bodyCompressor;
+
+    @Autowired
+    protected RabbitmqDuplicateDetector duplicateDetector;
+
+    private MeterRegistry meterRegistry;
+    private Map<String, CachingConnectionFactory> connectionFactories = Collections.emptyMap();
+    private boolean enabled = true;
+    private double[] percentiles = {0.5, 0.95, 0.99};
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            LOG.info("The plugin metrics are disabled");
+            return;
+        }
+        Gauge.builder("rabbitmq.plugin.publisher.inFlight", rabbitmqPublisher, RabbitmqPublisher::getInFlight)
+                .description("Messages waiting for a publisher confirm").register(meterRegistry);
+        counter("rabbitmq.plugin.publisher.acked", rabbitmqPublisher, RabbitmqPublisher::getAcked);
+        counter("rabbitmq.plugin.publisher.nacked", rabbitmqPublisher, RabbitmqPublisher::getNacked);
+        counter("rabbitmq.plugin.publisher.returned", rabbitmqPublisher, RabbitmqPublisher::getReturned);
+        counter("rabbitmq.plugin.publisher.retried", rabbitmqPublisher, RabbitmqPublisher::getRetried);
+        counter("rabbitmq.plugin.publisher.failed", rabbitmqPublisher, RabbitmqPublisher::getFailed);
+        Gauge.builder("rabbitmq.plugin.authentication.cache.size", authenticationCache, RabbitmqAuthenticationCache::getSize)
+                .register(meterRegistry);
+        counter("rabbitmq.plugin.authentication.cache.hits", authenticationCache, RabbitmqAuthenticationCache::getHits);
+        counter("rabbitmq.plugin.authentication.cache.misses", authenticationCache, RabbitmqAuthenticationCache::getMisses);
+        counter("rabbitmq.plugin.authentication.cache.evictions", authenticationCache, RabbitmqAuthenticationCache::getEvictions);
+        counter("rabbitmq.plugin.compression.bytesIn", bodyCompressor, RabbitmqBodyCompressor::getCompressedBytesIn);
+        counter("rabbitmq.plugin.compression.bytesOut", bodyCompressor, RabbitmqBodyCompressor::getCompressedBytesOut);
+        Gauge.builder("rabbitmq.plugin.duplicates.size", duplicateDetector, RabbitmqDuplicateDetector::getSize)
+                .description("Submitted messages remembered to detect their redeliveries").register(meterRegistry);
+        counter("rabbitmq.plugin.duplicates", duplicateDetector, RabbitmqDuplicateDetector::getDuplicates);
+        FunctionTimer.builder("rabbitmq.plugin.publisher.send", rabbitmqPublisher, RabbitmqPublisher::getSendCount,
+                RabbitmqPublisher::getSendTotalNanos, TimeUnit.NANOSECONDS)
+                .description("Channel checkout and write of the published messages").register(meterRegistry);
+        counter("rabbitmq.plugin.publisher.channelCheckoutTimeouts", rabbitmqPublisher, RabbitmqPublisher::getChannelCheckoutTimeouts);
+        connectionFactories.forEach(this::bindConnectionFactory);
+    }
+
+    /**
+     * Binds the channel cache of a connection factory: its size, the idle channels and the channels created because
+     * none was idle.
+     */
+    protected void bindConnectionFactory(String name, CachingConnectionFactory connectionFactory) {
+        final LongAdder channelsCreated = new LongAdder();
+        connectionFactory.addChannelListener((channel, transactional) -> channelsCreated.increment());
+        FunctionCounter.builder("rabbitmq.plugin.connection.channels.created", channelsCreated, LongAdder::sum)
+                .tag(TAG_CONNECTION_FACTORY, name).register(meterRegistry);
+        Gauge.builder("rabbitmq.plugin.connection.channels.cacheSize", connectionFactory, CachingConnectionFactory::getChannelCacheSize)
+                .tag(TAG_CONNECTION_FACTORY, name).register(meterRegistry);
+        Gauge.builder("rabbitmq.plugin.connection.channels.idle", connectionFactory, factory -> getIdleChannels(factory.getCacheProperties()))
+                .tag(TAG_CONNECTION_FACTORY, name).register(meterRegistry);
+    }
+
+    protected static double getIdleChannels(Properties cacheProperties) {
+        double idle = 0;
+        for (String key : new String[]{"idleChannelsTx", "idleChannelsNotTx"}) {
+            final Object value = cacheProperties.get(key);
+            if (value != null) {
+                idle += Double.parseDouble(value.toString());
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * @return the start time of a stage, to be passed to {@link #record}
+     */
+    public long start() {
+        return enabled ? meterRegistry.config().clock().monotonicTime() : 0;
+    }
+
+    /**
+     * Records the duration of a stage started at {@code start}.
+     */
+    public void record(Stage stage, String queue, long start, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            record(stage, getDomainCode(), queue, start, success);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not record the [{}] stage", stage.getTag(), e);
+        }
+    }
+
+    /**
+     * Records the duration of a stage started at {@code start} in a given domain, for the threads that are not in the
+     * domain of the message, such as the publisher confirm threads.
+     */
+    public void record(Stage stage, String domainCode, String queue, long start, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            final long duration = meterRegistry.config().clock().monotonicTime() - start;
+            final String domain = StringUtils.defaultIfEmpty(domainCode, NO_DOMAIN);
+            final String outcome = success ? OUTCOME_SUCCESS : OUTCOME_FAILURE;
+            final String queueTag = StringUtils.defaultIfEmpty(queue, UNKNOWN);
+            timers.computeIfAbsent(stage.getTag() + '|' + domain + '|' + queueTag + '|' + outcome,
+                    key -> Timer.builder(STAGE_TIMER)
+                            .tag(TAG_STAGE, stage.getTag())
+                            .tag(TAG_DOMAIN, domain)
+                            .tag(TAG_QUEUE, queueTag)
+                            .tag(TAG_OUTCOME, outcome)
+                            .publishPercentiles(percentiles)
+                            .register(meterRegistry))
+                    .record(duration, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not record the [{}] stage", stage.getTag(), e);
+        }
+    }
+
+    /**
+     * Records the duration of a delivery classified in a priority lane, started at {@code start}.
+     */
+    public void recordLane(String lane, long start, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            final long duration = meterRegistry.config().clock().monotonicTime() - start;
+            final String domain = getDomainCode();
+            final String outcome = success ? OUTCOME_SUCCESS : OUTCOME_FAILURE;
+            timers.computeIfAbsent(TAG_LANE + '|' + lane + '|' + domain + '|' + outcome,
+                    key -> Timer.builder(LANE_TIMER)
+                            .tag(TAG_LANE, lane)
+                            .tag(TAG_DOMAIN, domain)
+                            .tag(TAG_OUTCOME, outcome)
+                            .publishPercentiles(percentiles)
+                            .register(meterRegistry))
+                    .record(duration, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not record the delivery of lane [{}]", lane, e);
+        }
+    }
+
+    /**
+     * Records the size of a message body received from or sent to a queue.
+     */
+    public void recordMessageSize(String direction, String queue, byte[] body) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            final String domain = getDomainCode();
+            final String queueTag = StringUtils.defaultIfEmpty(queue, UNKNOWN);
+            summaries.computeIfAbsent(direction + '|' + domain + '|' + queueTag,
+                    key -> DistributionSummary.builder(MESSAGE_SIZE_SUMMARY)
+                            .baseUnit("bytes")
+                            .tag(TAG_DIRECTION, direction)
+                            .tag(TAG_DOMAIN, domain)
+                            .tag(TAG_QUEUE, queueTag)
+                            .publishPercentiles(percentiles)
+                            .register(meterRegistry))
+                    .record(body == null ? 0 : body.length);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not record the size of a message of [{}]", queue, e);
+        }
+    }
+
+    /**
+     * @return the code of the current domain, {@value #NO_DOMAIN} when the thread has none
+     */
+    protected String getDomainCode() {
+        final DomainDTO domain = domainContextExtService.getCurrentDomainSafely();
+        return domain == null || domain.getCode() == null ? NO_DOMAIN : domain.getCode();
+    }
+
+    protected <T> void counter(String name, T source, ToDoubleFunction<T> count) {
+        FunctionCounter.builder(name, source, count).register(meterRegistry);
+    }
+
+    public MeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @param connectionFactories the connection factories whose channel cache is measured, by name
+     */
+    public void setConnectionFactories(Map<String, CachingConnectionFactory> connectionFactories) {
+        this.connectionFactories = connectionFactories;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setPercentiles(double[] percentiles) {
+        this.percentiles = percentiles;
+    }
+}
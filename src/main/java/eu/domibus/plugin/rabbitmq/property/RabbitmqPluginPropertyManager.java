@@ -5,6 +5,8 @@ import eu.domibus.ext.domain.DomibusPropertyMetadataDTO;
 import eu.domibus.ext.services.DomainExtService;
 import eu.domibus.ext.services.DomibusPropertyExtService;
 import eu.domibus.ext.services.DomibusPropertyManagerExt;
+import eu.domibus.plugin.rabbitmq.RabbitmqDestinationRegistry;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -12,7 +14,9 @@ import org.springframework.stereotype.Service;
 import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -29,6 +33,9 @@ public class RabbitmqPluginPropertyManager implements DomibusPropertyManagerExt
 
     @Autowired
     protected DomainExtService domainExtService;
+
+    @Autowired
+    protected RabbitmqDestinationRegistry destinationRegistry;
     
     protected static final String RABBITMQ_PLUGIN_MODULE = "RABBIT_MQ";
 
@@ -37,8 +44,17 @@ public class RabbitmqPluginPropertyManager implements DomibusPropertyManagerExt
             TO_PARTY_ID, TO_PARTY_TYPE, TO_ROLE,
             AGREEMENT_REF, SERVICE, SERVICE_TYPE, ACTION,
             PUT_ATTACHMENTS_IN_QUEUE,
+            QUEUE_REPLY, QUEUE_OUT, QUEUE_CONSUMER_NOTIFICATION_ERROR, QUEUE_PRODUCER_NOTIFICATION_ERROR,
+            COMPRESSION_ENCODING, COMPRESSION_THRESHOLD, FRAMED_BODY,
     };
 
+    /**
+     * Properties kept in the per-domain snapshots: the known properties and the fallback of the p1InBody header.
+     */
+    private String[] snapshotPropertyNames = ArrayUtils.add(knownPropertyNames, P1_IN_BODY);
+
+    private final Map<String, RabbitmqPluginPropertySnapshot> snapshots = new ConcurrentHashMap<>();
+
     private Map<String, DomibusPropertyMetadataDTO> knownProperties = Arrays.stream(knownPropertyNames)
             .map(name -> new DomibusPropertyMetadataDTO(RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + name, RABBITMQ_PLUGIN_MODULE, true, true))
             .collect(Collectors.toMap(x -> x.getName(), x -> x));
@@ -66,6 +82,10 @@ public class RabbitmqPluginPropertyManager implements DomibusPropertyManagerExt
 
         final DomainDTO domain = domainExtService.getDomain(domainCode);
         domibusPropertyExtService.setDomainProperty(domain, propertyName, propertyValue);
+        snapshots.put(domainCode, createSnapshot(domain));
+        if (StringUtils.startsWith(propertyName, RABBITMQ_PLUGIN_PROPERTY_PREFIX + ".queue.")) {
+            destinationRegistry.invalidate(domainCode);
+        }
     }
 
     @Override
@@ -82,4 +102,23 @@ public class RabbitmqPluginPropertyManager implements DomibusPropertyManagerExt
     public boolean hasKnownProperty(String name) {
         return getKnownProperties().containsKey(name);
     }
+
+    /**
+     * Returns the plugin properties of a domain. The snapshot is created on first use and replaced whenever one of
+     * the known properties of the domain is changed.
+     */
+    public RabbitmqPluginPropertySnapshot getSnapshot(DomainDTO domain) {
+        return snapshots.computeIfAbsent(domain.getCode(), domainCode -> createSnapshot(domain));
+    }
+
+    protected RabbitmqPluginPropertySnapshot createSnapshot(DomainDTO domain) {
+        final Map<String, String> values = new HashMap<>();
+        for (String name : snapshotPropertyNames) {
+            final String value = domibusPropertyExtService.getDomainProperty(domain, RABBITMQ_PLUGIN_PROPERTY_PREFIX + "." + name);
+            if (value != null) {
+                values.put(name, value);
+            }
+        }
+        return new RabbitmqPluginPropertySnapshot(domain.getCode(), values);
+    }
 }
@@ -0,0 +1,158 @@
+package eu.domibus.plugin.rabbitmq.property;
+
+import eu.domibus.plugin.Submission;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.ACTION;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.AGREEMENT_REF;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.COMPRESSION_ENCODING;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.COMPRESSION_THRESHOLD;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.FRAMED_BODY;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.FROM_PARTY_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.FROM_PARTY_TYPE;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.FROM_ROLE;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.PUT_ATTACHMENTS_IN_QUEUE;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.SERVICE;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.SERVICE_TYPE;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.TO_PARTY_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.TO_PARTY_TYPE;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.TO_ROLE;
+
+/**
+ * Immutable values of the Default RabbitMQ plugin properties of one domain, keyed on the property name without the
+ * {@code plugin.rabbitmq.} prefix. The default values of the submission headers (fromPartyId, service, action...)
+ * share their names with the headers. They are resolved once into a default submission template, which the
+ * transformer copies for every incoming message before applying the headers of the message.
+ *
+ * @author Generix Group
+ */
+public class RabbitmqPluginPropertySnapshot {
+
+    protected static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private final String domainCode;
+    private final Map<String, String> values;
+    private final boolean putAttachmentInQueue;
+    private final String compressionEncoding;
+    private final int compressionThreshold;
+    private final boolean framedBody;
+    private final SubmissionTemplate submissionTemplate;
+
+    public RabbitmqPluginPropertySnapshot(String domainCode, Map<String, String> values) {
+        this.domainCode = domainCode;
+        this.values = Collections.unmodifiableMap(new HashMap<>(values));
+        this.putAttachmentInQueue = Boolean.parseBoolean(values.getOrDefault(PUT_ATTACHMENTS_IN_QUEUE, "true"));
+        this.compressionEncoding = StringUtils.trimToNull(values.get(COMPRESSION_ENCODING));
+        this.compressionThreshold = NumberUtils.toInt(StringUtils.trim(values.get(COMPRESSION_THRESHOLD)), DEFAULT_COMPRESSION_THRESHOLD);
+        this.framedBody = Boolean.parseBoolean(StringUtils.trim(values.get(FRAMED_BODY)));
+        this.submissionTemplate = new SubmissionTemplate(this.values);
+    }
+
+    public String getDomainCode() {
+        return domainCode;
+    }
+
+    public String getProperty(String propertyName) {
+        return values.get(propertyName);
+    }
+
+    public String getProperty(String propertyName, String defaultValue) {
+        final String value = values.get(propertyName);
+        return value != null ? value : defaultValue;
+    }
+
+    public boolean isPutAttachmentInQueue() {
+        return putAttachmentInQueue;
+    }
+
+    /**
+     * @return the content encoding of the outgoing bodies, {@code null} if they are not compressed
+     */
+    public String getCompressionEncoding() {
+        return compressionEncoding;
+    }
+
+    /**
+     * @return the minimum size in bytes of the bodies to compress
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return whether several payloads embedded in a message are sent as a framed body, with the bodyFormat header
+     */
+    public boolean isFramedBody() {
+        return framedBody;
+    }
+
+    public SubmissionTemplate getSubmissionTemplate() {
+        return submissionTemplate;
+    }
+
+    /**
+     * The default values of the submission headers of the domain.
+     */
+    public static final class SubmissionTemplate {
+
+        private final String fromPartyId;
+        private final String fromPartyType;
+        private final String fromRole;
+        private final String toPartyId;
+        private final String toPartyType;
+        private final String toRole;
+        private final String action;
+        private final String service;
+        private final String serviceType;
+        private final String agreementRef;
+
+        SubmissionTemplate(Map<String, String> values) {
+            this.fromPartyId = values.get(FROM_PARTY_ID);
+            this.fromPartyType = values.get(FROM_PARTY_TYPE);
+            this.fromRole = values.get(FROM_ROLE);
+            this.toPartyId = values.get(TO_PARTY_ID);
+            this.toPartyType = values.get(TO_PARTY_TYPE);
+            this.toRole = values.get(TO_ROLE);
+            this.action = values.get(ACTION);
+            this.service = values.get(SERVICE);
+            this.serviceType = values.get(SERVICE_TYPE);
+            this.agreementRef = values.get(AGREEMENT_REF);
+        }
+
+        /**
+         * @return a new submission holding the default roles, action, service and agreement; the parties are added
+         * by the caller, as the id and the type of a party may come from the message and the defaults alike
+         */
+        public Submission newSubmission() {
+            final Submission submission = new Submission();
+            submission.setFromRole(fromRole);
+            submission.setToRole(toRole);
+            submission.setAction(action);
+            submission.setService(service);
+            submission.setServiceType(serviceType);
+            submission.setAgreementRef(agreementRef);
+            return submission;
+        }
+
+        public String getFromPartyId() {
+            return fromPartyId;
+        }
+
+        public String getFromPartyType() {
+            return fromPartyType;
+        }
+
+        public String getToPartyId() {
+            return toPartyId;
+        }
+
+        public String getToPartyType() {
+            return toPartyType;
+        }
+    }
+}
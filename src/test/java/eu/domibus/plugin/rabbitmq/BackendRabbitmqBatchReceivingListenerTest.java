@@ -0,0 +1,78 @@
+package eu.domibus.plugin.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import eu.domibus.logging.DomibusLogger;
+import mockit.*;
+import mockit.integration.junit4.JMockit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class BackendRabbitmqBatchReceivingListenerTest {
+
+    @Injectable
+    protected BackendRabbitmqReceivingListener backendRabbitmqReceivingListener;
+
+    @Tested
+    BackendRabbitmqBatchReceivingListener backendRabbitmqBatchReceivingListener;
+
+    @Test
+    public void onMessageBatch(@Injectable Channel channel, @Mocked DomibusLogger LOG) throws Exception {
+        final Message message1 = createMessage(1);
+        final Message message2 = createMessage(2);
+        final Message message3 = createMessage(3);
+        final List<Message> messages = Arrays.asList(message1, message2, message3);
+
+        new Expectations() {{
+            backendRabbitmqReceivingListener.onMessages(messages);
+            result = Collections.singletonList(message3);
+        }};
+
+        backendRabbitmqBatchReceivingListener.onMessageBatch(messages, channel);
+
+        new FullVerificationsInOrder() {{
+            channel.basicReject(3, true);
+            channel.basicAck(2, true);
+        }};
+    }
+
+    @Test
+    public void onMessageBatchWithRolledBackBatch(@Injectable Channel channel, @Mocked DomibusLogger LOG) throws Exception {
+        final Message message1 = createMessage(1);
+        final Message message2 = createMessage(2);
+        final List<Message> messages = Arrays.asList(message1, message2);
+
+        new Expectations() {{
+            backendRabbitmqReceivingListener.onMessages(messages);
+            result = new DefaultRabbitmqPluginException("rolled back");
+
+            backendRabbitmqReceivingListener.onMessage(message2);
+            result = new DefaultRabbitmqPluginException("failed");
+        }};
+
+        backendRabbitmqBatchReceivingListener.onMessageBatch(messages, channel);
+
+        new VerificationsInOrder() {{
+            backendRabbitmqReceivingListener.onMessage(message1);
+            channel.basicAck(1, false);
+            backendRabbitmqReceivingListener.onMessage(message2);
+            channel.basicReject(2, true);
+        }};
+    }
+
+    private Message createMessage(long deliveryTag) {
+        final MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setDeliveryTag(deliveryTag);
+        messageProperties.setMessageId(String.valueOf(deliveryTag));
+        return new Message(new byte[0], messageProperties);
+    }
+}
@@ -8,22 +8,33 @@ import eu.domibus.ext.services.DomainContextExtService;
 import eu.domibus.ext.services.DomibusPropertyExtService;
 import eu.domibus.ext.services.JMSExtService;
 import eu.domibus.ext.services.MessageExtService;
+import eu.domibus.messaging.MessagingProcessingException;
+import eu.domibus.plugin.Submission;
 import eu.domibus.plugin.handler.MessagePuller;
 import eu.domibus.plugin.handler.MessageRetriever;
 import eu.domibus.plugin.handler.MessageSubmitter;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
 import mockit.*;
 import mockit.integration.junit4.JMockit;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Address;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.core.MessagePropertiesBuilder;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.jms.core.JmsOperations;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 /**
  * @author Cosmin Baciu, Generix Group
@@ -66,11 +77,41 @@ public class BackendRabbitmqImplTest {
 	private MessageExtService messageExtService;
 
 	@Injectable
-	private RabbitTemplate amqpTemplate;
+	private RabbitmqPublisher rabbitmqPublisher;
+
+	@Injectable
+	private RabbitmqDestinationRegistry destinationRegistry;
 
 	@Injectable
 	String name = "myRabbitmqplugin";
 
+	@Injectable
+	protected RabbitmqChunkedPayloadSender chunkedPayloadSender;
+
+	@Injectable
+	protected RabbitmqChunkReassembler chunkReassembler;
+
+	@Injectable
+	protected RabbitmqPayloadStore payloadStore;
+
+	@Injectable
+	protected RabbitmqMetrics metrics;
+
+	@Injectable
+	protected RabbitmqPriorityClassifier priorityClassifier;
+
+	@Injectable
+	protected RabbitmqDeliveryPipeline deliveryPipeline;
+
+	@Injectable
+	protected RabbitmqNotificationAggregator notificationAggregator;
+
+	@Injectable
+	protected RabbitmqDuplicateDetector duplicateDetector;
+
+	@Injectable
+	protected RabbitmqUnsentMessageSpool unsentMessageSpool;
+
 	@Tested
 	BackendRabbitmqImpl backendRabbitmq;
 
@@ -160,6 +201,87 @@ public class BackendRabbitmqImplTest {
 		};
 	}
 
+	@Test
+	public void testReceiveMessage_Duplicate(@Injectable final Message message) throws Exception {
+		final String messageId = "1";
+		final String correlationId = "2";
+		final MessageProperties messageProperties = MessagePropertiesBuilder.newInstance()
+				.setHeader(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, RabbitmqMessageConstants.MESSAGE_TYPE_SUBMIT)
+				.setMessageId(messageId).setCorrelationId(correlationId).build();
+
+		new Expectations(backendRabbitmq) {
+			{
+				message.getMessageProperties();
+				result = messageProperties;
+
+				messageExtService.cleanMessageIdentifier(messageId);
+				result = messageId;
+
+				duplicateDetector.isEnabled();
+				result = true;
+
+				duplicateDetector.getKey(message);
+				result = "id:1";
+
+				duplicateDetector.lookup("id:1");
+				result = new RabbitmqDuplicateDetector.Reply(messageId, null);
+
+				backendRabbitmq.sendReplyMessage(messageId, null, correlationId);
+			}
+		};
+
+		backendRabbitmq.receiveMessage(message);
+
+		new Verifications() {
+			{
+				backendRabbitmq.submit(message);
+				times = 0;
+
+				duplicateDetector.record(anyString, anyString);
+				times = 0;
+			}
+		};
+	}
+
+	@Test
+	public void testReceiveMessage_FailedSubmissionIsNotRemembered(@Injectable final Message message) throws Exception {
+		final String messageId = "1";
+		final String correlationId = "2";
+		final MessageProperties messageProperties = MessagePropertiesBuilder.newInstance()
+				.setHeader(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, RabbitmqMessageConstants.MESSAGE_TYPE_SUBMIT)
+				.setMessageId(messageId).setCorrelationId(correlationId).build();
+
+		new Expectations(backendRabbitmq) {
+			{
+				message.getMessageProperties();
+				result = messageProperties;
+
+				messageExtService.cleanMessageIdentifier(messageId);
+				result = messageId;
+
+				duplicateDetector.isEnabled();
+				result = true;
+
+				duplicateDetector.getKey(message);
+				result = "id:1";
+
+				backendRabbitmq.submit(message);
+				result = new MessagingProcessingException("Invalid payload");
+
+				backendRabbitmq.sendReplyMessage(messageId, anyString, correlationId);
+			}
+		};
+
+		backendRabbitmq.receiveMessage(message);
+
+		new Verifications() {
+			{
+				duplicateDetector.record(anyString, anyString);
+				times = 0;
+			}
+		};
+	}
+
 	@Test
 	public void testReceiveMessageWithUnacceptedMessageType(@Injectable final Message message) throws Exception {
 		final String messageId = "1";
@@ -224,4 +346,283 @@ public class BackendRabbitmqImplTest {
 			}
 		};
 	}
+
+	@Test
+	public void testNotificationIsPublishedWithoutWaitingAndSpooledWhenNacked() throws Exception {
+		final Address reply = new Address("", "domibus.backend.rabbitmq.reply");
+		final CompletableFuture<Void> confirmation = new CompletableFuture<>();
+		new Expectations() {
+			{
+				destinationRegistry.getAddress(BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_REPLY);
+				result = reply;
+				rabbitmqPublisher.publish(reply, (Message) any);
+				result = confirmation;
+			}
+		};
+
+		backendRabbitmq.messageSendSuccess("1");
+
+		new Verifications() {
+			{
+				rabbitmqPublisher.publishAndWait((Address) any, (Message) any);
+				times = 0;
+				unsentMessageSpool.spool((Address) any, (Message) any);
+				times = 0;
+			}
+		};
+		confirmation.completeExceptionally(new RabbitmqPublisher.UnsentMessageException("Nacked"));
+
+		new Verifications() {
+			{
+				Message unsent;
+				unsentMessageSpool.spool(reply, unsent = withCapture());
+				times = 1;
+				assertEquals("1", unsent.getMessageProperties().getMessageId());
+				metrics.record(RabbitmqMetrics.Stage.NOTIFICATION_PUBLISH, anyString, reply.getRoutingKey(), anyLong, false);
+				times = 1;
+			}
+		};
+	}
+
+	@Test
+	public void testNotificationIsSpooledWhenNoInFlightSlotIsFree() throws Exception {
+		final Address reply = new Address("", "domibus.backend.rabbitmq.reply");
+		new Expectations() {
+			{
+				destinationRegistry.getAddress(BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_REPLY);
+				result = reply;
+				rabbitmqPublisher.publish(reply, (Message) any);
+				result = new RabbitmqPublisher.UnsentMessageException("More than [1000] messages are waiting for a publisher confirm");
+			}
+		};
+
+		backendRabbitmq.messageSendSuccess("1");
+
+		new Verifications() {
+			{
+				unsentMessageSpool.spool(reply, (Message) any);
+				times = 1;
+			}
+		};
+	}
+
+	@Test
+	public void testDeferredRepliesAreSentOnceCommitted() throws Exception {
+		final Address reply = new Address("", "domibus.backend.rabbitmq.reply");
+		final CompletableFuture<Void> nacked = new CompletableFuture<>();
+		nacked.completeExceptionally(new RabbitmqPublisher.UnsentMessageException("Nacked"));
+		new Expectations() {
+			{
+				destinationRegistry.getAddress(anyString);
+				result = reply;
+				rabbitmqPublisher.publishBatch(Arrays.asList(reply, reply), (List<Message>) any);
+				result = Arrays.asList(CompletableFuture.<Void>completedFuture(null), nacked);
+			}
+		};
+
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			backendRabbitmq.deferReplies();
+			backendRabbitmq.sendReplyMessage("1", null, "correlation1");
+			backendRabbitmq.sendReplyMessage("2", null, "correlation2");
+
+			new Verifications() {
+				{
+					rabbitmqPublisher.publishAndWait((Address) any, (Message) any);
+					times = 0;
+					rabbitmqPublisher.publishBatch((List<Address>) any, (List<Message>) any);
+					times = 0;
+				}
+			};
+			for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+				synchronization.afterCommit();
+				synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+			}
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		new Verifications() {
+			{
+				List<Message> replies;
+				rabbitmqPublisher.publishBatch((List<Address>) any, replies = withCapture());
+				times = 1;
+				assertEquals(2, replies.size());
+				rabbitmqPublisher.awaitConfirm((CompletableFuture<?>) any, reply);
+				times = 1;
+				Message unsent;
+				unsentMessageSpool.spool(reply, unsent = withCapture());
+				times = 1;
+				assertEquals("2", unsent.getMessageProperties().getMessageId());
+				metrics.record(RabbitmqMetrics.Stage.REPLY_PUBLISH, reply.getRoutingKey(), anyLong, true);
+				times = 1;
+				metrics.record(RabbitmqMetrics.Stage.REPLY_PUBLISH, reply.getRoutingKey(), anyLong, false);
+				times = 1;
+			}
+		};
+	}
+
+	@Test
+	public void testDeferredRepliesAreDiscardedOnRollback() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			backendRabbitmq.deferReplies();
+			backendRabbitmq.sendReplyMessage("1", null, "correlation1");
+			for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+				synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+			}
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		new Verifications() {
+			{
+				rabbitmqPublisher.publishAndWait((Address) any, (Message) any);
+				times = 0;
+				rabbitmqPublisher.publishBatch((List<Address>) any, (List<Message>) any);
+				times = 0;
+			}
+		};
+	}
+
+	@Test
+	public void testDeliverMessage_Unsent() throws Exception {
+		final Message message = expectDelivery(new RabbitmqPublisher.UnsentMessageException("Nacked"));
+
+		try {
+			backendRabbitmq.deliverMessage("1");
+			fail("The delivery should have failed");
+		} catch (RabbitmqPublisher.UnsentMessageException e) {
+			// the notification is redelivered
+		}
+
+		new Verifications() {
+			{
+				payloadStore.release(message);
+				times = 1;
+			}
+		};
+	}
+
+	@Test
+	public void testDeliverMessage_TimedOut() throws Exception {
+		expectDelivery(new DefaultRabbitmqPluginException("Not confirmed in time"));
+
+		try {
+			backendRabbitmq.deliverMessage("1");
+			fail("The delivery should have failed");
+		} catch (DefaultRabbitmqPluginException e) {
+			// the notification is redelivered
+		}
+
+		new Verifications() {
+			{
+				payloadStore.release((Message) any);
+				times = 0;
+			}
+		};
+	}
+
+	private Message expectDelivery(final RuntimeException failure) {
+		final Address out = new Address("", "domibus.backend.rabbitmq.out");
+		final Message message = new Message(new byte[0], new MessageProperties());
+		new Expectations(backendRabbitmq) {
+			{
+				destinationRegistry.getAddress(anyString);
+				result = out;
+
+				backendRabbitmq.createMessage("1");
+				result = message;
+
+				rabbitmqPublisher.publishAndWait(out, message);
+				result = failure;
+			}
+		};
+		return message;
+	}
+
+	@Test
+	public void testDeliverThroughPipeline() throws Exception {
+		final Message message = new Message(new byte[0], new MessageProperties());
+		expectPipelineDelivery(message, null);
+
+		backendRabbitmq.deliverMessage("1");
+
+		new Verifications() {
+			{
+				payloadStore.release((Message) any);
+				times = 0;
+			}
+		};
+	}
+
+	@Test
+	public void testDeliverThroughPipeline_Unsent() throws Exception {
+		final Message message = new Message(new byte[0], new MessageProperties());
+		expectPipelineDelivery(message, new RabbitmqDeliveryPipeline.UnsentDeliveryException("Not confirmed", new IllegalStateException()));
+
+		try {
+			backendRabbitmq.deliverMessage("1");
+			fail("The delivery should have failed");
+		} catch (RabbitmqDeliveryPipeline.UnsentDeliveryException e) {
+			// the notification is redelivered
+		}
+
+		new Verifications() {
+			{
+				payloadStore.release(message);
+				times = 1;
+			}
+		};
+	}
+
+	@Test
+	public void testDeliverThroughPipeline_TimedOutOncePublished() throws Exception {
+		final Message message = new Message(new byte[0], new MessageProperties());
+		expectPipelineDelivery(message, new DefaultRabbitmqPluginException("Not confirmed in time"));
+
+		try {
+			backendRabbitmq.deliverMessage("1");
+			fail("The delivery should have failed");
+		} catch (DefaultRabbitmqPluginException e) {
+			// the notification is redelivered
+		}
+
+		new Verifications() {
+			{
+				payloadStore.release((Message) any);
+				times = 0;
+			}
+		};
+	}
+
+	private void expectPipelineDelivery(final Message message, final RuntimeException failure) throws Exception {
+		final Address out = new Address("", "domibus.backend.rabbitmq.out");
+		final Submission submission = new Submission();
+		new Expectations(backendRabbitmq) {
+			{
+				deliveryPipeline.isEnabled();
+				result = true;
+
+				destinationRegistry.getAddress(anyString);
+				result = out;
+
+				messageRetriever.downloadMessage("1");
+				result = submission;
+
+				backendRabbitmq.createMessage(submission);
+				result = message;
+
+				deliveryPipeline.deliver(out, (Callable<RabbitmqDeliveryPipeline.Delivery>) any);
+				result = new Delegate<Void>() {
+					void deliver(Address destination, Callable<RabbitmqDeliveryPipeline.Delivery> transform) throws Exception {
+						assertEquals(message, transform.call().getMessage());
+						if (failure != null) {
+							throw failure;
+						}
+					}
+				};
+			}
+		};
+	}
 }
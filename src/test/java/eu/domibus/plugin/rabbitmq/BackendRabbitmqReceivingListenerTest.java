@@ -1,5 +1,6 @@
 package eu.domibus.plugin.rabbitmq;
 
+import eu.domibus.ext.domain.DomainDTO;
 import eu.domibus.ext.services.AuthenticationExtService;
 import eu.domibus.ext.services.DomainContextExtService;
 import eu.domibus.ext.services.DomibusPropertyExtService;
@@ -8,6 +9,7 @@ import eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl;
 import eu.domibus.plugin.rabbitmq.BackendRabbitmqReceivingListener;
 import eu.domibus.plugin.rabbitmq.DefaultRabbitmqPluginException;
 import eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
 import mockit.*;
 import mockit.integration.junit4.JMockit;
 import org.junit.Test;
@@ -15,6 +17,7 @@ import org.junit.runner.RunWith;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.core.MessagePropertiesBuilder;
+import org.springframework.security.core.Authentication;
 
 /**
  * @author Cosmin Baciu, Generix Group
@@ -35,6 +38,15 @@ public class BackendRabbitmqReceivingListenerTest {
     @Injectable
     protected AuthenticationExtService authenticationExtService;
 
+    @Injectable
+    protected RabbitmqAuthenticationCache authenticationCache;
+
+    @Injectable
+    protected RabbitmqBrokerIdentityAuthenticator brokerIdentityAuthenticator;
+
+    @Injectable
+    protected RabbitmqMetrics metrics;
+
     @Tested
     BackendRabbitmqReceivingListener backendRabbitmqReceivingListener;
 
@@ -44,7 +56,15 @@ public class BackendRabbitmqReceivingListenerTest {
             authenticationExtService.isUnsecureLoginAllowed();
             result = false;
 
+            message.getMessageProperties();
+            result = new MessageProperties();
+
+            metrics.start();
+            result = 1L;
+
             backendRabbitmqReceivingListener.authenticate(message);
+
+            metrics.record(RabbitmqMetrics.Stage.AUTHENTICATE, null, 1L, true);
         }};
         backendRabbitmqReceivingListener.onMessage(message);
 
@@ -66,6 +86,9 @@ public class BackendRabbitmqReceivingListenerTest {
         		.build();
         
         new Expectations() {{
+            brokerIdentityAuthenticator.isEnabled();
+            result = false;
+
             message.getMessageProperties();
             result = messageProperties;
         }};
@@ -73,7 +96,42 @@ public class BackendRabbitmqReceivingListenerTest {
         backendRabbitmqReceivingListener.authenticate(message);
 
         new FullVerifications() {{
+            authenticationCache.get(username, password);
             authenticationExtService.basicAuthenticate(username, password);
+            domainContextExtService.getCurrentDomainSafely();
+            authenticationCache.put(username, password, (Authentication) any, (DomainDTO) any);
+        }};
+    }
+
+    @Test
+    public void authenticateWithCachedAuthentication(@Injectable Message message, @Injectable Authentication authentication,
+                                                     @Mocked DomibusLogger LOG) {
+        final DomainDTO domain = new DomainDTO("red", "red");
+        String username = "cosmin";
+        String password = "mypass";
+        final MessageProperties messageProperties = MessagePropertiesBuilder.newInstance()
+        		.setHeader(RabbitmqMessageConstants.USERNAME, username)
+        		.setHeader(RabbitmqMessageConstants.PASSWORD, password)
+        		.build();
+
+        new Expectations() {{
+            brokerIdentityAuthenticator.isEnabled();
+            result = false;
+
+            message.getMessageProperties();
+            result = messageProperties;
+
+            authenticationCache.get(username, password);
+            result = new RabbitmqAuthenticationCache.CachedAuthentication(username, authentication, domain, Long.MAX_VALUE);
+        }};
+
+        backendRabbitmqReceivingListener.authenticate(message);
+
+        new Verifications() {{
+            authenticationExtService.basicAuthenticate(anyString, anyString);
+            times = 0;
+            domainContextExtService.setCurrentDomain(domain);
+            times = 1;
         }};
     }
 
@@ -82,6 +140,9 @@ public class BackendRabbitmqReceivingListenerTest {
         final MessageProperties messageProperties = MessagePropertiesBuilder.newInstance().build();
     	
     	new Expectations() {{
+            brokerIdentityAuthenticator.isEnabled();
+            result = false;
+
             message.getMessageProperties();
             result = messageProperties;
         }};
@@ -103,6 +164,9 @@ public class BackendRabbitmqReceivingListenerTest {
         		.build();
 
         new Expectations() {{
+            brokerIdentityAuthenticator.isEnabled();
+            result = false;
+
             message.getMessageProperties();
             result = messageProperties;
         }};
@@ -114,4 +178,18 @@ public class BackendRabbitmqReceivingListenerTest {
             times = 0;
         }};
     }
+
+    @Test
+    public void authenticateWithBrokerIdentity(@Injectable Message message, @Mocked DomibusLogger LOG) {
+        new Expectations() {{
+            brokerIdentityAuthenticator.isEnabled();
+            result = true;
+        }};
+
+        backendRabbitmqReceivingListener.authenticate(message);
+
+        new FullVerifications() {{
+            brokerIdentityAuthenticator.authenticate(message);
+        }};
+    }
 }
\ No newline at end of file
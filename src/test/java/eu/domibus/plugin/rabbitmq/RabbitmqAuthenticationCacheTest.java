@@ -0,0 +1,80 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+/**
+ * @author Generix Group
+ */
+public class RabbitmqAuthenticationCacheTest {
+
+    private final Authentication authentication = new UsernamePasswordAuthenticationToken("admin", null);
+
+    private final DomainDTO domain = new DomainDTO("red", "red");
+
+    @Test
+    public void getCachedAuthentication() {
+        RabbitmqAuthenticationCache cache = new RabbitmqAuthenticationCache();
+
+        Assert.assertNull(cache.get("admin", "123456"));
+        cache.put("admin", "123456", authentication, domain);
+
+        Assert.assertSame(authentication, cache.get("admin", "123456").getAuthentication());
+        Assert.assertSame(domain, cache.get("admin", "123456").getDomain());
+        Assert.assertNull(cache.get("admin", "wrong"));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void expiredAuthenticationIsNotReturned() {
+        RabbitmqAuthenticationCache cache = new RabbitmqAuthenticationCache();
+        cache.setTimeToLive(0);
+
+        cache.put("admin", "123456", authentication, domain);
+
+        Assert.assertNull(cache.get("admin", "123456"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void expiredEntriesAreDroppedOnPut() {
+        RabbitmqAuthenticationCache cache = new RabbitmqAuthenticationCache();
+        cache.setTimeToLive(0);
+        cache.put("user1", "123456", authentication, domain);
+        cache.put("user2", "123456", authentication, domain);
+
+        Assert.assertEquals(1, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        RabbitmqAuthenticationCache cache = new RabbitmqAuthenticationCache();
+        cache.setMaxSize(2);
+
+        cache.put("user1", "123456", authentication, domain);
+        cache.put("user2", "123456", authentication, domain);
+        cache.put("user3", "123456", authentication, domain);
+
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertNull(cache.get("user1", "123456"));
+        Assert.assertSame(authentication, cache.get("user3", "123456").getAuthentication());
+    }
+
+    @Test
+    public void invalidateUser() {
+        RabbitmqAuthenticationCache cache = new RabbitmqAuthenticationCache();
+        cache.put("user1", "123456", authentication, domain);
+        cache.put("user2", "123456", authentication, domain);
+
+        cache.invalidate("user1");
+
+        Assert.assertNull(cache.get("user1", "123456"));
+        Assert.assertSame(authentication, cache.get("user2", "123456").getAuthentication());
+    }
+}
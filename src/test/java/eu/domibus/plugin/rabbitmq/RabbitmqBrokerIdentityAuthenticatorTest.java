@@ -0,0 +1,130 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.ext.services.DomibusConfigurationExtService;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqBrokerIdentityAuthenticatorTest {
+
+    private static final String ORIGINAL_USER = "urn:oasis:names:tc:ebcore:partyid-type:unregistered:C1";
+
+    @Injectable
+    protected DomainExtService domainExtService;
+
+    @Injectable
+    protected DomainContextExtService domainContextExtService;
+
+    @Injectable
+    protected DomibusConfigurationExtService domibusConfigurationExtService;
+
+    @Tested
+    RabbitmqBrokerIdentityAuthenticator authenticator;
+
+    @After
+    public void clearSecurityContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void authenticateMappedBrokerUser() {
+        authenticator.setUserMapping("backendA=ROLE_ADMIN; backendB=ROLE_USER," + ORIGINAL_USER);
+
+        authenticator.authenticate(createMessage("backendB"));
+
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        Assert.assertTrue(authentication.isAuthenticated());
+        Assert.assertEquals(ORIGINAL_USER, authentication.getPrincipal());
+        Assert.assertEquals("ROLE_USER", authentication.getAuthorities().iterator().next().getAuthority());
+        new Verifications() {{
+            domainContextExtService.setCurrentDomain((DomainDTO) any);
+            times = 0;
+        }};
+    }
+
+    @Test
+    public void authenticateBrokerUserInItsDomain() {
+        final DomainDTO red = new DomainDTO("red", "red");
+        new Expectations() {{
+            domainExtService.getDomain("red");
+            result = red;
+        }};
+        authenticator.setUserMapping("backendA=ROLE_ADMIN,,red; backendB=ROLE_USER," + ORIGINAL_USER + ",blue");
+
+        authenticator.authenticate(createMessage("backendA"));
+
+        Assert.assertEquals("backendA", SecurityContextHolder.getContext().getAuthentication().getPrincipal());
+        new Verifications() {{
+            domainContextExtService.setCurrentDomain(red);
+        }};
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void authenticateBrokerUserInUnknownDomain() {
+        new Expectations() {{
+            domainExtService.getDomain("green");
+            result = null;
+        }};
+        authenticator.setUserMapping("backendA=ROLE_ADMIN,,green");
+
+        authenticator.authenticate(createMessage("backendA"));
+    }
+
+    @Test
+    public void brokerUserWithoutDomainIsRejectedInMultitenancy() {
+        new Expectations() {{
+            domibusConfigurationExtService.isMultiTenantAware();
+            result = true;
+        }};
+        authenticator.setUserMapping("backendA=ROLE_ADMIN");
+
+        try {
+            authenticator.authenticate(createMessage("backendA"));
+            Assert.fail("A broker user without domain cannot be authenticated in multitenancy");
+        } catch (DefaultRabbitmqPluginException e) {
+            Assert.assertNull(SecurityContextHolder.getContext().getAuthentication());
+        }
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void authenticateUnmappedBrokerUser() {
+        authenticator.setUserMapping("backendA=ROLE_ADMIN");
+
+        authenticator.authenticate(createMessage("backendB"));
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void authenticateWithoutUserId() {
+        authenticator.setUserMapping("backendA=ROLE_ADMIN");
+
+        authenticator.authenticate(createMessage(null));
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void userRoleRequiresOriginalUser() {
+        authenticator.setUserMapping("backendB=ROLE_USER,,red");
+    }
+
+    private Message createMessage(String userId) {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setUserId(userId);
+        return new Message(new byte[0], messageProperties);
+    }
+}
@@ -0,0 +1,200 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
+
+/**
+ * @author Generix Group
+ */
+public class RabbitmqChunkReassemblerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void chunksAreReassembledInAnyOrder() throws Exception {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+        String checksum = checksum("hello world");
+
+        reassembler.onChunk(chunk("transfer1", 2, 5, " world", 2, checksum));
+        try {
+            reassembler.getPayload("transfer1");
+            Assert.fail("The payload is not complete yet");
+        } catch (DefaultRabbitmqPluginException e) {
+            // expected
+        }
+        reassembler.onChunk(chunk("transfer1", 1, 0, "hello", null, null));
+
+        Assert.assertEquals("hello world", IOUtils.toString(reassembler.getPayload("transfer1").getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void payloadWithWrongChecksumIsKeptAsCorrupt() throws Exception {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+
+        reassembler.onChunk(chunk("transfer2", 1, 0, "hello", 1, checksum("other")));
+
+        try {
+            reassembler.getPayload("transfer2");
+            Assert.fail("The payload should be corrupt");
+        } catch (DefaultRabbitmqPluginException e) {
+            Assert.assertTrue(e.getMessage().contains("corrupt"));
+        }
+        Assert.assertArrayEquals(new String[]{"transfer2" + RabbitmqChunkReassembler.CORRUPT_FILE_SUFFIX}, folder.getRoot().list());
+    }
+
+    @Test
+    public void aMessageWaitsForTheChunksConsumedAfterIt() throws Exception {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+        reassembler.setAwaitTimeout(10000);
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                reassembler.onChunk(chunk("transfer4", 1, 0, "hello", 1, checksum("hello")));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        consumer.start();
+
+        reassembler.awaitPayloads(referencing("transfer4"));
+
+        Assert.assertEquals("hello", IOUtils.toString(reassembler.getPayload("transfer4").getInputStream(), StandardCharsets.UTF_8));
+        consumer.join();
+    }
+
+    @Test
+    public void aMessageFailsWhenItsChunksDoNotArriveInTime() {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+        reassembler.setAwaitTimeout(50);
+
+        try {
+            reassembler.awaitPayloads(referencing("transfer5"));
+            Assert.fail("The payload is not complete");
+        } catch (DefaultRabbitmqPluginException e) {
+            Assert.assertTrue(e.getMessage().contains("not complete"));
+        }
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void aMessageReferencingACorruptPayloadFailsWithoutWaiting() throws Exception {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+        reassembler.setAwaitTimeout(60000);
+        reassembler.onChunk(chunk("transfer6", 1, 0, "hello", 1, checksum("other")));
+
+        reassembler.awaitPayloads(referencing("transfer6"));
+    }
+
+    @Test
+    public void payloadIsReleasedAfterSubmission() throws Exception {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+        reassembler.onChunk(chunk("transfer3", 1, 0, "hello", 1, checksum("hello")));
+
+        reassembler.release(referencing("transfer3"));
+
+        Assert.assertArrayEquals(new String[0], folder.getRoot().list());
+    }
+
+    @Test
+    public void payloadIsOnlyReleasedOnceTheSubmissionCommitted() throws Exception {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+        reassembler.onChunk(chunk("transfer7", 1, 0, "hello", 1, checksum("hello")));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            reassembler.release(referencing("transfer7"));
+            Assert.assertEquals(1, folder.getRoot().list().length);
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        Assert.assertArrayEquals(new String[0], folder.getRoot().list());
+    }
+
+    @Test
+    public void payloadIsKeptWhenTheSubmissionRolledBack() throws Exception {
+        RabbitmqChunkReassembler reassembler = createReassembler();
+        reassembler.onChunk(chunk("transfer8", 1, 0, "hello", 1, checksum("hello")));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            reassembler.release(referencing("transfer8"));
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        Assert.assertEquals("hello", IOUtils.toString(reassembler.getPayload("transfer8").getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void transferIdCannotEscapeTheDirectory() {
+        createReassembler().getPayload("../transfer");
+    }
+
+    @Test
+    public void disabledReassemblerDoesNotCreateItsDirectoryAndRejectsChunks() throws Exception {
+        RabbitmqChunkReassembler reassembler = new RabbitmqChunkReassembler();
+        File directory = new File(folder.getRoot(), "disabled");
+        reassembler.setDirectory(directory.getAbsolutePath());
+
+        reassembler.init();
+        reassembler.shutdown();
+        Assert.assertFalse(directory.exists());
+
+        try {
+            reassembler.onChunk(chunk("transfer9", 1, 0, "hello", 1, checksum("hello")));
+            Assert.fail("The chunks are disabled");
+        } catch (DefaultRabbitmqPluginException e) {
+            Assert.assertTrue(e.getMessage().contains("disabled"));
+        }
+    }
+
+    private RabbitmqChunkReassembler createReassembler() {
+        RabbitmqChunkReassembler reassembler = new RabbitmqChunkReassembler();
+        reassembler.setEnabled(true);
+        reassembler.setDirectory(folder.getRoot().getAbsolutePath());
+        return reassembler;
+    }
+
+    private Message referencing(String transferId) {
+        MessageProperties properties = new MessageProperties();
+        properties.setHeader("payload_1" + PAYLOAD_CHUNK_TRANSFER_ID_SUFFIX, transferId);
+        return new Message(new byte[0], properties);
+    }
+
+    private Message chunk(String transferId, int sequence, long offset, String content, Integer total, String checksum) {
+        MessageProperties properties = new MessageProperties();
+        properties.setHeader(CHUNK_TRANSFER_ID, transferId);
+        properties.setHeader(CHUNK_SEQUENCE, sequence);
+        properties.setHeader(CHUNK_OFFSET, offset);
+        if (total != null) {
+            properties.setHeader(CHUNK_TOTAL, total);
+            properties.setHeader(CHUNK_CHECKSUM, checksum);
+        }
+        return new Message(content.getBytes(StandardCharsets.UTF_8), properties);
+    }
+
+    private String checksum(String content) throws Exception {
+        return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}
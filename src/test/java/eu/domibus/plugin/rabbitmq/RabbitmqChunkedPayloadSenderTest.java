@@ -0,0 +1,169 @@
+package eu.domibus.plugin.rabbitmq;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.integration.junit4.JMockit;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import javax.activation.DataHandler;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqChunkedPayloadSenderTest {
+
+    private static final Address OUT = new Address("", "domibus.backend.rabbitmq.out");
+
+    private static final String PAYLOAD = "a payload sent as chunks of four bytes";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Injectable
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Tested
+    RabbitmqChunkedPayloadSender chunkedPayloadSender;
+
+    private final List<Message> chunks = new ArrayList<>();
+    private final List<CompletableFuture<Void>> unconfirmed = new ArrayList<>();
+    private int maxUnconfirmed;
+
+    @Test
+    public void theChunksAreReassembledIntoThePayload() throws Exception {
+        chunkedPayloadSender.setChunkSize(4);
+        chunkedPayloadSender.setMaxChunksInFlight(2);
+        recordPublishes();
+
+        chunkedPayloadSender.sendChunks(OUT, chunkedMessage("transfer1", PAYLOAD));
+
+        Assert.assertEquals((PAYLOAD.length() + 3) / 4, chunks.size());
+        Assert.assertEquals(2, maxUnconfirmed);
+        Assert.assertTrue(unconfirmed.isEmpty());
+
+        final RabbitmqChunkReassembler reassembler = new RabbitmqChunkReassembler();
+        reassembler.setEnabled(true);
+        reassembler.setDirectory(folder.getRoot().getAbsolutePath());
+        final List<Message> shuffled = new ArrayList<>(chunks);
+        Collections.reverse(shuffled);
+        for (Message chunk : shuffled) {
+            reassembler.onChunk(chunk);
+        }
+        Assert.assertEquals(PAYLOAD, IOUtils.toString(reassembler.getPayload("transfer1").getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void theSizeOfABufferIsNotReadFromItsStream() throws Exception {
+        final DataHandler buffer = new DataHandler(new RabbitmqByteBufferDataSource(ByteBuffer.wrap(new byte[11]), null));
+
+        Assert.assertTrue(RabbitmqChunkedPayloadSender.isLargerThan(buffer, 10));
+        Assert.assertFalse(RabbitmqChunkedPayloadSender.isLargerThan(buffer, 11));
+    }
+
+    @Test
+    public void atMostTheThresholdIsReadFromAStream() throws Exception {
+        final CountingDataSource dataSource = new CountingDataSource(new byte[1000]);
+
+        Assert.assertTrue(RabbitmqChunkedPayloadSender.isLargerThan(new DataHandler(dataSource), 10));
+        Assert.assertTrue(dataSource.read <= 11);
+    }
+
+    private void recordPublishes() {
+        new Expectations() {{
+            rabbitmqPublisher.publish(OUT, (Message) any);
+            result = new Delegate<CompletableFuture<Void>>() {
+                CompletableFuture<Void> publish(Address address, Message message) {
+                    chunks.add(message);
+                    final CompletableFuture<Void> confirmation = new CompletableFuture<>();
+                    unconfirmed.add(confirmation);
+                    maxUnconfirmed = Math.max(maxUnconfirmed, unconfirmed.size());
+                    return confirmation;
+                }
+            };
+            rabbitmqPublisher.awaitConfirm((CompletableFuture<?>) any, OUT);
+            result = new Delegate<Void>() {
+                void awaitConfirm(CompletableFuture<?> confirmation, Address address) {
+                    Assert.assertTrue(unconfirmed.remove(confirmation));
+                }
+            };
+        }};
+    }
+
+    private static RabbitmqChunkedMessage chunkedMessage(String transferId, String payload) {
+        final DataHandler dataHandler = new DataHandler(new RabbitmqByteBufferDataSource(
+                ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)), null));
+        return new RabbitmqChunkedMessage(new Message(new byte[0], new MessageProperties()),
+                Collections.singletonList(new RabbitmqChunkedMessage.ChunkedPayload(transferId, dataHandler)));
+    }
+
+    private static class CountingDataSource implements javax.activation.DataSource {
+
+        private final byte[] content;
+        private int read;
+
+        CountingDataSource(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content) {
+                @Override
+                public synchronized int read(byte[] bytes, int offset, int length) {
+                    final int count = super.read(bytes, offset, length);
+                    read += Math.max(0, count);
+                    return count;
+                }
+
+                @Override
+                public synchronized int read() {
+                    final int value = super.read();
+                    read += value < 0 ? 0 : 1;
+                    return value;
+                }
+
+                @Override
+                public synchronized long skip(long n) {
+                    final long skipped = super.skip(n);
+                    read += skipped;
+                    return skipped;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import java.util.Collections;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqConcurrencyControllerTest {
+
+    @Injectable
+    protected AmqpAdmin amqpAdmin;
+
+    @Injectable
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Injectable
+    protected RabbitmqMetrics metrics;
+
+    @Tested
+    RabbitmqConcurrencyController concurrencyController;
+
+    @Test
+    public void decide() {
+        concurrencyController.setMinConsumers(2);
+        concurrencyController.setMaxConsumers(3);
+        concurrencyController.setScaleUpDepth(100);
+        concurrencyController.setMaxSubmitLatency(1000);
+        concurrencyController.setMaxPublisherInFlight(50);
+        concurrencyController.init();
+
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.SCALE_UP, concurrencyController.decide(201, 10, 0));
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.HOLD, concurrencyController.decide(200, 10, 0));
+        // already at the minimum
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.HOLD, concurrencyController.decide(0, -1, 0));
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.HOLD, concurrencyController.decide(5000, 1500, 0));
+
+        concurrencyController.apply(3, 20);
+
+        // already at the maximum
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.HOLD, concurrencyController.decide(5000, 10, 0));
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.SCALE_DOWN, concurrencyController.decide(5000, 1500, 0));
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.SCALE_DOWN, concurrencyController.decide(5000, 10, 51));
+        Assert.assertEquals(RabbitmqConcurrencyController.Decision.SCALE_DOWN, concurrencyController.decide(0, -1, 0));
+    }
+
+    @Test
+    public void sampleScalesTheRunningContainersUp(@Injectable final SimpleMessageListenerContainer container) {
+        concurrencyController.setContainers(Collections.singletonList(container));
+        concurrencyController.setQueueName("domibus.backend.rabbitmq.in");
+        concurrencyController.setMinConsumers(1);
+        concurrencyController.setMaxConsumers(5);
+        concurrencyController.setMinPrefetch(10);
+        concurrencyController.setMaxPrefetch(15);
+        concurrencyController.init();
+
+        new Expectations() {{
+            amqpAdmin.getQueueInfo("domibus.backend.rabbitmq.in");
+            result = new QueueInformation("domibus.backend.rabbitmq.in", 1000, 1);
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+            container.isRunning();
+            result = true;
+        }};
+
+        concurrencyController.sample();
+
+        Assert.assertEquals(2, concurrencyController.getConsumers());
+        Assert.assertEquals(15, concurrencyController.getPrefetch());
+        Assert.assertEquals(1000, concurrencyController.getQueueDepth());
+        new Verifications() {{
+            container.setPrefetchCount(15);
+            container.setConcurrentConsumers(2);
+            container.setMaxConcurrentConsumers(anyInt);
+            times = 0;
+        }};
+    }
+}
@@ -0,0 +1,229 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqDeliveryPipelineTest {
+
+    private static final Address OUT = new Address("", "domibus.backend.rabbitmq.out");
+    private static final DomainDTO DOMAIN = new DomainDTO("red", "red");
+
+    @Injectable
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Injectable
+    protected DomainContextExtService domainContextExtService;
+
+    @Injectable
+    protected RabbitmqMetrics metrics;
+
+    @Tested
+    RabbitmqDeliveryPipeline deliveryPipeline;
+
+    @Before
+    public void setUp() {
+        deliveryPipeline.setDeliveryTimeout(10000);
+    }
+
+    @After
+    public void tearDown() {
+        deliveryPipeline.shutdown();
+    }
+
+    @Test
+    public void deliveryCompletesOnceConfirmedAndIsTransformedInItsDomain() {
+        final Message message = new Message(new byte[0], new MessageProperties());
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+            domainContextExtService.getCurrentDomain();
+            result = DOMAIN;
+            rabbitmqPublisher.publishBatch(Collections.singletonList(OUT), Collections.singletonList(message));
+            result = Collections.singletonList(CompletableFuture.completedFuture(null));
+        }};
+        start();
+
+        deliveryPipeline.deliver(OUT, () -> new RabbitmqDeliveryPipeline.Delivery(OUT, message));
+
+        new Verifications() {{
+            domainContextExtService.setCurrentDomain(DOMAIN);
+            domainContextExtService.clearCurrentDomain();
+        }};
+    }
+
+    @Test
+    public void aFailingMeasurementDoesNotHoldTheDelivery() {
+        final Message message = new Message(new byte[0], new MessageProperties());
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+            domainContextExtService.getCurrentDomain();
+            result = DOMAIN;
+            rabbitmqPublisher.publishBatch(Collections.singletonList(OUT), Collections.singletonList(message));
+            result = Collections.singletonList(CompletableFuture.completedFuture(null));
+            metrics.record(RabbitmqMetrics.Stage.PUBLISH, "red", OUT.getRoutingKey(), anyLong, true);
+            result = new IllegalStateException("No current domain");
+        }};
+        start();
+        final long start = System.currentTimeMillis();
+
+        deliveryPipeline.deliver(OUT, () -> new RabbitmqDeliveryPipeline.Delivery(OUT, message));
+
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void unconfirmedDeliveriesFail() {
+        final CompletableFuture<Void> nacked = new CompletableFuture<>();
+        nacked.completeExceptionally(new DefaultRabbitmqPluginException("Message was not confirmed"));
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+            rabbitmqPublisher.publishBatch((List<Address>) any, (List<Message>) any);
+            result = Collections.singletonList(nacked);
+        }};
+        start();
+
+        try {
+            deliveryPipeline.deliver(OUT, () -> new RabbitmqDeliveryPipeline.Delivery(OUT, new Message(new byte[0], new MessageProperties())));
+            Assert.fail("The delivery should have failed");
+        } catch (RabbitmqDeliveryPipeline.UnsentDeliveryException e) {
+            Assert.assertEquals("Message was not confirmed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void deliveriesTimingOutBeforeBeingPublishedAreCancelled() throws Exception {
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+        }};
+        deliveryPipeline.setDeliveryTimeout(100);
+        start();
+
+        try {
+            deliveryPipeline.deliver(OUT, () -> {
+                Thread.sleep(300);
+                return new RabbitmqDeliveryPipeline.Delivery(OUT, new Message(new byte[0], new MessageProperties()));
+            });
+            Assert.fail("The delivery should have timed out");
+        } catch (RabbitmqDeliveryPipeline.UnsentDeliveryException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Thread.sleep(500);
+
+        new Verifications() {{
+            rabbitmqPublisher.publishBatch((List<Address>) any, (List<Message>) any);
+            times = 0;
+        }};
+    }
+
+    @Test
+    public void deliveriesTimingOutOncePublishedAreNotKnownToBeUnsent() {
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+            rabbitmqPublisher.publishBatch((List<Address>) any, (List<Message>) any);
+            result = Collections.singletonList(new CompletableFuture<Void>());
+        }};
+        deliveryPipeline.setDeliveryTimeout(200);
+        start();
+
+        try {
+            deliveryPipeline.deliver(OUT, () -> new RabbitmqDeliveryPipeline.Delivery(OUT, new Message(new byte[0], new MessageProperties())));
+            Assert.fail("The delivery should have timed out");
+        } catch (RabbitmqDeliveryPipeline.UnsentDeliveryException e) {
+            Assert.fail("The delivery was published");
+        } catch (DefaultRabbitmqPluginException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void failedTransformsAreNotPublished() {
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+        }};
+        start();
+
+        try {
+            deliveryPipeline.deliver(OUT, () -> {
+                throw new IllegalStateException("Could not transform");
+            });
+            Assert.fail("The delivery should have failed");
+        } catch (RabbitmqDeliveryPipeline.UnsentDeliveryException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        new Verifications() {{
+            rabbitmqPublisher.publishBatch((List<Address>) any, (List<Message>) any);
+            times = 0;
+        }};
+    }
+
+    @Test
+    public void readyDeliveriesArePublishedInBatches() throws Exception {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+            rabbitmqPublisher.publishBatch((List<Address>) any, (List<Message>) any);
+            result = new Delegate<List<CompletableFuture<Void>>>() {
+                List<CompletableFuture<Void>> publishBatch(List<Address> addresses, List<Message> messages) {
+                    batchSizes.add(messages.size());
+                    final List<CompletableFuture<Void>> confirmations = new ArrayList<>();
+                    messages.forEach(message -> confirmations.add(CompletableFuture.completedFuture(null)));
+                    return confirmations;
+                }
+            };
+        }};
+        deliveryPipeline.setBatchSize(10);
+        start();
+
+        final List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final Thread sender = new Thread(() -> deliveryPipeline.deliver(OUT, () -> new RabbitmqDeliveryPipeline.Delivery(OUT,
+                    new Message(new byte[0], new MessageProperties()))));
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join(10000);
+        }
+
+        Assert.assertEquals(20, batchSizes.stream().mapToInt(Integer::intValue).sum());
+        Assert.assertTrue(batchSizes.stream().allMatch(size -> size <= 10));
+    }
+
+    private void start() {
+        deliveryPipeline.setEnabled(true);
+        deliveryPipeline.setTransformThreads(2);
+        deliveryPipeline.init();
+    }
+}
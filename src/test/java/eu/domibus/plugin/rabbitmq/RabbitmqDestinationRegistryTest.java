@@ -0,0 +1,192 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.ext.services.DomibusPropertyExtService;
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_OUT;
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_REPLY;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqDestinationRegistryTest {
+
+    private static final DomainDTO RED = new DomainDTO("red", "red");
+    private static final DomainDTO BLUE = new DomainDTO("blue", "blue");
+
+    @Injectable
+    protected DomibusPropertyExtService domibusPropertyExtService;
+
+    @Injectable
+    protected DomainContextExtService domainContextExtService;
+
+    @Injectable
+    protected DomainExtService domainExtService;
+
+    @Injectable
+    protected AmqpAdmin amqpAdmin;
+
+    @Injectable
+    protected RabbitmqPriorityClassifier priorityClassifier;
+
+    @Injectable
+    protected RabbitmqDomainRoutingTopology domainRoutingTopology;
+
+    @Tested
+    RabbitmqDestinationRegistry destinationRegistry;
+
+    @Test
+    public void theWarmUpDomainsAreResolvedWithoutConnecting() {
+        recordQueueProperties(false);
+        new Expectations() {{
+            domainExtService.getDomain("red");
+            result = RED;
+        }};
+        destinationRegistry.setWarmUpDomains("red");
+
+        destinationRegistry.warmUp();
+
+        Assert.assertEquals(4, destinationRegistry.getDeclarables().getDeclarables().size());
+        Assert.assertEquals(new Address("", "domibus.backend.rabbitmq.out.red"), destinationRegistry.getAddresses(RED).get(RABBITMQ_PLUGIN_QUEUE_OUT));
+        new Verifications() {{
+            amqpAdmin.declareQueue((Queue) any);
+            times = 0;
+        }};
+    }
+
+    @Test
+    public void theQueuesOfADomainResolvedLaterAreDeclaredOnTheSpot() {
+        recordQueueProperties(false);
+        new Expectations() {{
+            domainContextExtService.getCurrentDomain();
+            result = BLUE;
+        }};
+
+        final Address address = destinationRegistry.getAddress(RABBITMQ_PLUGIN_QUEUE_REPLY);
+        destinationRegistry.getAddress(RABBITMQ_PLUGIN_QUEUE_OUT);
+
+        Assert.assertEquals(new Address("", "domibus.backend.rabbitmq.reply.blue"), address);
+        Assert.assertEquals(4, destinationRegistry.getDeclarables().getDeclarables().size());
+        new Verifications() {{
+            final List<Queue> queues = new ArrayList<>();
+            amqpAdmin.declareQueue(withCapture(queues));
+            Assert.assertEquals(4, queues.size());
+            Assert.assertEquals(9, queues.get(1).getArguments().get("x-max-priority"));
+        }};
+    }
+
+    @Test
+    public void aDomainWhoseQueuesCouldNotBeDeclaredIsResolvedAgain() {
+        recordQueueProperties(false);
+        new Expectations() {{
+            amqpAdmin.declareQueue((Queue) any);
+            result = new AmqpException("Broker unavailable");
+            result = null;
+        }};
+
+        try {
+            destinationRegistry.getAddresses(RED);
+            Assert.fail("The queues could not be declared");
+        } catch (AmqpException e) {
+            // expected
+        }
+        Assert.assertTrue(destinationRegistry.getDeclarables().getDeclarables().isEmpty());
+
+        Assert.assertEquals(new Address("", "domibus.backend.rabbitmq.out.red"), destinationRegistry.getAddresses(RED).get(RABBITMQ_PLUGIN_QUEUE_OUT));
+        Assert.assertEquals(4, destinationRegistry.getDeclarables().getDeclarables().size());
+    }
+
+    @Test
+    public void anInvalidatedDomainIsResolvedAgain() {
+        recordQueueProperties(false);
+
+        destinationRegistry.getAddresses(RED);
+        destinationRegistry.invalidate("red");
+
+        Assert.assertTrue(destinationRegistry.getDeclarables().getDeclarables().isEmpty());
+        destinationRegistry.getAddresses(RED);
+        new Verifications() {{
+            domibusPropertyExtService.getDomainProperty(RED, RABBITMQ_PLUGIN_QUEUE_OUT);
+            times = 2;
+        }};
+    }
+
+    @Test
+    public void theQueuesAreBoundToTheRoutingExchange() {
+        recordQueueProperties(true);
+        new Expectations() {{
+            domainRoutingTopology.declare(RED, anyString, anyString, (Map<String, Object>) any, (List<Declarable>) any);
+            result = new Delegate<Address>() {
+                Address declare(DomainDTO domain, String queueProperty, String queueName, Map<String, Object> arguments, List<Declarable> declarables) {
+                    declarables.add(new Queue(queueName + "." + domain.getCode()));
+                    return new Address("domibus.backend.rabbitmq", domain.getCode() + "." + RabbitmqDomainRoutingTopology.getType(queueProperty));
+                }
+            };
+        }};
+
+        final Map<String, Address> addresses = destinationRegistry.getAddresses(RED);
+
+        Assert.assertEquals(new Address("domibus.backend.rabbitmq", "red.out"), addresses.get(RABBITMQ_PLUGIN_QUEUE_OUT));
+        Assert.assertEquals(4, destinationRegistry.getDeclarables().getDeclarables().size());
+    }
+
+    @Test
+    public void theLaneQueuesAreResolvedWithQueueOut() {
+        recordQueueProperties(false);
+        new Expectations() {{
+            priorityClassifier.getQueueLanes();
+            result = Arrays.asList("urgent", "bulk");
+        }};
+
+        final Map<String, Address> addresses = destinationRegistry.getAddresses(RED);
+
+        Assert.assertEquals(new Address("", "domibus.backend.rabbitmq.out.red.urgent"), addresses.get(RABBITMQ_PLUGIN_QUEUE_OUT + ".urgent"));
+        Assert.assertEquals(new Address("", "domibus.backend.rabbitmq.out.red.bulk"), addresses.get(RABBITMQ_PLUGIN_QUEUE_OUT + ".bulk"));
+        Assert.assertEquals(6, destinationRegistry.getDeclarables().getDeclarables().size());
+        new Verifications() {{
+            final List<Queue> queues = new ArrayList<>();
+            amqpAdmin.declareQueue(withCapture(queues));
+            Assert.assertEquals(6, queues.size());
+            Assert.assertTrue(queues.get(2).getArguments().isEmpty());
+        }};
+    }
+
+    private void recordQueueProperties(boolean routed) {
+        new Expectations() {{
+            domibusPropertyExtService.getDomainProperty((DomainDTO) any, anyString);
+            result = new Delegate<String>() {
+                String getDomainProperty(DomainDTO domain, String propertyName) {
+                    return "domibus.backend.rabbitmq." + RabbitmqDomainRoutingTopology.getType(propertyName)
+                            + (routed ? "" : "." + domain.getCode());
+                }
+            };
+            priorityClassifier.getQueueArguments();
+            result = Collections.singletonMap("x-max-priority", 9);
+            domainRoutingTopology.isEnabled();
+            result = routed;
+        }};
+    }
+}
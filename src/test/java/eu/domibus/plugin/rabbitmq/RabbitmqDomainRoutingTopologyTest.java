@@ -0,0 +1,135 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.integration.junit4.JMockit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.TopicExchange;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqDomainRoutingTopologyTest {
+
+    @Injectable
+    protected DomainExtService domainExtService;
+
+    @Injectable
+    protected DomainContextExtService domainContextExtService;
+
+    @Tested
+    RabbitmqDomainRoutingTopology domainRoutingTopology;
+
+    @Test
+    public void everyDomainHasItsQueuesAndListenerContainer(@Injectable ConnectionFactory connectionFactory,
+                                                            @Injectable MessageListener messageListener) {
+        final DomainDTO red = start(connectionFactory, messageListener);
+
+        final List<Declarable> declarables = new ArrayList<>();
+        final Address address = domainRoutingTopology.declare(red, "plugin.rabbitmq.queue.out", "domibus.backend.rabbitmq.out",
+                Collections.singletonMap("x-max-priority", 9), declarables);
+
+        Assert.assertEquals("domibus.backend.rabbitmq", address.getExchangeName());
+        Assert.assertEquals("red.out", address.getRoutingKey());
+        Assert.assertEquals(2, declarables.size());
+        final Queue outQueue = (Queue) declarables.get(0);
+        Assert.assertEquals("domibus.backend.rabbitmq.out.red", outQueue.getName());
+        Assert.assertEquals("lazy", outQueue.getArguments().get("x-queue-mode"));
+        Assert.assertEquals(10000L, outQueue.getArguments().get("x-max-length"));
+        Assert.assertEquals("reject-publish", outQueue.getArguments().get("x-overflow"));
+        Assert.assertEquals(9, outQueue.getArguments().get("x-max-priority"));
+        Assert.assertEquals("red.out", ((Binding) declarables.get(1)).getRoutingKey());
+
+        Assert.assertEquals(2, domainRoutingTopology.getContainers().size());
+        Assert.assertArrayEquals(new String[]{"domibus.backend.rabbitmq.in.blue"}, domainRoutingTopology.getContainers().get(1).getQueueNames());
+        Assert.assertEquals(AcknowledgeMode.AUTO, domainRoutingTopology.getContainers().get(0).getAcknowledgeMode());
+
+        final List<Declarable> topology = new ArrayList<>(domainRoutingTopology.getDeclarables().getDeclarables());
+        Assert.assertEquals(5, topology.size());
+        Assert.assertTrue(topology.get(0) instanceof TopicExchange);
+        Assert.assertEquals(Arrays.asList("red.in", "blue.in"), topology.stream()
+                .filter(declarable -> declarable instanceof Binding)
+                .map(declarable -> ((Binding) declarable).getRoutingKey())
+                .collect(Collectors.toList()));
+
+        domainRoutingTopology.destroy();
+        Assert.assertFalse(domainRoutingTopology.getContainers().get(0).isActive());
+    }
+
+    @Test
+    public void theLaneQueuesFollowTheNamingOfTheDomainQueues(@Injectable ConnectionFactory connectionFactory,
+                                                              @Injectable MessageListener messageListener) {
+        final DomainDTO red = start(connectionFactory, messageListener);
+        domainRoutingTopology.setOverflow("drop-head");
+
+        final List<Declarable> declarables = new ArrayList<>();
+        final Address address = domainRoutingTopology.declare(red, "plugin.rabbitmq.queue.out.urgent", "domibus.backend.rabbitmq.out.urgent",
+                Collections.emptyMap(), declarables);
+
+        Assert.assertEquals("red.out.urgent", address.getRoutingKey());
+        final Queue laneQueue = (Queue) declarables.get(0);
+        Assert.assertEquals("domibus.backend.rabbitmq.out.urgent.red", laneQueue.getName());
+        Assert.assertEquals("lazy", laneQueue.getArguments().get("x-queue-mode"));
+        Assert.assertEquals("drop-head", laneQueue.getArguments().get("x-overflow"));
+    }
+
+    @Test
+    public void theDomainQueuesAreConsumedThroughTheKeyedDispatcher(@Injectable ConnectionFactory connectionFactory,
+                                                                    @Injectable MessageListener messageListener,
+                                                                    @Injectable RabbitmqKeyedDispatcher keyedDispatcher) {
+        domainRoutingTopology.setKeyedDispatcher(keyedDispatcher);
+        start(connectionFactory, messageListener);
+
+        final SimpleMessageListenerContainer container = domainRoutingTopology.getContainers().get(0);
+        Assert.assertEquals(AcknowledgeMode.MANUAL, container.getAcknowledgeMode());
+        domainRoutingTopology.destroy();
+    }
+
+    private DomainDTO start(ConnectionFactory connectionFactory, MessageListener messageListener) {
+        final DomainDTO red = new DomainDTO("red", "red");
+        final DomainDTO blue = new DomainDTO("blue", "blue");
+        new Expectations() {{
+            domainExtService.getDomain("red");
+            result = red;
+            domainExtService.getDomain("blue");
+            result = blue;
+        }};
+        domainRoutingTopology.setEnabled(true);
+        domainRoutingTopology.setConnectionFactory(connectionFactory);
+        domainRoutingTopology.setMessageListener(messageListener);
+        domainRoutingTopology.setExchangeName("domibus.backend.rabbitmq");
+        domainRoutingTopology.setIncomingQueueName("domibus.backend.rabbitmq.in");
+        domainRoutingTopology.setDomains("red, blue");
+        domainRoutingTopology.setQueueMode("lazy");
+        domainRoutingTopology.setMaxLength(10000);
+        domainRoutingTopology.init();
+        return red;
+    }
+
+    @Test
+    public void queuePropertiesAreTypedWithoutTheirPrefix() {
+        Assert.assertEquals("consumer.notification.error", RabbitmqDomainRoutingTopology.getType("plugin.rabbitmq.queue.consumer.notification.error"));
+        Assert.assertFalse(domainRoutingTopology.isAutoStartup());
+    }
+}
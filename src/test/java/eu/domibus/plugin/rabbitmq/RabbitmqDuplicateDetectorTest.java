@@ -0,0 +1,135 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * @author Generix Group
+ */
+public class RabbitmqDuplicateDetectorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void messagesAreIdentifiedByTheirMessageIdElseByTheirBody() {
+        final RabbitmqDuplicateDetector duplicateDetector = new RabbitmqDuplicateDetector();
+        final MessageProperties properties = new MessageProperties();
+        properties.setMessageId(" 42 ");
+
+        Assert.assertEquals("id:42", duplicateDetector.getKey(new Message("body".getBytes(StandardCharsets.UTF_8), properties)));
+        final String first = duplicateDetector.getKey(new Message("body".getBytes(StandardCharsets.UTF_8), new MessageProperties()));
+        final String second = duplicateDetector.getKey(new Message("body".getBytes(StandardCharsets.UTF_8), new MessageProperties()));
+        final String other = duplicateDetector.getKey(new Message("other".getBytes(StandardCharsets.UTF_8), new MessageProperties()));
+        Assert.assertTrue(first.startsWith("sha256:"));
+        Assert.assertEquals(first, second);
+        Assert.assertNotEquals(first, other);
+    }
+
+    @Test
+    public void theReplyOfASubmittedMessageIsReturnedUntilItIsEvicted() throws Exception {
+        final RabbitmqDuplicateDetector duplicateDetector = start(2, null);
+
+        duplicateDetector.record("id:1", "1");
+        duplicateDetector.record("id:2", "2");
+
+        Assert.assertEquals("1", duplicateDetector.lookup("id:1").getMessageId());
+        Assert.assertNull(duplicateDetector.lookup("id:2").getErrorMessage());
+        Assert.assertNull(duplicateDetector.lookup("id:3"));
+        Assert.assertEquals(2, duplicateDetector.getDuplicates());
+
+        duplicateDetector.record("id:3", "3");
+
+        Assert.assertNull(duplicateDetector.lookup("id:1"));
+        Assert.assertNotNull(duplicateDetector.lookup("id:3"));
+        Assert.assertEquals(2, duplicateDetector.getSize());
+    }
+
+    @Test
+    public void submissionsAreOnlyRememberedOnceCommitted() throws Exception {
+        final RabbitmqDuplicateDetector duplicateDetector = start(10, null);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            duplicateDetector.record("id:1", "1");
+            duplicateDetector.record("id:2", "2");
+            Assert.assertNull(duplicateDetector.lookup("id:1"));
+
+            final List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            synchronizations.get(0).afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            synchronizations.get(1).afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        Assert.assertNotNull(duplicateDetector.lookup("id:1"));
+        Assert.assertNull(duplicateDetector.lookup("id:2"));
+    }
+
+    @Test
+    public void theIndexFileIsLoadedAtStartup() throws Exception {
+        final File indexFile = new File(folder.getRoot(), "duplicates/index");
+        final RabbitmqDuplicateDetector duplicateDetector = start(10, indexFile);
+        duplicateDetector.record("id:1", "1");
+        duplicateDetector.record("sha256:abc=", "2\tat\nline 1");
+        duplicateDetector.shutdown();
+
+        final RabbitmqDuplicateDetector restarted = start(10, indexFile);
+
+        Assert.assertEquals(2, restarted.getSize());
+        Assert.assertNull(restarted.lookup("id:1").getErrorMessage());
+        Assert.assertEquals("2\tat\nline 1", restarted.lookup("sha256:abc=").getMessageId());
+        restarted.shutdown();
+    }
+
+    @Test
+    public void theIndexFileIsCompacted() throws Exception {
+        final File indexFile = new File(folder.getRoot(), "index");
+        final RabbitmqDuplicateDetector duplicateDetector = start(2, indexFile);
+        for (int i = 0; i < 5; i++) {
+            duplicateDetector.record("id:" + i, String.valueOf(i));
+        }
+        duplicateDetector.shutdown();
+
+        final RabbitmqDuplicateDetector restarted = start(2, indexFile);
+
+        Assert.assertEquals(2, restarted.getSize());
+        Assert.assertNotNull(restarted.lookup("id:4"));
+        Assert.assertNull(restarted.lookup("id:0"));
+        restarted.shutdown();
+    }
+
+    @Test
+    public void theIndexEntriesAreWrittenInTheBackground() throws Exception {
+        final File indexFile = new File(folder.getRoot(), "index");
+        final RabbitmqDuplicateDetector duplicateDetector = start(10, indexFile);
+        duplicateDetector.record("id:1", "1");
+
+        Assert.assertEquals(0, indexFile.length());
+        duplicateDetector.writeIndex();
+        Assert.assertTrue(indexFile.length() > 0);
+        duplicateDetector.shutdown();
+    }
+
+    private RabbitmqDuplicateDetector start(int maxEntries, File indexFile) throws Exception {
+        final RabbitmqDuplicateDetector duplicateDetector = new RabbitmqDuplicateDetector();
+        duplicateDetector.setEnabled(true);
+        duplicateDetector.setMaxEntries(maxEntries);
+        duplicateDetector.setFlushInterval(60000);
+        if (indexFile != null) {
+            duplicateDetector.setIndexFile(indexFile.getAbsolutePath());
+        }
+        duplicateDetector.init();
+        return duplicateDetector;
+    }
+}
@@ -0,0 +1,69 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.activation.DataHandler;
+import javax.mail.util.ByteArrayDataSource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Generix Group
+ */
+public class RabbitmqFramedBodyTest {
+
+    @Test
+    public void framesAreReadAsSlicesOfTheBody() throws Exception {
+        RabbitmqFramedBody framedBody = new RabbitmqFramedBody();
+        Assert.assertEquals(0, framedBody.add("<hello/>".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(1, framedBody.add(new byte[0]));
+        Assert.assertEquals(2, framedBody.add("world".getBytes(StandardCharsets.UTF_8)));
+        byte[] body = framedBody.toByteArray();
+
+        List<ByteBuffer> frames = RabbitmqFramedBody.decode(body);
+
+        Assert.assertEquals(3, frames.size());
+        Assert.assertEquals("<hello/>", read(frames.get(0)));
+        Assert.assertEquals("", read(frames.get(1)));
+        Assert.assertEquals("world", read(frames.get(2)));
+        Assert.assertTrue(frames.get(0).isReadOnly());
+
+        // the frames are views of the body, not copies
+        body[body.length - 1] = 'D';
+        Assert.assertEquals("worlD", read(frames.get(2)));
+    }
+
+    @Test
+    public void framesAreStreamedFromTheirDataHandler() throws Exception {
+        RabbitmqFramedBody framedBody = new RabbitmqFramedBody();
+        framedBody.add(new DataHandler(new ByteArrayDataSource("<hello/>".getBytes(StandardCharsets.UTF_8), "text/xml")));
+        framedBody.add(new DataHandler(new ByteArrayDataSource("world".getBytes(StandardCharsets.UTF_8), "text/plain")));
+
+        Assert.assertEquals("world", new String(framedBody.getFrame(1), StandardCharsets.UTF_8));
+        List<ByteBuffer> frames = RabbitmqFramedBody.decode(framedBody.toByteArray());
+        Assert.assertEquals("<hello/>", read(frames.get(0)));
+        Assert.assertEquals("world", read(frames.get(1)));
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void truncatedBodyIsRejected() {
+        RabbitmqFramedBody framedBody = new RabbitmqFramedBody();
+        framedBody.add("hello".getBytes(StandardCharsets.UTF_8));
+        byte[] body = framedBody.toByteArray();
+
+        RabbitmqFramedBody.decode(Arrays.copyOf(body, body.length - 1));
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void bodyWithoutTableOfContentsIsRejected() {
+        RabbitmqFramedBody.decode(new byte[2]);
+    }
+
+    private String read(ByteBuffer frame) throws Exception {
+        return IOUtils.toString(new RabbitmqByteBufferDataSource(frame, null).getInputStream(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,46 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.text.MessageFormat;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.*;
+
+/**
+ * @author Generix Group
+ */
+public class RabbitmqHeaderCodecTest {
+
+    @Test
+    public void payloadHeaderNamesMatchTheFormats() {
+        for (int i = 1; i <= RabbitmqHeaderCodec.PRECOMPUTED_PAYLOADS + 1; i++) {
+            Assert.assertEquals(MessageFormat.format(PAYLOAD_NAME_FORMAT, i), RabbitmqHeaderCodec.payloadName(i));
+            Assert.assertEquals(MessageFormat.format(PAYLOAD_MIME_TYPE_FORMAT, i), RabbitmqHeaderCodec.payloadMimeType(i));
+            Assert.assertEquals(MessageFormat.format(PAYLOAD_FILE_NAME_FORMAT, i), RabbitmqHeaderCodec.payloadFileName(i));
+            Assert.assertEquals(MessageFormat.format(PAYLOAD_MIME_CONTENT_ID_FORMAT, i), RabbitmqHeaderCodec.payloadMimeContentId(i));
+            Assert.assertEquals(MessageFormat.format(PAYLOAD_CHUNK_TRANSFER_ID_FORMAT, i), RabbitmqHeaderCodec.payloadChunkTransferId(i));
+            Assert.assertEquals(MessageFormat.format(PAYLOAD_FRAME_FORMAT, i), RabbitmqHeaderCodec.payloadFrame(i));
+            Assert.assertEquals(MessageFormat.format(RABBITMQ_PAYLOAD_NAME_FORMAT, i), RabbitmqHeaderCodec.rabbitmqPayloadName(i));
+        }
+    }
+
+    @Test
+    public void precomputedNamesAreShared() {
+        Assert.assertSame(RabbitmqHeaderCodec.payloadMimeType(2), RabbitmqHeaderCodec.payloadMimeType(2));
+    }
+
+    @Test
+    public void headerValuesAreTrimmed() {
+        MessageProperties properties = new MessageProperties();
+        properties.setHeader(SERVICE, "bdx:noprocess");
+        properties.setHeader(ACTION, " TC1Leg1 ");
+        properties.setHeader(TOTAL_NUMBER_OF_PAYLOADS, 2);
+
+        Assert.assertSame(properties.getHeaders().get(SERVICE), RabbitmqHeaderCodec.getString(properties, SERVICE));
+        Assert.assertEquals("TC1Leg1", RabbitmqHeaderCodec.getString(properties, ACTION));
+        Assert.assertEquals("2", RabbitmqHeaderCodec.getString(properties, TOTAL_NUMBER_OF_PAYLOADS));
+        Assert.assertNull(RabbitmqHeaderCodec.getString(properties, MPC));
+    }
+}
@@ -0,0 +1,192 @@
+package eu.domibus.plugin.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import mockit.Injectable;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.CONVERSATION_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MESSAGE_ID;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.REF_TO_MESSAGE_ID;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqKeyedDispatcherTest {
+
+    @Injectable
+    protected Channel channel;
+
+    @Injectable
+    protected DomainContextExtService domainContextExtService;
+
+    private final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+    private CountDownLatch latch;
+
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    private RabbitmqKeyedDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher = new RabbitmqKeyedDispatcher();
+        dispatcher.backendRabbitmqReceivingListener = new BackendRabbitmqReceivingListener() {
+            @Override
+            public void onMessage(Message message) {
+                final String messageId = message.getMessageProperties().getHeader(MESSAGE_ID);
+                if (messageId.startsWith("blocking")) {
+                    try {
+                        released.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (messageId.startsWith("failing")) {
+                    latch.countDown();
+                    throw new DefaultRabbitmqPluginException("Submission failed");
+                }
+                processed.add(messageId);
+                latch.countDown();
+            }
+        };
+        dispatcher.domainContextExtService = domainContextExtService;
+        dispatcher.setThreads(4);
+        dispatcher.init();
+    }
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void messagesOfAKeyAreProcessedInOrder() throws Exception {
+        latch = new CountDownLatch(60);
+        for (int i = 0; i < 20; i++) {
+            for (String conversation : new String[]{"a", "b", "c"}) {
+                dispatcher.onMessage(message(conversation + i, conversation, null, i), channel);
+            }
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        for (String conversation : new String[]{"a", "b", "c"}) {
+            int last = -1;
+            for (String messageId : new ArrayList<>(processed)) {
+                if (messageId.startsWith(conversation)) {
+                    final int index = Integer.parseInt(messageId.substring(1));
+                    Assert.assertTrue(messageId + " processed out of order", index > last);
+                    last = index;
+                }
+            }
+            Assert.assertEquals(19, last);
+        }
+        awaitIdleLanesEvicted();
+        Assert.assertEquals(0, dispatcher.getChainKeyCount());
+        new Verifications() {{
+            channel.basicAck(anyLong, false);
+            times = 60;
+        }};
+    }
+
+    @Test
+    public void repliesFollowTheLaneOfTheMessageTheyReferTo() {
+        final MessageProperties first = message("blocking1", "conversation", null, 1).getMessageProperties();
+        final MessageProperties reply = message("m2", null, "blocking1", 2).getMessageProperties();
+        final MessageProperties unrelated = message("m3", null, null, 3).getMessageProperties();
+
+        Assert.assertEquals("conversation", dispatcher.getKey(first, "blocking1"));
+        latch = new CountDownLatch(1);
+        dispatcher.onMessage(message("blocking1", "conversation", null, 1), channel);
+
+        Assert.assertEquals("conversation", dispatcher.getKey(reply, "m2"));
+        Assert.assertEquals("m3", dispatcher.getKey(unrelated, "m3"));
+    }
+
+    @Test
+    public void failedMessagesAreRejectedAndIdleLanesEvicted() throws Exception {
+        latch = new CountDownLatch(2);
+        dispatcher.onMessage(message("failing", "a", null, 1), channel);
+        dispatcher.onMessage(message("b1", "b", null, 2), channel);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        awaitIdleLanesEvicted();
+
+        new Verifications() {{
+            channel.basicReject(1, true);
+            times = 1;
+            channel.basicAck(2, false);
+            times = 1;
+        }};
+    }
+
+    @Test
+    public void processedMessagesAreForgotten() throws Exception {
+        latch = new CountDownLatch(1);
+        dispatcher.onMessage(message("m1", "conversation", null, 1), channel);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        awaitIdleLanesEvicted();
+
+        Assert.assertEquals(0, dispatcher.getChainKeyCount());
+        Assert.assertEquals("m1", dispatcher.getKey(message("m2", null, "m1", 2).getMessageProperties(), "m2"));
+    }
+
+    @Test
+    public void messagesAreSubmittedInTheDomainTheyWereDispatchedWith() throws Exception {
+        final DomainDTO red = new DomainDTO("red", "red");
+        latch = new CountDownLatch(2);
+        dispatcher.dispatch(message("m1", "conversation", null, 1), channel, red);
+        dispatcher.onMessage(message("m2", "other", null, 2), channel);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        awaitIdleLanesEvicted();
+
+        new Verifications() {{
+            domainContextExtService.setCurrentDomain(red);
+            times = 1;
+            domainContextExtService.clearCurrentDomain();
+            times = 1;
+        }};
+    }
+
+    /**
+     * The lanes become idle once their last message is acknowledged or rejected.
+     */
+    private void awaitIdleLanesEvicted() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        dispatcher.evictIdleLanes(0);
+        while (dispatcher.getLaneCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            dispatcher.evictIdleLanes(0);
+        }
+        Assert.assertEquals(0, dispatcher.getLaneCount());
+    }
+
+    private Message message(String messageId, String conversationId, String refToMessageId, long deliveryTag) {
+        final MessageProperties properties = new MessageProperties();
+        properties.setHeader(MESSAGE_ID, messageId);
+        if (conversationId != null) {
+            properties.setHeader(CONVERSATION_ID, conversationId);
+        }
+        if (refToMessageId != null) {
+            properties.setHeader(REF_TO_MESSAGE_ID, refToMessageId);
+        }
+        properties.setDeliveryTag(deliveryTag);
+        return new Message(new byte[0], properties);
+    }
+}
@@ -0,0 +1,30 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author Generix Group
+ */
+public class RabbitmqListenerContainerFactoryBeanTest {
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void unknownModeIsRejected() {
+        new RabbitmqListenerContainerFactoryBean().setMode("blocking");
+    }
+
+    @Test
+    public void virtualThreadsAreUsedWhenSupported() throws Exception {
+        final ThreadFactory threadFactory = RabbitmqListenerContainerFactoryBean.createVirtualThreadFactory();
+        if (threadFactory != null) {
+            final Thread thread = threadFactory.newThread(() -> {
+            });
+            Assert.assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+            Assert.assertTrue(thread.getName().startsWith("rabbitmq-consumer-"));
+        }
+        // falls back to the simple mode instead of failing
+        new RabbitmqListenerContainerFactoryBean().setMode(RabbitmqListenerContainerFactoryBean.MODE_VIRTUAL);
+    }
+}
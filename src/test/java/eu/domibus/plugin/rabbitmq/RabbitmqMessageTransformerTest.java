@@ -1,11 +1,16 @@
 package eu.domibus.plugin.rabbitmq;
 
+import eu.domibus.ext.domain.DomainDTO;
 import eu.domibus.ext.services.DomainContextExtService;
 import eu.domibus.ext.services.DomibusPropertyExtService;
 import eu.domibus.ext.services.FileUtilExtService;
 import eu.domibus.plugin.Submission;
 import eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants;
 import eu.domibus.plugin.rabbitmq.RabbitmqMessageTransformer;
+import eu.domibus.plugin.rabbitmq.compression.RabbitmqBodyCompressor;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import eu.domibus.plugin.rabbitmq.property.RabbitmqPluginPropertyManager;
+import eu.domibus.plugin.rabbitmq.property.RabbitmqPluginPropertySnapshot;
 import mockit.Injectable;
 import mockit.NonStrictExpectations;
 import mockit.Tested;
@@ -27,7 +32,10 @@ import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * @author Generix Group
@@ -67,6 +75,24 @@ public class RabbitmqMessageTransformerTest {
     @Injectable
     protected FileUtilExtService fileUtilExtService;
 
+    @Injectable
+    protected RabbitmqPluginPropertyManager rabbitmqPluginPropertyManager;
+
+    @Injectable
+    protected RabbitmqChunkedPayloadSender chunkedPayloadSender;
+
+    @Injectable
+    protected RabbitmqChunkReassembler chunkReassembler;
+
+    @Injectable
+    protected RabbitmqPayloadStore payloadStore;
+
+    @Injectable
+    protected RabbitmqBodyCompressor bodyCompressor;
+
+    @Injectable
+    protected RabbitmqMetrics metrics;
+
     @Tested
     RabbitmqMessageTransformer testObj = new RabbitmqMessageTransformer();
 
@@ -141,6 +167,8 @@ public class RabbitmqMessageTransformerTest {
      */
     @Test
     public void transformToSubmission_HappyFlow() throws Exception {
+        expectPropertySnapshot(Collections.<String, String>emptyMap());
+
         Message message = MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build();
         message.getMessageProperties().setHeader(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, "submitMessage");
         message.getMessageProperties().setHeader(RabbitmqMessageConstants.SERVICE, SERVICE_NOPROCESS);
@@ -211,6 +239,8 @@ public class RabbitmqMessageTransformerTest {
      */
     @Test
     public void transformToSubmission_TrimWhiteSpaces() throws Exception {
+        expectPropertySnapshot(Collections.<String, String>emptyMap());
+
         Message message = MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build();
         message.getMessageProperties().setHeader(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY, "submitMessage");
         message.getMessageProperties().setHeader(RabbitmqMessageConstants.SERVICE, "\t" + SERVICE_NOPROCESS + "   ");
@@ -261,37 +291,18 @@ public class RabbitmqMessageTransformerTest {
     @Test
     public void transformToSubmission_FallbackToDefaults() throws Exception {
 
-        new NonStrictExpectations(testObj) {{
-            testObj.getProperty(RabbitmqMessageConstants.SERVICE);
-            result = SERVICE_NOPROCESS;
-
-            testObj.getProperty(RabbitmqMessageConstants.SERVICE_TYPE);
-            result = SERVICE_TYPE_TC1;
-
-            testObj.getProperty(RabbitmqMessageConstants.ACTION);
-            result = ACTION_TC1LEG1;
-
-            testObj.getProperty(RabbitmqMessageConstants.FROM_ROLE);
-            result = INITIATOR_ROLE;
-
-            testObj.getProperty(RabbitmqMessageConstants.TO_ROLE);
-            result = RESPONDER_ROLE;
-
-            testObj.getProperty(RabbitmqMessageConstants.FROM_PARTY_ID);
-            result = DOMIBUS_BLUE;
-
-            testObj.getProperty(RabbitmqMessageConstants.FROM_PARTY_TYPE);
-            result = UNREGISTERED_PARTY_TYPE;
-
-            testObj.getProperty(RabbitmqMessageConstants.TO_PARTY_ID);
-            result = DOMIBUS_RED;
-
-            testObj.getProperty(RabbitmqMessageConstants.TO_PARTY_TYPE);
-            result = UNREGISTERED_PARTY_TYPE;
-
-            testObj.getProperty(RabbitmqMessageConstants.AGREEMENT_REF);
-            result = CUSTOM_AGREEMENT_REF;
-        }};
+        final Map<String, String> defaults = new HashMap<>();
+        defaults.put(RabbitmqMessageConstants.SERVICE, SERVICE_NOPROCESS);
+        defaults.put(RabbitmqMessageConstants.SERVICE_TYPE, SERVICE_TYPE_TC1);
+        defaults.put(RabbitmqMessageConstants.ACTION, ACTION_TC1LEG1);
+        defaults.put(RabbitmqMessageConstants.FROM_ROLE, INITIATOR_ROLE);
+        defaults.put(RabbitmqMessageConstants.TO_ROLE, RESPONDER_ROLE);
+        defaults.put(RabbitmqMessageConstants.FROM_PARTY_ID, DOMIBUS_BLUE);
+        defaults.put(RabbitmqMessageConstants.FROM_PARTY_TYPE, UNREGISTERED_PARTY_TYPE);
+        defaults.put(RabbitmqMessageConstants.TO_PARTY_ID, DOMIBUS_RED);
+        defaults.put(RabbitmqMessageConstants.TO_PARTY_TYPE, UNREGISTERED_PARTY_TYPE);
+        defaults.put(RabbitmqMessageConstants.AGREEMENT_REF, CUSTOM_AGREEMENT_REF);
+        expectPropertySnapshot(defaults);
 
 
         Message message = MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build();
@@ -333,4 +344,38 @@ public class RabbitmqMessageTransformerTest {
         Assert.assertEquals(CUSTOM_AGREEMENT_REF, objSubmission.getAgreementRef());
     }
 
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void transformFromSubmission_SeveralEmbeddedPayloadsNeedTheFramedBody() throws Exception {
+        expectPropertySnapshot(Collections.<String, String>emptyMap());
+
+        testObj.transformFromSubmission(submissionWithTwoAttachments(), MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build());
+    }
+
+    @Test
+    public void transformFromSubmission_SeveralEmbeddedPayloadsInAFramedBody() throws Exception {
+        expectPropertySnapshot(Collections.singletonMap(FRAMED_BODY, "true"));
+
+        Message message = testObj.transformFromSubmission(submissionWithTwoAttachments(), MessageBuilder.withBody(StringUtils.EMPTY.getBytes()).build());
+
+        Assert.assertEquals(BODY_FORMAT_FRAMED, message.getMessageProperties().getHeader(BODY_FORMAT));
+        Assert.assertEquals(2, RabbitmqFramedBody.decode(message.getBody()).size());
+        Assert.assertEquals(1, message.getMessageProperties().<Object>getHeader(RabbitmqHeaderCodec.payloadFrame(2)));
+    }
+
+    private Submission submissionWithTwoAttachments() {
+        Submission submission = new Submission();
+        Collection<Submission.TypedProperty> properties = new ArrayList<>();
+        properties.add(new Submission.TypedProperty(MIME_TYPE, DEFAULT_MT));
+        submission.addPayload(new Submission.Payload("cid:first", new DataHandler(new ByteArrayDataSource("<first/>".getBytes(), DEFAULT_MT)), properties, false, null, null));
+        submission.addPayload(new Submission.Payload("cid:second", new DataHandler(new ByteArrayDataSource("<second/>".getBytes(), DEFAULT_MT)), properties, false, null, null));
+        return submission;
+    }
+
+    private void expectPropertySnapshot(final Map<String, String> values) {
+        new NonStrictExpectations() {{
+            rabbitmqPluginPropertyManager.getSnapshot((DomainDTO) any);
+            result = new RabbitmqPluginPropertySnapshot("default", values);
+        }};
+    }
+
 }
\ No newline at end of file
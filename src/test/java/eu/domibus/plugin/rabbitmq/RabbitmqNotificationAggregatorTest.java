@@ -0,0 +1,188 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.common.ErrorCode;
+import eu.domibus.common.ErrorResultImpl;
+import eu.domibus.common.NotificationType;
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.ext.services.DomainExtService;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_REPLY;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqNotificationAggregatorTest {
+
+    private static final DomainDTO DOMAIN = new DomainDTO("default", "default");
+    private static final Address REPLY = new Address("", "domibus.backend.rabbitmq.reply");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Injectable
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Injectable
+    protected RabbitmqDestinationRegistry destinationRegistry;
+
+    @Injectable
+    protected DomainContextExtService domainContextExtService;
+
+    @Injectable
+    protected DomainExtService domainExtService;
+
+    @Injectable
+    protected RabbitmqMetrics metrics;
+
+    @Tested
+    RabbitmqNotificationAggregator notificationAggregator;
+
+    @Test
+    public void eventsAreFlushedAsOneBatchOnceMaxEventsAreBuffered() throws Exception {
+        expectDomain();
+        start(3);
+
+        notificationAggregator.add(new SignalMessageCreator("1", NotificationType.MESSAGE_SEND_SUCCESS).createMessage(), RABBITMQ_PLUGIN_QUEUE_REPLY);
+        notificationAggregator.add(new SignalMessageCreator("2", NotificationType.MESSAGE_SEND_SUCCESS).createMessage(), RABBITMQ_PLUGIN_QUEUE_REPLY);
+        Assert.assertEquals(2, notificationAggregator.getBufferedEvents());
+        notificationAggregator.add(new SignalMessageCreator("3", NotificationType.MESSAGE_SEND_SUCCESS).createMessage(), RABBITMQ_PLUGIN_QUEUE_REPLY);
+
+        Assert.assertEquals(0, notificationAggregator.getBufferedEvents());
+        Assert.assertEquals(1, notificationAggregator.getFlushes());
+        new Verifications() {{
+            Message batch;
+            rabbitmqPublisher.publishAndWait(REPLY, batch = withCapture());
+            times = 1;
+            Assert.assertEquals(RabbitmqMessageConstants.MESSAGE_TYPE_NOTIFICATION_BATCH,
+                    batch.getMessageProperties().getHeader(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY));
+            Assert.assertEquals(3, (int) batch.getMessageProperties().getHeader(RabbitmqMessageConstants.NOTIFICATION_COUNT));
+            Assert.assertEquals("[{\"messageId\":\"1\",\"messageType\":\"messageSent\"},{\"messageId\":\"2\",\"messageType\":\"messageSent\"},"
+                    + "{\"messageId\":\"3\",\"messageType\":\"messageSent\"}]", new String(batch.getBody(), StandardCharsets.UTF_8));
+        }};
+        notificationAggregator.shutdown();
+    }
+
+    @Test
+    public void batchesThatCannotBePublishedAreSpooledThenPublishedAgain() throws Exception {
+        expectDomain();
+        final AtomicInteger attempts = new AtomicInteger();
+        new Expectations() {{
+            rabbitmqPublisher.publishAndWait(REPLY, (Message) any);
+            result = new Delegate<Void>() {
+                void publishAndWait(Address address, Message message) {
+                    if (attempts.incrementAndGet() == 1) {
+                        throw new AmqpException("Broker unavailable");
+                    }
+                }
+            };
+        }};
+        start(100);
+
+        notificationAggregator.add(new SignalMessageCreator("1", NotificationType.MESSAGE_SEND_SUCCESS).createMessage(), RABBITMQ_PLUGIN_QUEUE_REPLY);
+        notificationAggregator.shutdown();
+
+        Assert.assertEquals(1, notificationAggregator.getSpooledBatches());
+        Assert.assertEquals(1, spooledFiles().length);
+
+        notificationAggregator.republishSpooled();
+
+        Assert.assertEquals(0, spooledFiles().length);
+        Assert.assertEquals(1, notificationAggregator.getFlushes());
+    }
+
+    @Test
+    public void unreadableSpooledBatchesAreQuarantined() throws Exception {
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+        }};
+        start(100);
+        Files.write(folder.getRoot().toPath().resolve("truncated" + RabbitmqNotificationAggregator.SPOOL_FILE_SUFFIX),
+                "domain=default\nqueue=reply\ncount=1".getBytes(StandardCharsets.UTF_8));
+        Files.write(folder.getRoot().toPath().resolve("corrupt" + RabbitmqNotificationAggregator.SPOOL_FILE_SUFFIX),
+                "domain=default\nqueue=reply\ncount=x\nbody=[]".getBytes(StandardCharsets.UTF_8));
+
+        notificationAggregator.republishSpooled();
+
+        Assert.assertEquals(2, notificationAggregator.getQuarantinedBatches());
+        Assert.assertEquals(2, folder.getRoot().toPath().resolve(RabbitmqNotificationAggregator.QUARANTINE_DIRECTORY).toFile().list().length);
+        new Verifications() {{
+            rabbitmqPublisher.publishAndWait((Address) any, (Message) any);
+            times = 0;
+        }};
+        notificationAggregator.shutdown();
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void aSpoolDirectoryIsRequired() throws Exception {
+        notificationAggregator.setEnabled(true);
+        notificationAggregator.init();
+    }
+
+    @Test
+    public void errorDetailsAreEscaped() {
+        final ErrorResultImpl errorResult = new ErrorResultImpl();
+        errorResult.setErrorCode(ErrorCode.EBMS_0004);
+        errorResult.setErrorDetail("Invalid \"payload\"\n\tat line 1");
+        errorResult.setMessageInErrorId("42");
+        final List<Message> events = Arrays.asList(
+                new ErrorMessageCreator(errorResult, null, NotificationType.MESSAGE_SEND_FAILURE).createMessage());
+
+        final String json = RabbitmqNotificationAggregator.toJson(events);
+
+        Assert.assertTrue(json, json.startsWith("[{\"messageId\":\"42\","));
+        Assert.assertTrue(json, json.contains("\"errorDetail\":\"Invalid \\\"payload\\\"\\n\\tat line 1\""));
+        Assert.assertEquals("[]", RabbitmqNotificationAggregator.toJson(Collections.emptyList()));
+    }
+
+    private File[] spooledFiles() {
+        return folder.getRoot().listFiles((dir, name) -> name.endsWith(RabbitmqNotificationAggregator.SPOOL_FILE_SUFFIX));
+    }
+
+    private void expectDomain() {
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+            domainContextExtService.getCurrentDomain();
+            result = DOMAIN;
+            domainExtService.getDomain("default");
+            result = DOMAIN;
+            destinationRegistry.getAddresses(DOMAIN);
+            result = Collections.singletonMap(RABBITMQ_PLUGIN_QUEUE_REPLY, REPLY);
+        }};
+    }
+
+    private void start(int maxEvents) throws Exception {
+        notificationAggregator.setEnabled(true);
+        notificationAggregator.setMaxEvents(maxEvents);
+        notificationAggregator.setFlushInterval(60000);
+        notificationAggregator.setSpoolDirectory(folder.getRoot().getAbsolutePath());
+        notificationAggregator.init();
+    }
+}
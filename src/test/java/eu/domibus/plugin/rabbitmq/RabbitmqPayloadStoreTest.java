@@ -0,0 +1,102 @@
+package eu.domibus.plugin.rabbitmq;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * @author Generix Group
+ */
+public class RabbitmqPayloadStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void payloadIsStoredAndReadBackFromItsUrl() throws Exception {
+        RabbitmqPayloadStore store = createStore();
+
+        URL url = store.store(new DataHandler(new ByteArrayDataSource("hello".getBytes(StandardCharsets.UTF_8), "text/plain")));
+
+        Assert.assertEquals("hello", IOUtils.toString(url, StandardCharsets.UTF_8));
+        Assert.assertTrue(store.isStored(url));
+    }
+
+    @Test
+    public void fileIsTransferredFromFileChannel() throws Exception {
+        RabbitmqPayloadStore store = createStore();
+        File source = folder.newFile("source.xml");
+        Files.write(source.toPath(), "<hello/>".getBytes(StandardCharsets.UTF_8));
+
+        URL url = store.store(new DataHandler(new FileDataSource(source)));
+
+        Assert.assertEquals("<hello/>", IOUtils.toString(url, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void storedPayloadIsDeletedOnRelease() throws Exception {
+        RabbitmqPayloadStore store = createStore();
+        URL url = store.store(new DataHandler(new ByteArrayDataSource("hello".getBytes(StandardCharsets.UTF_8), "text/plain")));
+
+        MessageProperties properties = new MessageProperties();
+        properties.setHeader("payload_2", url.toString());
+        store.release(new Message(new byte[0], properties));
+
+        Assert.assertFalse(Files.exists(Paths.get(url.toURI())));
+        Assert.assertFalse(store.isStored(url));
+    }
+
+    @Test
+    public void filesWrittenByTheBackendAreNotReleased() throws Exception {
+        RabbitmqPayloadStore store = createStore();
+        File written = new File(folder.getRoot(), "store/backend.payload");
+        Files.write(written.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+
+        MessageProperties properties = new MessageProperties();
+        properties.setHeader("payload_1", written.toURI().toURL().toString());
+        store.release(new Message(new byte[0], properties));
+
+        Assert.assertTrue(written.exists());
+    }
+
+    @Test
+    public void filesOutsideOfTheStoreAreNotReleased() throws Exception {
+        RabbitmqPayloadStore store = createStore();
+        File outside = folder.newFile("outside.xml");
+
+        store.release(outside.toURI().toURL());
+
+        Assert.assertTrue(outside.exists());
+    }
+
+    @Test
+    public void disabledStoreDoesNotCreateItsDirectory() throws Exception {
+        RabbitmqPayloadStore store = new RabbitmqPayloadStore();
+        File directory = new File(folder.getRoot(), "disabled");
+        store.setDirectory(directory.getAbsolutePath());
+
+        store.init();
+        store.shutdown();
+
+        Assert.assertFalse(directory.exists());
+    }
+
+    private RabbitmqPayloadStore createStore() throws Exception {
+        RabbitmqPayloadStore store = new RabbitmqPayloadStore();
+        store.setDirectory(folder.newFolder("store").getAbsolutePath());
+        return store;
+    }
+}
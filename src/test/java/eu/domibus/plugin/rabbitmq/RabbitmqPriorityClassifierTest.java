@@ -0,0 +1,88 @@
+package eu.domibus.plugin.rabbitmq;
+
+import mockit.Tested;
+import mockit.integration.junit4.JMockit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import static eu.domibus.plugin.rabbitmq.BackendRabbitmqImpl.RABBITMQ_PLUGIN_QUEUE_OUT;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.ACTION;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.MPC;
+import static eu.domibus.plugin.rabbitmq.RabbitmqMessageConstants.SERVICE;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqPriorityClassifierTest {
+
+    @Tested
+    RabbitmqPriorityClassifier priorityClassifier;
+
+    @Test
+    public void messagesAreClassifiedByTheFirstMatchingRule() {
+        configure(RabbitmqPriorityClassifier.MODE_PRIORITY);
+
+        Assert.assertEquals("urgent", priorityClassifier.classify(properties("urn:court", "Urgent", null)));
+        Assert.assertEquals("normal", priorityClassifier.classify(properties("urn:court", "Submit", null)));
+        Assert.assertEquals("bulk", priorityClassifier.classify(properties("urn:court", "Urgent", "urn:bulk")));
+        Assert.assertEquals("normal", priorityClassifier.classify(new MessageProperties()));
+    }
+
+    @Test
+    public void priorityModeSetsTheLanePriorityOnQueueOut() {
+        configure(RabbitmqPriorityClassifier.MODE_PRIORITY);
+        final Message message = new Message(new byte[0], properties("urn:court", "Urgent", null));
+
+        Assert.assertEquals(RABBITMQ_PLUGIN_QUEUE_OUT, priorityClassifier.route(message, "urgent"));
+        Assert.assertTrue(priorityClassifier.getQueueLanes().isEmpty());
+        Assert.assertEquals(Integer.valueOf(9), message.getMessageProperties().getPriority());
+        Assert.assertEquals(9, priorityClassifier.getQueueArguments().get("x-max-priority"));
+    }
+
+    @Test
+    public void lanesModeRoutesToTheQueueOfTheLane() {
+        configure(RabbitmqPriorityClassifier.MODE_LANES);
+        final Message message = new Message(new byte[0], new MessageProperties());
+
+        Assert.assertEquals(RABBITMQ_PLUGIN_QUEUE_OUT + ".bulk", priorityClassifier.route(message, "bulk"));
+        Assert.assertNull(message.getMessageProperties().getPriority());
+        Assert.assertEquals(Arrays.asList("urgent", "normal", "bulk"), new ArrayList<>(priorityClassifier.getQueueLanes()));
+        Assert.assertTrue(priorityClassifier.getQueueArguments().isEmpty());
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void rulesOnUnknownLanesAreRejected() {
+        priorityClassifier.setLanes("urgent:9,normal:5");
+        priorityClassifier.setRules("express:action=Urgent");
+        priorityClassifier.init();
+    }
+
+    @Test(expected = DefaultRabbitmqPluginException.class)
+    public void rulesOnUnsupportedHeadersAreRejected() {
+        priorityClassifier.setRules("urgent:conversationId=42");
+    }
+
+    private void configure(String mode) {
+        priorityClassifier.setMode(mode);
+        priorityClassifier.setLanes("urgent:9,normal:5,bulk:1");
+        priorityClassifier.setRules("bulk:mpc=urn:bulk; urgent:service=urn:court,action=Urgent");
+        priorityClassifier.init();
+    }
+
+    private MessageProperties properties(String service, String action, String mpc) {
+        final MessageProperties properties = new MessageProperties();
+        properties.setHeader(SERVICE, service);
+        properties.setHeader(ACTION, action);
+        if (mpc != null) {
+            properties.setHeader(MPC, mpc);
+        }
+        return properties;
+    }
+}
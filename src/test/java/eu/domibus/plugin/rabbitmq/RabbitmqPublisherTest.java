@@ -0,0 +1,225 @@
+package eu.domibus.plugin.rabbitmq;
+
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.integration.junit4.JMockit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.ReturnedMessage;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqPublisherTest {
+
+    private static final Address REPLY = new Address("", "domibus.backend.rabbitmq.reply");
+
+    @Injectable
+    protected RabbitTemplate rabbitTemplate;
+
+    @Tested
+    RabbitmqPublisher rabbitmqPublisher;
+
+    private final List<RabbitmqPublisher.PendingPublish> sent = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        rabbitmqPublisher.shutdown();
+    }
+
+    @Test
+    public void aMessageIsCompletedOnceConfirmed() {
+        start(10, 3);
+        recordSends();
+
+        final CompletableFuture<Void> confirmation = rabbitmqPublisher.publish(REPLY, message());
+
+        Assert.assertFalse(confirmation.isDone());
+        Assert.assertEquals(1, rabbitmqPublisher.getInFlight());
+        rabbitmqPublisher.confirm(sent.get(0), true, null);
+        Assert.assertTrue(confirmation.isDone());
+        Assert.assertFalse(confirmation.isCompletedExceptionally());
+        Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+        Assert.assertEquals(1, rabbitmqPublisher.getAcked());
+    }
+
+    @Test
+    public void aNackedMessageIsPublishedAgain() throws Exception {
+        start(10, 3);
+        recordSends();
+
+        final CompletableFuture<Void> confirmation = rabbitmqPublisher.publish(REPLY, message());
+        rabbitmqPublisher.confirm(sent.get(0), false, "nack");
+        awaitSent(2);
+        rabbitmqPublisher.confirm(sent.get(1), true, null);
+
+        Assert.assertEquals(2, sent.get(1).attempt);
+        Assert.assertEquals(sent.get(0).getId(), sent.get(1).getId());
+        Assert.assertFalse(confirmation.isCompletedExceptionally());
+        Assert.assertEquals(1, rabbitmqPublisher.getRetried());
+        Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+    }
+
+    @Test
+    public void aMessageNackedMaxAttemptsTimesFailsAndReleasesItsPermit() throws Exception {
+        start(10, 2);
+        recordSends();
+
+        final CompletableFuture<Void> confirmation = rabbitmqPublisher.publish(REPLY, message());
+        rabbitmqPublisher.confirm(sent.get(0), false, "nack");
+        awaitSent(2);
+        rabbitmqPublisher.confirm(sent.get(1), false, "nack");
+
+        Assert.assertTrue(confirmation.isCompletedExceptionally());
+        Assert.assertEquals(1, rabbitmqPublisher.getFailed());
+        Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+    }
+
+    @Test
+    public void aReturnedMessageFails() {
+        start(10, 3);
+        recordSends();
+
+        final CompletableFuture<Void> confirmation = rabbitmqPublisher.publish(REPLY, message());
+        sent.get(0).setReturned(new ReturnedMessage(message(), 312, "NO_ROUTE", "", REPLY.getRoutingKey()));
+        rabbitmqPublisher.confirm(sent.get(0), true, null);
+
+        Assert.assertTrue(confirmation.isCompletedExceptionally());
+        Assert.assertEquals(1, rabbitmqPublisher.getReturned());
+        Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+    }
+
+    @Test
+    public void aMessageThatCannotBeSentReleasesItsPermit() throws Exception {
+        start(10, 3);
+        new Expectations() {{
+            rabbitTemplate.send(anyString, anyString, (Message) any, (CorrelationData) any);
+            result = new IllegalStateException("Could not convert the message");
+        }};
+
+        final CompletableFuture<Void> confirmation = rabbitmqPublisher.publish(REPLY, message());
+
+        try {
+            confirmation.get();
+            Assert.fail("The publish should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+        Assert.assertEquals(0, rabbitmqPublisher.getRetried());
+    }
+
+    @Test
+    public void publishAndWaitFailsWhenTheMessageIsNotConfirmed() {
+        start(10, 1);
+        new Expectations() {{
+            rabbitTemplate.send(anyString, anyString, (Message) any, (CorrelationData) any);
+            result = new AmqpException("Connection closed");
+        }};
+
+        try {
+            rabbitmqPublisher.publishAndWait(REPLY, message());
+            Assert.fail("The publish should have failed");
+        } catch (DefaultRabbitmqPluginException e) {
+            Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+        }
+    }
+
+    @Test
+    public void thePermitsOfABatchTimingOutPartwayAreReleased() {
+        start(2, 3);
+        recordSends();
+        new Expectations() {{
+            rabbitTemplate.invoke((RabbitOperations.OperationsCallback<Object>) any);
+            result = new Delegate<Object>() {
+                Object invoke(RabbitOperations.OperationsCallback<Object> action) {
+                    return action.doInRabbit(rabbitTemplate);
+                }
+            };
+        }};
+
+        final List<CompletableFuture<Void>> confirmations = rabbitmqPublisher.publishBatch(Arrays.asList(REPLY, REPLY, REPLY),
+                Arrays.asList(message(), message(), message()));
+
+        Assert.assertEquals(2, sent.size());
+        Assert.assertFalse(confirmations.get(0).isDone());
+        Assert.assertTrue(confirmations.get(2).isCompletedExceptionally());
+        Assert.assertEquals(2, rabbitmqPublisher.getInFlight());
+        rabbitmqPublisher.confirm(sent.get(0), true, null);
+        rabbitmqPublisher.confirm(sent.get(1), true, null);
+        Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+    }
+
+    @Test
+    public void thePermitsOfABatchFailingWithAnUnexpectedExceptionAreReleased() {
+        start(10, 3);
+        new Expectations() {{
+            rabbitTemplate.invoke((RabbitOperations.OperationsCallback<Object>) any);
+            result = new Delegate<Object>() {
+                Object invoke(RabbitOperations.OperationsCallback<Object> action) {
+                    return action.doInRabbit(rabbitTemplate);
+                }
+            };
+            rabbitTemplate.send(anyString, anyString, (Message) any, (CorrelationData) any);
+            result = new IllegalStateException("Could not convert the message");
+        }};
+
+        final List<CompletableFuture<Void>> confirmations = rabbitmqPublisher.publishBatch(Arrays.asList(REPLY, REPLY),
+                Arrays.asList(message(), message()));
+
+        Assert.assertTrue(confirmations.stream().allMatch(CompletableFuture::isCompletedExceptionally));
+        Assert.assertEquals(0, rabbitmqPublisher.getInFlight());
+    }
+
+    private void recordSends() {
+        new Expectations() {{
+            rabbitTemplate.send(anyString, anyString, (Message) any, (CorrelationData) any);
+            result = new Delegate<Void>() {
+                void send(String exchange, String routingKey, Message message, CorrelationData correlationData) {
+                    sent.add((RabbitmqPublisher.PendingPublish) correlationData);
+                }
+            };
+        }};
+    }
+
+    private void start(int maxInFlight, int maxAttempts) {
+        new Expectations() {{
+            rabbitTemplate.getConnectionFactory().isPublisherConfirms();
+            result = true;
+        }};
+        rabbitmqPublisher.setMaxInFlight(maxInFlight);
+        rabbitmqPublisher.setMaxAttempts(maxAttempts);
+        rabbitmqPublisher.setRetryDelay(1);
+        rabbitmqPublisher.setInFlightTimeout(100);
+        rabbitmqPublisher.init();
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && sent.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, sent.size());
+    }
+
+    private static Message message() {
+        return new Message(new byte[0], new MessageProperties());
+    }
+}
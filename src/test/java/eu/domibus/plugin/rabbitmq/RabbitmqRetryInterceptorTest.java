@@ -0,0 +1,248 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqRetryInterceptorTest {
+
+    private static final String QUEUE_IN = "domibus.backend.rabbitmq.in";
+
+    @Injectable
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Injectable
+    protected RabbitmqMetrics metrics;
+
+    @Injectable
+    protected MethodInvocation invocation;
+
+    @Tested
+    RabbitmqRetryInterceptor retryInterceptor;
+
+    @Test
+    public void retryQueuesDeadLetterToTheIncomingQueue() {
+        start();
+
+        Assert.assertEquals(Arrays.asList(QUEUE_IN + ".retry.1000", QUEUE_IN + ".retry.10000"), retryInterceptor.getRetryQueueNames(QUEUE_IN));
+        final List<Queue> queues = retryInterceptor.getDeclarables().getDeclarablesByType(Queue.class);
+        Assert.assertEquals(3, queues.size());
+        Assert.assertEquals(QUEUE_IN + ".parking", queues.get(0).getName());
+        Assert.assertEquals(QUEUE_IN + ".retry.1000", queues.get(1).getName());
+        Assert.assertEquals(1000L, queues.get(1).getArguments().get("x-message-ttl"));
+        Assert.assertEquals("", queues.get(1).getArguments().get("x-dead-letter-exchange"));
+        Assert.assertEquals(QUEUE_IN, queues.get(1).getArguments().get("x-dead-letter-routing-key"));
+        Assert.assertEquals(10000L, queues.get(2).getArguments().get("x-message-ttl"));
+    }
+
+    @Test
+    public void theShardsAndDomainQueuesHaveTheirOwnRetryQueues() {
+        retryInterceptor.setShardCount(2);
+        retryInterceptor.setDomains("red, blue");
+        start();
+
+        final List<String> names = new ArrayList<>();
+        for (Declarable declarable : retryInterceptor.getDeclarables().getDeclarables()) {
+            names.add(((Queue) declarable).getName());
+        }
+        Assert.assertEquals(Arrays.asList(QUEUE_IN + ".parking",
+                QUEUE_IN + ".retry.1000", QUEUE_IN + ".retry.10000",
+                QUEUE_IN + ".shard.0.retry.1000", QUEUE_IN + ".shard.0.retry.10000",
+                QUEUE_IN + ".shard.1.retry.1000", QUEUE_IN + ".shard.1.retry.10000",
+                QUEUE_IN + ".red.retry.1000", QUEUE_IN + ".red.retry.10000",
+                QUEUE_IN + ".blue.retry.1000", QUEUE_IN + ".blue.retry.10000"), names);
+    }
+
+    @Test
+    public void nothingIsDeclaredWhenTheRetriesAreDisabled() {
+        retryInterceptor.init();
+
+        Assert.assertTrue(retryInterceptor.getDeclarables().getDeclarables().isEmpty());
+    }
+
+    @Test
+    public void aFailedMessageIsRetriedInTheQueueOfItsAttempt() throws Throwable {
+        start();
+        final Message message = failingMessage(QUEUE_IN, 1);
+
+        Assert.assertNull(retryInterceptor.invoke(invocation));
+
+        Assert.assertEquals(1, retryInterceptor.getRetries(QUEUE_IN + ".retry.10000"));
+        Assert.assertEquals(2, message.getMessageProperties().<Integer>getHeader(RabbitmqRetryInterceptor.RETRY_ATTEMPT_HEADER).intValue());
+        new Verifications() {{
+            rabbitmqPublisher.publishAndWait(new Address("", QUEUE_IN + ".retry.10000"), message);
+        }};
+    }
+
+    @Test
+    public void theAttemptHeaderIsPreferredToTheDeaths() throws Throwable {
+        start();
+        final Message message = failingMessage(QUEUE_IN, 2);
+        message.getMessageProperties().setHeader(RabbitmqRetryInterceptor.RETRY_ATTEMPT_HEADER, 1);
+
+        retryInterceptor.invoke(invocation);
+
+        Assert.assertEquals(1, retryInterceptor.getRetries(QUEUE_IN + ".retry.10000"));
+        Assert.assertEquals(2, message.getMessageProperties().<Integer>getHeader(RabbitmqRetryInterceptor.RETRY_ATTEMPT_HEADER).intValue());
+    }
+
+    @Test
+    public void aMessageOfAShardIsRetriedBackToItsShard() throws Throwable {
+        retryInterceptor.setShardCount(2);
+        start();
+        final String shard = QUEUE_IN + ".shard.1";
+        final Message message = failingMessage(shard, 0);
+
+        retryInterceptor.invoke(invocation);
+
+        Assert.assertEquals(1, retryInterceptor.getRetries(shard + ".retry.1000"));
+        new Verifications() {{
+            rabbitmqPublisher.publishAndWait(new Address("", shard + ".retry.1000"), message);
+        }};
+    }
+
+    @Test
+    public void theMessagesOfAnUnknownDerivedQueueAreNotRetried() throws Throwable {
+        start();
+        failingMessage(QUEUE_IN + ".shard.7", 0);
+
+        try {
+            retryInterceptor.invoke(invocation);
+            Assert.fail("The failure should have been rethrown");
+        } catch (IllegalStateException e) {
+            new Verifications() {{
+                rabbitmqPublisher.publishAndWait((Address) any, (Message) any);
+                times = 0;
+            }};
+        }
+    }
+
+    @Test
+    public void theMessagesOfOtherQueuesAreNotRetried() throws Throwable {
+        start();
+        failingMessage("domibus.backend.rabbitmq.other", 0);
+
+        try {
+            retryInterceptor.invoke(invocation);
+            Assert.fail("The failure should have been rethrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(0, retryInterceptor.getParked());
+        }
+    }
+
+    @Test
+    public void aMessageFailingAfterTheLastRetryIsParked() throws Throwable {
+        start();
+        final Message message = failingMessage(QUEUE_IN, 2);
+
+        retryInterceptor.invoke(invocation);
+
+        Assert.assertEquals(1, retryInterceptor.getParked());
+        Assert.assertNotNull(message.getMessageProperties().getHeader(RabbitmqRetryInterceptor.RETRY_ERROR_HEADER));
+        Assert.assertEquals(QUEUE_IN, message.getMessageProperties().getHeader(RabbitmqRetryInterceptor.RETRY_QUEUE_HEADER));
+        new Verifications() {{
+            rabbitmqPublisher.publishAndWait(new Address("", QUEUE_IN + ".parking"), message);
+        }};
+    }
+
+    @Test
+    public void theFailureIsRethrownWhenTheRetryCannotBePublished() throws Throwable {
+        start();
+        failingMessage(QUEUE_IN, 0);
+        new Expectations() {{
+            rabbitmqPublisher.publishAndWait((Address) any, (Message) any);
+            result = new AmqpException("Broker unavailable");
+        }};
+
+        try {
+            retryInterceptor.invoke(invocation);
+            Assert.fail("The failure should have been rethrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(1, e.getSuppressed().length);
+        }
+    }
+
+    @Test
+    public void batchesAreNotRetried() throws Throwable {
+        start();
+        new Expectations() {{
+            invocation.getArguments();
+            result = new Object[]{null, Collections.emptyList()};
+            invocation.proceed();
+            result = new IllegalStateException("Submission failed");
+        }};
+
+        try {
+            retryInterceptor.invoke(invocation);
+            Assert.fail("The failure should have been rethrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Submission failed", e.getMessage());
+        }
+    }
+
+    private Message failingMessage(String consumerQueue, long expirations) throws Throwable {
+        final MessageProperties properties = new MessageProperties();
+        properties.setConsumerQueue(consumerQueue);
+        properties.setMessageId("42");
+        if (expirations > 0) {
+            final List<Map<String, ?>> deaths = new ArrayList<>();
+            deaths.add(death(QUEUE_IN + ".retry.1000", "expired", 1L));
+            deaths.add(death(QUEUE_IN + ".retry.10000", "expired", expirations - 1));
+            deaths.add(death(QUEUE_IN, "rejected", 5L));
+            properties.getHeaders().put("x-death", deaths);
+        }
+        final Message message = new Message(new byte[0], properties);
+        new Expectations() {{
+            invocation.getArguments();
+            result = new Object[]{null, message};
+            invocation.proceed();
+            result = new IllegalStateException("Submission failed");
+        }};
+        return message;
+    }
+
+    private static Map<String, Object> death(String queue, String reason, long count) {
+        final Map<String, Object> death = new HashMap<>();
+        death.put("queue", queue);
+        death.put("reason", reason);
+        death.put("count", count);
+        return death;
+    }
+
+    private void start() {
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+        }};
+        retryInterceptor.setEnabled(true);
+        retryInterceptor.setQueueName(QUEUE_IN);
+        retryInterceptor.setDelays("1000, 10000");
+        retryInterceptor.setParkingQueue(QUEUE_IN + ".parking");
+        retryInterceptor.init();
+    }
+}
@@ -0,0 +1,129 @@
+package eu.domibus.plugin.rabbitmq;
+
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Tested;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Exchange;
+import org.springframework.amqp.core.ExchangeTypes;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareBatchMessageListener;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqShardedInboundTopologyTest {
+
+    private static final String EXCHANGE = "domibus.backend.rabbitmq.in.sharded";
+
+    @Tested
+    RabbitmqShardedInboundTopology shardedInboundTopology;
+
+    @Test
+    public void shardQueuesAreBoundToTheConsistentHashExchanges(@Injectable ConnectionFactory connectionFactory,
+                                                                @Injectable MessageListener messageListener) {
+        start(connectionFactory, messageListener);
+
+        Assert.assertEquals(Arrays.asList("domibus.backend.rabbitmq.in.shard.0", "domibus.backend.rabbitmq.in.shard.1"),
+                shardedInboundTopology.getShardQueueNames());
+        Assert.assertEquals(2, shardedInboundTopology.getContainers().size());
+        Assert.assertArrayEquals(new String[]{"domibus.backend.rabbitmq.in.shard.1"},
+                shardedInboundTopology.getContainers().get(1).getQueueNames());
+        Assert.assertEquals(AcknowledgeMode.AUTO, shardedInboundTopology.getContainers().get(1).getAcknowledgeMode());
+        Assert.assertTrue(shardedInboundTopology.isAutoStartup());
+
+        final Map<String, Exchange> exchanges = shardedInboundTopology.getDeclarables().getDeclarablesByType(Exchange.class).stream()
+                .collect(Collectors.toMap(Exchange::getName, Function.identity()));
+        Assert.assertEquals(ExchangeTypes.HEADERS, exchanges.get(EXCHANGE).getType());
+        Assert.assertEquals(EXCHANGE + ".messageId", exchanges.get(EXCHANGE).getArguments().get("alternate-exchange"));
+        Assert.assertEquals("x-consistent-hash", exchanges.get(EXCHANGE + ".header").getType());
+        Assert.assertEquals(RabbitmqMessageConstants.TO_PARTY_ID, exchanges.get(EXCHANGE + ".header").getArguments().get("hash-header"));
+        Assert.assertEquals("message_id", exchanges.get(EXCHANGE + ".messageId").getArguments().get("hash-property"));
+
+        Assert.assertEquals(2, shardedInboundTopology.getDeclarables().getDeclarablesByType(Queue.class).size());
+        final List<Binding> bindings = shardedInboundTopology.getDeclarables().getDeclarablesByType(Binding.class);
+        Assert.assertEquals(5, bindings.size());
+        Assert.assertEquals(EXCHANGE, bindings.get(0).getExchange());
+        Assert.assertEquals(EXCHANGE + ".header", bindings.get(0).getDestination());
+        Assert.assertTrue(bindings.get(0).getArguments().containsKey(RabbitmqMessageConstants.TO_PARTY_ID));
+        Assert.assertEquals("1", bindings.get(1).getRoutingKey());
+        shardedInboundTopology.destroy();
+    }
+
+    @Test
+    public void theShardsAreConsumedThroughTheKeyedDispatcher(@Injectable ConnectionFactory connectionFactory,
+                                                              @Injectable MessageListener messageListener,
+                                                              @Injectable RabbitmqKeyedDispatcher keyedDispatcher) {
+        shardedInboundTopology.setKeyedDispatcher(keyedDispatcher);
+        start(connectionFactory, messageListener);
+
+        for (SimpleMessageListenerContainer container : shardedInboundTopology.getContainers()) {
+            Assert.assertEquals(AcknowledgeMode.MANUAL, container.getAcknowledgeMode());
+        }
+        shardedInboundTopology.destroy();
+    }
+
+    @Test
+    public void theShardsAreConsumedInBatches(@Injectable ConnectionFactory connectionFactory,
+                                              @Injectable MessageListener messageListener,
+                                              @Injectable ChannelAwareBatchMessageListener batchListener) {
+        shardedInboundTopology.setBatchListener(batchListener);
+        start(connectionFactory, messageListener);
+
+        for (SimpleMessageListenerContainer container : shardedInboundTopology.getContainers()) {
+            Assert.assertEquals(AcknowledgeMode.MANUAL, container.getAcknowledgeMode());
+            Assert.assertSame(batchListener, container.getMessageListener());
+        }
+        shardedInboundTopology.destroy();
+    }
+
+    @Test
+    public void theContainersAreDestroyed(@Injectable ConnectionFactory connectionFactory,
+                                        @Injectable MessageListener messageListener,
+                                        @Mocked SimpleMessageListenerContainer container) {
+        start(connectionFactory, messageListener);
+
+        shardedInboundTopology.destroy();
+
+        new Verifications() {{
+            container.destroy();
+            times = 2;
+        }};
+    }
+
+    @Test
+    public void nothingIsDeclaredWhenDisabled() {
+        shardedInboundTopology.init();
+
+        Assert.assertTrue(shardedInboundTopology.getContainers().isEmpty());
+        Assert.assertFalse(shardedInboundTopology.isAutoStartup());
+        Assert.assertTrue(shardedInboundTopology.getDeclarables().getDeclarables().isEmpty());
+    }
+
+    private void start(ConnectionFactory connectionFactory, MessageListener messageListener) {
+        shardedInboundTopology.setEnabled(true);
+        shardedInboundTopology.setConnectionFactory(connectionFactory);
+        shardedInboundTopology.setMessageListener(messageListener);
+        shardedInboundTopology.setQueueName("domibus.backend.rabbitmq.in");
+        shardedInboundTopology.setExchangeName(EXCHANGE);
+        shardedInboundTopology.setShardCount(2);
+        shardedInboundTopology.setHashHeader(RabbitmqMessageConstants.TO_PARTY_ID);
+        shardedInboundTopology.init();
+    }
+}
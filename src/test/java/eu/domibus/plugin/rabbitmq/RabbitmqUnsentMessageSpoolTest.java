@@ -0,0 +1,142 @@
+package eu.domibus.plugin.rabbitmq;
+
+import eu.domibus.common.NotificationType;
+import eu.domibus.plugin.rabbitmq.metrics.RabbitmqMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Verifications;
+import mockit.integration.junit4.JMockit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqUnsentMessageSpoolTest {
+
+    private static final Address REPLY = new Address("", "domibus.backend.rabbitmq.reply");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Injectable
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Injectable
+    protected RabbitmqMetrics metrics;
+
+    private RabbitmqUnsentMessageSpool spool;
+
+    @After
+    public void shutdown() {
+        if (spool != null) {
+            spool.shutdown();
+        }
+    }
+
+    @Test
+    public void unsentMessagesArePublishedAgainOnceTheBrokerAcceptsThem() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        expectPublishFailing(attempts, 1);
+        start(null);
+
+        spool.spool(REPLY, new ReplyMessageCreator("1", null, "correlation1").createMessage());
+        spool.spool(REPLY, new ReplyMessageCreator("2", null, "correlation2").createMessage());
+        spool.republishAll();
+
+        Assert.assertEquals(2, spool.getUnsentMessages());
+        spool.republishAll();
+
+        Assert.assertEquals(0, spool.getUnsentMessages());
+        Assert.assertEquals(2, spool.getRepublished());
+        Assert.assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void unsentMessagesBeyondMaxMessagesAreLost() throws Exception {
+        start(null);
+        spool.setMaxMessages(1);
+
+        spool.spool(REPLY, new ReplyMessageCreator("1", null, "correlation1").createMessage());
+        spool.spool(REPLY, new ReplyMessageCreator("2", null, "correlation2").createMessage());
+
+        Assert.assertEquals(1, spool.getUnsentMessages());
+        Assert.assertEquals(1, spool.getLost());
+    }
+
+    @Test
+    public void spooledMessagesArePublishedAgainAsTheyWere() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        expectPublishFailing(attempts, 0);
+        start(folder.getRoot().getAbsolutePath());
+
+        spool.spool(REPLY, new SignalMessageCreator("1", NotificationType.MESSAGE_SEND_SUCCESS).createMessage());
+        Assert.assertEquals(1, spool.getUnsentMessages());
+        spool.republishAll();
+
+        Assert.assertEquals(0, spool.getUnsentMessages());
+        Assert.assertEquals(1, folder.getRoot().list().length);
+        new Verifications() {{
+            Message republished;
+            rabbitmqPublisher.publishAndWait(REPLY, republished = withCapture());
+            Assert.assertEquals("1", republished.getMessageProperties().getMessageId());
+            Assert.assertEquals("messageSent", republished.getMessageProperties().getHeader(RabbitmqMessageConstants.RABBITMQ_BACKEND_MESSAGE_TYPE_PROPERTY_KEY));
+        }};
+    }
+
+    @Test
+    public void unreadableSpooledMessagesAreQuarantined() throws Exception {
+        start(folder.getRoot().getAbsolutePath());
+        Files.write(folder.getRoot().toPath().resolve("truncated" + RabbitmqUnsentMessageSpool.SPOOL_FILE_SUFFIX),
+                "exchange=\nroutingKey=reply".getBytes(StandardCharsets.UTF_8));
+
+        spool.republishAll();
+
+        Assert.assertEquals(1, spool.getQuarantined());
+        Assert.assertEquals(1, folder.getRoot().toPath().resolve(RabbitmqUnsentMessageSpool.QUARANTINE_DIRECTORY).toFile().list().length);
+        new Verifications() {{
+            rabbitmqPublisher.publishAndWait((Address) any, (Message) any);
+            times = 0;
+        }};
+    }
+
+    private void expectPublishFailing(final AtomicInteger attempts, final int failures) {
+        new Expectations() {{
+            rabbitmqPublisher.publishAndWait(REPLY, (Message) any);
+            result = new Delegate<Void>() {
+                void publishAndWait(Address address, Message message) {
+                    if (attempts.incrementAndGet() <= failures) {
+                        throw new AmqpException("Broker unavailable");
+                    }
+                }
+            };
+        }};
+    }
+
+    private void start(String directory) throws Exception {
+        new Expectations() {{
+            metrics.getMeterRegistry();
+            result = new SimpleMeterRegistry();
+        }};
+        spool = new RabbitmqUnsentMessageSpool();
+        spool.rabbitmqPublisher = rabbitmqPublisher;
+        spool.metrics = metrics;
+        spool.setDirectory(directory);
+        spool.setRepublishInterval(60000);
+        spool.init();
+    }
+}
@@ -0,0 +1,98 @@
+package eu.domibus.plugin.rabbitmq.compression;
+
+import eu.domibus.plugin.rabbitmq.DefaultRabbitmqPluginException;
+import eu.domibus.plugin.rabbitmq.property.RabbitmqPluginPropertySnapshot;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.integration.junit4.JMockit;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.mail.util.ByteArrayDataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqBodyCompressorTest {
+
+    private final byte[] body = StringUtils.repeat("<hello>world</hello>", 100).getBytes(StandardCharsets.UTF_8);
+
+    private RabbitmqBodyCompressor bodyCompressor;
+
+    @Before
+    public void setUp() {
+        bodyCompressor = new RabbitmqBodyCompressor();
+        bodyCompressor.init();
+    }
+
+    @Test
+    public void bodyAboveThresholdIsCompressed(@Injectable final RabbitmqPluginPropertySnapshot snapshot) throws Exception {
+        new Expectations() {{
+            snapshot.getCompressionEncoding();
+            result = "GZIP";
+            snapshot.getCompressionThreshold();
+            result = 1024;
+        }};
+
+        final String encoding = bodyCompressor.selectEncoding(body.length, snapshot);
+        final byte[] compressed = bodyCompressor.compress(encoding, body);
+
+        Assert.assertEquals("gzip", encoding);
+        Assert.assertTrue(compressed.length < body.length);
+        Assert.assertArrayEquals(body, bodyCompressor.decompress(bodyCompressor.getCodec("gzip"), compressed));
+        Assert.assertArrayEquals(body, IOUtils.toByteArray(new RabbitmqDecompressingDataSource(bodyCompressor.getCodec("gzip"),
+                new ByteArrayDataSource(compressed, "text/xml"), body.length).getInputStream()));
+    }
+
+    @Test
+    public void decompressionIsLimited() throws Exception {
+        final byte[] compressed = bodyCompressor.compress("gzip", body);
+        bodyCompressor.setMaxDecompressedSize(body.length - 1);
+
+        try {
+            bodyCompressor.decompress(bodyCompressor.getCodec("gzip"), compressed);
+            Assert.fail("The body exceeds the maximum decompressed size");
+        } catch (DefaultRabbitmqPluginException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            IOUtils.toByteArray(new RabbitmqDecompressingDataSource(bodyCompressor.getCodec("gzip"),
+                    new ByteArrayDataSource(compressed, "text/xml"), body.length - 1).getInputStream());
+            Assert.fail("The payload exceeds the maximum decompressed size");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("maximum size"));
+        }
+    }
+
+    @Test
+    public void bodyBelowThresholdIsNotCompressed(@Injectable final RabbitmqPluginPropertySnapshot snapshot) {
+        new Expectations() {{
+            snapshot.getCompressionEncoding();
+            result = "gzip";
+            snapshot.getCompressionThreshold();
+            result = body.length + 1;
+        }};
+
+        Assert.assertNull(bodyCompressor.selectEncoding(body.length, snapshot));
+    }
+
+    @Test
+    public void unknownEncodingIsIgnored(@Injectable final RabbitmqPluginPropertySnapshot snapshot) {
+        new Expectations() {{
+            snapshot.getCompressionEncoding();
+            result = "br";
+            snapshot.getCompressionThreshold();
+            result = 0;
+        }};
+
+        Assert.assertNull(bodyCompressor.selectEncoding(body.length, snapshot));
+        Assert.assertNull(bodyCompressor.getCodec("UTF-8"));
+    }
+}
@@ -0,0 +1,174 @@
+package eu.domibus.plugin.rabbitmq.metrics;
+
+import eu.domibus.ext.domain.DomainDTO;
+import eu.domibus.ext.services.DomainContextExtService;
+import eu.domibus.plugin.rabbitmq.RabbitmqAuthenticationCache;
+import eu.domibus.plugin.rabbitmq.RabbitmqDuplicateDetector;
+import eu.domibus.plugin.rabbitmq.RabbitmqPublisher;
+import eu.domibus.plugin.rabbitmq.compression.RabbitmqBodyCompressor;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.integration.junit4.JMockit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+
+import java.util.Collections;
+import java.util.Properties;
+
+/**
+ * @author Generix Group
+ */
+@RunWith(JMockit.class)
+public class RabbitmqMetricsTest {
+
+    @Injectable
+    protected DomainContextExtService domainContextExtService;
+
+    @Injectable
+    protected RabbitmqPublisher rabbitmqPublisher;
+
+    @Injectable
+    protected RabbitmqAuthenticationCache authenticationCache;
+
+    @Injectable
+    protected RabbitmqBodyCompressor bodyCompressor;
+
+    @Injectable
+    protected RabbitmqDuplicateDetector duplicateDetector;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private RabbitmqMetrics metrics;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        metrics = new RabbitmqMetrics();
+        metrics.domainContextExtService = domainContextExtService;
+        metrics.rabbitmqPublisher = rabbitmqPublisher;
+        metrics.authenticationCache = authenticationCache;
+        metrics.bodyCompressor = bodyCompressor;
+        metrics.duplicateDetector = duplicateDetector;
+        metrics.setMeterRegistry(meterRegistry);
+    }
+
+    @Test
+    public void stagesAreTaggedWithDomainQueueAndOutcome() {
+        new Expectations() {{
+            domainContextExtService.getCurrentDomainSafely();
+            result = new DomainDTO("red", "red");
+        }};
+        metrics.init();
+
+        metrics.record(RabbitmqMetrics.Stage.SUBMIT, "queue.in", metrics.start(), true);
+        metrics.record(RabbitmqMetrics.Stage.SUBMIT, "queue.in", metrics.start(), true);
+        metrics.record(RabbitmqMetrics.Stage.SUBMIT, "queue.in", metrics.start(), false);
+        metrics.record(RabbitmqMetrics.Stage.TRANSFORM_FROM_SUBMISSION, null, metrics.start(), true);
+
+        final Timer submitted = meterRegistry.find(RabbitmqMetrics.STAGE_TIMER)
+                .tags(RabbitmqMetrics.TAG_STAGE, "submit", RabbitmqMetrics.TAG_DOMAIN, "red",
+                        RabbitmqMetrics.TAG_QUEUE, "queue.in", RabbitmqMetrics.TAG_OUTCOME, RabbitmqMetrics.OUTCOME_SUCCESS)
+                .timer();
+        final Timer failed = meterRegistry.find(RabbitmqMetrics.STAGE_TIMER)
+                .tags(RabbitmqMetrics.TAG_STAGE, "submit", RabbitmqMetrics.TAG_OUTCOME, RabbitmqMetrics.OUTCOME_FAILURE)
+                .timer();
+        final Timer transformed = meterRegistry.find(RabbitmqMetrics.STAGE_TIMER)
+                .tags(RabbitmqMetrics.TAG_STAGE, "transformFromSubmission", RabbitmqMetrics.TAG_QUEUE, "unknown")
+                .timer();
+
+        Assert.assertEquals(2, submitted.count());
+        Assert.assertEquals(1, failed.count());
+        Assert.assertEquals(1, transformed.count());
+    }
+
+    @Test
+    public void aFailingDomainLookupDoesNotFailTheMeasuredCode() {
+        new Expectations() {{
+            domainContextExtService.getCurrentDomainSafely();
+            result = new IllegalStateException("No current domain");
+        }};
+        metrics.init();
+
+        metrics.record(RabbitmqMetrics.Stage.AUTHENTICATE, "queue.in", metrics.start(), false);
+        metrics.recordLane("urgent", metrics.start(), true);
+        metrics.recordMessageSize(RabbitmqMetrics.DIRECTION_IN, "queue.in", new byte[1]);
+
+        Assert.assertNull(meterRegistry.find(RabbitmqMetrics.STAGE_TIMER).timer());
+    }
+
+    @Test
+    public void deliveriesAreTimedPerLane() {
+        metrics.init();
+
+        metrics.recordLane("urgent", metrics.start(), true);
+        metrics.recordLane("bulk", metrics.start(), true);
+        metrics.recordLane("urgent", metrics.start(), true);
+
+        final Timer urgent = meterRegistry.find(RabbitmqMetrics.LANE_TIMER)
+                .tags(RabbitmqMetrics.TAG_LANE, "urgent", RabbitmqMetrics.TAG_OUTCOME, RabbitmqMetrics.OUTCOME_SUCCESS)
+                .timer();
+
+        Assert.assertEquals(2, urgent.count());
+    }
+
+    @Test
+    public void messageSizesAndExistingCountersAreExposed() {
+        new Expectations() {{
+            domainContextExtService.getCurrentDomainSafely();
+            result = null;
+            rabbitmqPublisher.getAcked();
+            result = 42L;
+        }};
+        metrics.init();
+
+        metrics.recordMessageSize(RabbitmqMetrics.DIRECTION_OUT, "queue.out", new byte[1024]);
+        metrics.recordMessageSize(RabbitmqMetrics.DIRECTION_OUT, "queue.out", new byte[2048]);
+
+        final DistributionSummary sizes = meterRegistry.find(RabbitmqMetrics.MESSAGE_SIZE_SUMMARY)
+                .tags(RabbitmqMetrics.TAG_DIRECTION, RabbitmqMetrics.DIRECTION_OUT, RabbitmqMetrics.TAG_DOMAIN, "none")
+                .summary();
+        final FunctionCounter acked = meterRegistry.find("rabbitmq.plugin.publisher.acked").functionCounter();
+
+        Assert.assertEquals(2, sizes.count());
+        Assert.assertEquals(3072, sizes.totalAmount(), 0);
+        Assert.assertEquals(42, acked.count(), 0);
+    }
+
+    @Test
+    public void channelCachesAreExposed() {
+        final CachingConnectionFactory connectionFactory = new CachingConnectionFactory("localhost");
+        connectionFactory.setChannelCacheSize(42);
+        metrics.setConnectionFactories(Collections.singletonMap("publisher", connectionFactory));
+        metrics.init();
+
+        final Gauge cacheSize = meterRegistry.find("rabbitmq.plugin.connection.channels.cacheSize")
+                .tag(RabbitmqMetrics.TAG_CONNECTION_FACTORY, "publisher").gauge();
+        final Properties cacheProperties = new Properties();
+        cacheProperties.put("idleChannelsTx", "1");
+        cacheProperties.put("idleChannelsNotTx", "3");
+
+        Assert.assertEquals(42, cacheSize.value(), 0);
+        Assert.assertEquals(4, RabbitmqMetrics.getIdleChannels(cacheProperties), 0);
+        Assert.assertEquals(0, RabbitmqMetrics.getIdleChannels(new Properties()), 0);
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled() {
+        metrics.setEnabled(false);
+        metrics.init();
+
+        metrics.record(RabbitmqMetrics.Stage.AUTHENTICATE, "queue.in", metrics.start(), true);
+        metrics.recordMessageSize(RabbitmqMetrics.DIRECTION_IN, "queue.in", new byte[16]);
+
+        Assert.assertTrue(meterRegistry.getMeters().isEmpty());
+    }
+}
@@ -4,10 +4,12 @@ import eu.domibus.ext.domain.DomainDTO;
 import eu.domibus.ext.domain.DomibusPropertyMetadataDTO;
 import eu.domibus.ext.services.DomainExtService;
 import eu.domibus.ext.services.DomibusPropertyExtService;
+import eu.domibus.plugin.rabbitmq.RabbitmqDestinationRegistry;
 import eu.domibus.plugin.rabbitmq.property.RabbitmqPluginPropertyManager;
 import mockit.Expectations;
 import mockit.Injectable;
 import mockit.Tested;
+import mockit.Verifications;
 import mockit.integration.junit4.JMockit;
 import org.junit.Assert;
 import org.junit.Test;
@@ -31,6 +33,9 @@ public class RabbitmqPluginPropertyManagerTest {
     @Injectable
     protected DomainExtService domainExtService;
 
+    @Injectable
+    protected RabbitmqDestinationRegistry destinationRegistry;
+
 
     private final String rabbitmqProperty = "plugin.rabbitmq.fromPartyId";
     private final String testValue = "new-value";
@@ -54,6 +59,44 @@ public class RabbitmqPluginPropertyManagerTest {
         Assert.assertEquals(testValue, newValue);
     }
 
+    @Test
+    public void getSnapshot() {
+        new Expectations() {{
+            domainExtService.getDomain("default");
+            result = testDomain;
+
+            domibusPropertyExtService.getDomainProperty(testDomain, rabbitmqProperty);
+            returns("old-value", testValue);
+        }};
+
+        final RabbitmqPluginPropertySnapshot oldSnapshot = rabbitmqPluginPropertyManager.getSnapshot(testDomain);
+        Assert.assertSame(oldSnapshot, rabbitmqPluginPropertyManager.getSnapshot(testDomain));
+        Assert.assertEquals("old-value", oldSnapshot.getProperty("fromPartyId"));
+        Assert.assertTrue(oldSnapshot.isPutAttachmentInQueue());
+
+        rabbitmqPluginPropertyManager.setKnownPropertyValue("default", rabbitmqProperty, testValue);
+
+        final RabbitmqPluginPropertySnapshot newSnapshot = rabbitmqPluginPropertyManager.getSnapshot(testDomain);
+        Assert.assertNotSame(oldSnapshot, newSnapshot);
+        Assert.assertEquals(testValue, newSnapshot.getProperty("fromPartyId"));
+        Assert.assertEquals("old-value", oldSnapshot.getProperty("fromPartyId"));
+    }
+
+    @Test
+    public void setQueuePropertyInvalidatesDestinations() {
+        new Expectations() {{
+            domainExtService.getDomain("default");
+            result = testDomain;
+        }};
+
+        rabbitmqPluginPropertyManager.setKnownPropertyValue("default", "plugin.rabbitmq.queue.out", "domibus.backend.rabbitmq.out");
+
+        new Verifications() {{
+            domibusPropertyExtService.setDomainProperty(testDomain, "plugin.rabbitmq.queue.out", "domibus.backend.rabbitmq.out");
+            destinationRegistry.invalidate("default");
+        }};
+    }
+
     @Test
     public void getKnownProperties() {
         Map<String, DomibusPropertyMetadataDTO> properties = rabbitmqPluginPropertyManager.getKnownProperties();